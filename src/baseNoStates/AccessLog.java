@@ -0,0 +1,416 @@
+package baseNoStates;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Log of door requests, one JSON object per line (JSONL), written without the request
+ * threads ever touching the disk. A request only puts its event in a ring buffer, a
+ * bounded array that many threads add to with a compare-and-set and one background
+ * writer drains. The writer turns a batch of events into lines, writes them with one
+ * call, syncs the file to disk at most once every fsyncMillis and, when the file is
+ * larger than maxBytes, renames it to .1 (the older ones to .2, .3...) and starts a new
+ * one. When the ring is full, because the disk stalls, events are dropped and counted,
+ * or with whenFull=block the request waits until the writer makes room.
+ * Process wide, like MetricsRegistry, each line has the building of the request.
+ * Until started, as in the benchmarks, events are ignored.
+ * Options: --accessLog.enabled, .file, .capacity, .whenFull=drop|block, .fsyncMillis,
+ * .maxBytes and .maxFiles.
+ */
+public final class AccessLog {
+  private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+  private static final AccessLog uniqueInstance = new AccessLog();
+  private static final int BATCH = 512; // events at most per write
+  private static final long ROTATE_RETRY_NANOS = 1_000_000_000L;
+  // how long the shutdown hook waits for the writer to write what is left
+  private static final long STOP_WAIT_MILLIS = 10_000;
+
+  /** What to do with an event when the ring buffer is full. */
+  public enum WhenFull { DROP, BLOCK }
+
+  // A door request as it was answered
+  private static final class Event {
+    final long timeMillis;
+    final String requestId;
+    final String building;
+    final String credential;
+    final String doorId;
+    final String action;
+    final long epochMinute; // of the request, EpochMinutes.NONE if it had none
+    final boolean authorized;
+    final String state;
+    final boolean closed;
+    final String[] reasons;
+
+    Event(long timeMillis, String requestId, String building, String credential, String doorId,
+          String action, long epochMinute, boolean authorized, String state,
+          boolean closed, String[] reasons) {
+      this.timeMillis = timeMillis;
+      this.requestId = requestId;
+      this.building = building;
+      this.credential = credential;
+      this.doorId = doorId;
+      this.action = action;
+      this.epochMinute = epochMinute;
+      this.authorized = authorized;
+      this.state = state;
+      this.closed = closed;
+      this.reasons = reasons;
+    }
+  }
+
+  private volatile boolean started = false;
+  private WhenFull whenFull = WhenFull.DROP;
+  // The ring: slot i holds the event of sequence number s when sequences[i] == s + 1, and
+  // is free for the sequence number s when sequences[i] == s (Vyukov's bounded queue)
+  private AtomicReferenceArray<Event> slots;
+  private AtomicLongArray sequences;
+  private int mask;
+  private final AtomicLong tail = new AtomicLong(); // next sequence number to claim
+  private volatile long head = 0; // next sequence number to write, only the writer sets it
+  private volatile Thread writer;
+
+  private final LongAdder logged = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder blocked = new LongAdder();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong syncs = new AtomicLong();
+  private final AtomicLong rotations = new AtomicLong();
+
+  private Path file;
+  private FileChannel channel;
+  private long fileBytes;
+  private long maxBytes;
+  private int maxFiles;
+  private long fsyncNanos;
+  // when rotating last failed, not to shift the numbered files at every write meanwhile
+  private boolean rotateFailed = false;
+  private long rotateFailedAt;
+
+  private AccessLog() {}
+
+  public static AccessLog getInstance() {
+    return uniqueInstance;
+  }
+
+  /** Opens the file, appending to it, and starts the writer. */
+  public synchronized void start(Path file) throws IOException {
+    if (started) {
+      return;
+    }
+    int capacity = Integer.highestOneBit(Math.max(2, Config.getInt("accessLog.capacity", 65536)));
+    slots = new AtomicReferenceArray<>(capacity);
+    sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+    mask = capacity - 1;
+    whenFull = WhenFull.valueOf(Config.getString("accessLog.whenFull", "drop").toUpperCase());
+    fsyncNanos = Config.getLong("accessLog.fsyncMillis", 1000) * 1_000_000L;
+    maxBytes = Config.getLong("accessLog.maxBytes", 64L * 1024 * 1024);
+    maxFiles = Config.getInt("accessLog.maxFiles", 5);
+    this.file = file.toAbsolutePath();
+    open();
+    Thread thread = new Thread(this::writeLoop, "access-log-writer");
+    thread.setDaemon(true);
+    writer = thread;
+    started = true;
+    thread.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "access-log-shutdown"));
+    logger.info("Access log {}, ring of {} events, {} when full", this.file, capacity, whenFull);
+  }
+
+  /**
+   * Adds a door request to the log. Never waits for the disk: if the ring is full the
+   * event is dropped, or with whenFull=block waits for the writer to take some.
+   * The request id is the one of its RequestTrace, null if none.
+   */
+  public void log(String requestId, String credential, String doorId, String action,
+                  long epochMinute, boolean authorized, String state, boolean closed,
+                  List<String> reasons) {
+    if (!started) {
+      return;
+    }
+    Event event = new Event(System.currentTimeMillis(), requestId,
+        BuildingContext.current().getId(), credential, doorId, action, epochMinute, authorized, state, closed,
+        reasons.isEmpty() ? null : reasons.toArray(new String[0]));
+    while (!offer(event)) {
+      // once stopped, the writer takes no more
+      if (whenFull == WhenFull.DROP || !started) {
+        dropped.increment();
+        return;
+      }
+      blocked.increment();
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(50_000);
+    }
+    logged.increment();
+  }
+
+  private boolean offer(Event event) {
+    while (true) {
+      long sequence = tail.get();
+      int index = (int) sequence & mask;
+      long difference = sequences.get(index) - sequence;
+      if (difference < 0) {
+        return false; // the writer has not taken the event of a lap ago yet
+      }
+      if (difference == 0 && tail.compareAndSet(sequence, sequence + 1)) {
+        slots.set(index, event);
+        sequences.set(index, sequence + 1); // published
+        return true;
+      }
+      // another thread claimed that sequence number, try the next one
+    }
+  }
+
+  // null if the event of head has not been published yet
+  private Event poll() {
+    int index = (int) head & mask;
+    if (sequences.get(index) != head + 1) {
+      return null;
+    }
+    Event event = slots.get(index);
+    slots.set(index, null);
+    sequences.set(index, head + mask + 1); // free for the next lap
+    head++;
+    return event;
+  }
+
+  private void writeLoop() {
+    StringBuilder lines = new StringBuilder(BATCH * 200);
+    long lastSync = System.nanoTime();
+    boolean unsynced = false;
+    while (started) {
+      try {
+        int n = drain(lines);
+        if (n > 0) {
+          write(lines);
+          unsynced = true;
+        }
+        long now = System.nanoTime();
+        if (unsynced && now - lastSync >= fsyncNanos) {
+          sync();
+          lastSync = now;
+          unsynced = false;
+        }
+        if (n < BATCH) {
+          // nothing more now, wake up for the next sync at the latest
+          LockSupport.parkNanos(unsynced ? Math.min(fsyncNanos, 1_000_000L) : 1_000_000L);
+        }
+      } catch (IOException | RuntimeException e) {
+        logger.error("Could not write access log {}: {}", file, e.toString());
+        LockSupport.parkNanos(fsyncNanos); // the events in the batch are lost
+        reopenIfClosed();
+      }
+    }
+    // stopped: what is still in the ring, by this thread, the only one that takes from it
+    try {
+      while (drain(lines) > 0) {
+        write(lines);
+      }
+      sync();
+      channel.close();
+    } catch (IOException | RuntimeException e) {
+      logger.error("Could not close access log {}: {}", file, e.toString());
+    }
+  }
+
+  private int drain(StringBuilder lines) {
+    lines.setLength(0);
+    int n = 0;
+    Event event;
+    while (n < BATCH && (event = poll()) != null) {
+      appendLine(lines, event);
+      n++;
+    }
+    return n;
+  }
+
+  private void write(StringBuilder lines) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    if (fileBytes > 0 && fileBytes + buffer.remaining() > maxBytes
+        && (!rotateFailed || System.nanoTime() - rotateFailedAt >= ROTATE_RETRY_NANOS)) {
+      try {
+        rotate();
+        rotateFailed = false;
+      } catch (IOException e) {
+        // the events go on to the current file, rotation is tried again a bit later
+        rotateFailed = true;
+        rotateFailedAt = System.nanoTime();
+        logger.error("Could not rotate access log {}: {}", file, e.toString());
+      }
+    }
+    fileBytes += buffer.remaining();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    written.addAndGet(buffer.limit());
+  }
+
+  private void sync() throws IOException {
+    channel.force(false);
+    syncs.incrementAndGet();
+  }
+
+  // file.{maxFiles - 1} is deleted, each older one gets the next number, and the current
+  // file becomes file.1
+  // The file being written stays open until the new one is, so if a rename or the open
+  // fails, the log goes on where it was.
+  private void rotate() throws IOException {
+    sync();
+    FileChannel old = channel;
+    Files.deleteIfExists(numbered(maxFiles - 1));
+    for (int i = maxFiles - 2; i >= 1; i--) {
+      if (Files.exists(numbered(i))) {
+        Files.move(numbered(i), numbered(i + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    if (maxFiles > 1) {
+      Files.move(file, numbered(1), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(file);
+    }
+    open();
+    try {
+      old.close();
+    } catch (IOException e) {
+      logger.warn("Could not close rotated access log: {}", e.toString());
+    }
+    rotations.incrementAndGet();
+  }
+
+  // After an error, the file may have been closed under us: write to a new one
+  private void reopenIfClosed() {
+    if (channel != null && channel.isOpen()) {
+      return;
+    }
+    try {
+      open();
+      logger.info("Access log {} reopened", file);
+    } catch (IOException e) {
+      logger.error("Could not reopen access log {}: {}", file, e.toString());
+    }
+  }
+
+  private Path numbered(int i) {
+    return file.resolveSibling(file.getFileName() + "." + i);
+  }
+
+  private void open() throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    fileBytes = channel.size();
+  }
+
+  // When the server stops, has the writer write what is still in the ring and sync, and
+  // waits for it. If the disk stalls longer, what is left is lost: taking events from the
+  // ring here too, while the writer still does, would corrupt it
+  private void stop() {
+    Thread thread = writer;
+    started = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(STOP_WAIT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (thread.isAlive()) {
+      logger.error("Access log {} still writing after {} ms, the rest is lost", file,
+          STOP_WAIT_MILLIS);
+    }
+  }
+
+  private static void appendLine(StringBuilder out, Event e) {
+    out.append("{\"time\":").append(e.timeMillis);
+    out.append(",\"requestId\":");
+    appendQuoted(out, e.requestId);
+    out.append(",\"building\":");
+    appendQuoted(out, e.building);
+    out.append(",\"credential\":");
+    appendQuoted(out, e.credential);
+    out.append(",\"doorId\":");
+    appendQuoted(out, e.doorId);
+    out.append(",\"action\":");
+    appendQuoted(out, e.action);
+    out.append(",\"datetime\":");
+    if (e.epochMinute == EpochMinutes.NONE) {
+      out.append("null");
+    } else {
+      out.append('"');
+      EpochMinutes.appendTo(out, e.epochMinute);
+      out.append('"');
+    }
+    out.append(",\"authorized\":").append(e.authorized);
+    out.append(",\"state\":");
+    appendQuoted(out, e.state);
+    out.append(",\"closed\":").append(e.closed);
+    out.append(",\"reasons\":[");
+    if (e.reasons != null) {
+      for (int i = 0; i < e.reasons.length; i++) {
+        if (i > 0) {
+          out.append(',');
+        }
+        appendQuoted(out, e.reasons[i]);
+      }
+    }
+    out.append("]}\n");
+  }
+
+  // also for the lines of AuditStore
+  static void appendQuoted(StringBuilder out, String s) {
+    if (s == null) {
+      out.append("null");
+      return;
+    }
+    out.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.append('\\').append(c);
+      } else if (c < 0x20) {
+        out.append(String.format("\\u%04x", (int) c));
+      } else {
+        out.append(c);
+      }
+    }
+    out.append('"');
+  }
+
+  public long getLogged() {
+    return logged.sum();
+  }
+
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  public JSONObject toJson() {
+    JSONObject json = new JSONObject();
+    json.put("enabled", started);
+    json.put("whenFull", whenFull.name().toLowerCase());
+    json.put("logged", logged.sum());
+    json.put("dropped", dropped.sum());
+    json.put("blocked", blocked.sum());
+    json.put("pending", started ? tail.get() - head : 0);
+    json.put("bytesWritten", written.get());
+    json.put("syncs", syncs.get());
+    json.put("rotations", rotations.get());
+    return json;
+  }
+}
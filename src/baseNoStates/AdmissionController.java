@@ -0,0 +1,263 @@
+package baseNoStates;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONObject;
+
+/**
+ * Decides whether a request is processed or shed before any work is done for it.
+ * Two checks, both answered straight away when they fail:
+ * - rate: reader and area requests take a token from the bucket of their credential
+ *   and from the one of their door, both in the building of the request, as the same
+ *   ids name other cards and doors in other buildings. So a card being replayed or a
+ *   faulty reader get 429 Too Many Requests instead of reaching RequestReader.process
+ *   and the logs. Each swipe of a batch takes its tokens too, and over the rate gets a
+ *   429 result of its own;
+ * - load: at most workers requests are processed at the same time, and at most
+ *   queueCapacity more wait for their turn, each for queueTimeoutMillis at most.
+ *   Beyond that the answer is 503 Service Unavailable. Threads that must not wait, the
+ *   event loops of NioWebServer, get the 503 as soon as no slot is free (tryEnter).
+ * Singleton because the load limits are for the whole server, whatever its front end
+ * and however many buildings it serves.
+ */
+public final class AdmissionController {
+  private static AdmissionController uniqueInstance = null;
+
+  private final int workers = Config.getInt("admission.workers", 64);
+  private final int queueCapacity = Config.getInt("admission.queue", 256);
+  private final long queueTimeoutMillis = Config.getLong("admission.queueTimeoutMillis", 2000);
+  private final double credentialRate = Double.parseDouble(Config.getString("admission.credentialRate", "5"));
+  private final int credentialBurst = Config.getInt("admission.credentialBurst", 10);
+  private final double doorRate = Double.parseDouble(Config.getString("admission.doorRate", "20"));
+  private final int doorBurst = Config.getInt("admission.doorBurst", 40);
+  // buckets of keys not seen for a while are full, and are dropped past this many
+  private final int maxBuckets = Config.getInt("admission.maxBuckets", 100000);
+
+  private final Semaphore slots = new Semaphore(workers, true);
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicInteger maxQueued = new AtomicInteger();
+  // by building id
+  private final Map<String, Limiters> limiters = new ConcurrentHashMap<>();
+
+  private final LongAdder admitted = new LongAdder();
+  private final LongAdder shedQueueFull = new LongAdder();
+  private final LongAdder shedQueueTimeout = new LongAdder();
+  private final LongAdder shedBusy = new LongAdder();
+  private final LongAdder limitedCredential = new LongAdder();
+  private final LongAdder limitedDoor = new LongAdder();
+
+  // The token buckets of the credentials and doors of one building
+  private static final class Limiters {
+    final Map<String, TokenBucket> credentialBuckets = new ConcurrentHashMap<>();
+    final Map<String, TokenBucket> doorBuckets = new ConcurrentHashMap<>();
+    final AtomicLong lastSweep = new AtomicLong();
+  }
+
+  private AdmissionController() {}
+
+  public static synchronized AdmissionController getInstance() {
+    if (uniqueInstance == null) {
+      uniqueInstance = new AdmissionController();
+    }
+    return uniqueInstance;
+  }
+
+  /**
+   * Takes a token for the credential and one for the door, either may be null.
+   * Returns null if the request may go on, else the 429 answer to send.
+   */
+  public HttpResponse checkRate(String credential, String doorId) {
+    RateLimited limited = takeTokens(credential, doorId);
+    if (limited == null) {
+      return null;
+    }
+    return HttpResponse.error(429, "Too Many Requests", limited.getMessage())
+        .setHeader("Retry-After", Long.toString(limited.getRetryAfterSeconds()));
+  }
+
+  /**
+   * Takes a token for the credential and one for the door, like checkRate, for a request
+   * that is not answered on its own, like a swipe of a RequestReaderBatch. Returns null
+   * if it may go on, else why not.
+   */
+  public RateLimited takeTokens(String credential, String doorId) {
+    long now = System.nanoTime();
+    Limiters building = limitersOfCurrentBuilding();
+    if (credential != null) {
+      long wait = bucket(building, building.credentialBuckets, credential, credentialRate,
+          credentialBurst, now).tryTake(now);
+      if (wait > 0) {
+        limitedCredential.increment();
+        return new RateLimited("credential " + credential, wait);
+      }
+    }
+    if (doorId != null) {
+      long wait = bucket(building, building.doorBuckets, doorId, doorRate, doorBurst, now)
+          .tryTake(now);
+      if (wait > 0) {
+        limitedDoor.increment();
+        return new RateLimited("door " + doorId, wait);
+      }
+    }
+    return null;
+  }
+
+  /** A request over the rate of its credential or its door, and when to try again. */
+  public static final class RateLimited {
+    private final String what;
+    private final long waitNanos;
+
+    private RateLimited(String what, long waitNanos) {
+      this.what = what;
+      this.waitNanos = waitNanos;
+    }
+
+    public String getMessage() {
+      return "too many requests for " + what;
+    }
+
+    public long getRetryAfterSeconds() {
+      return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999L));
+    }
+  }
+
+  private Limiters limitersOfCurrentBuilding() {
+    String building = BuildingContext.current().getId();
+    Limiters result = limiters.get(building);
+    return result != null ? result : limiters.computeIfAbsent(building, id -> new Limiters());
+  }
+
+  private TokenBucket bucket(Limiters building, Map<String, TokenBucket> buckets, String key,
+                             double rate, int burst, long now) {
+    TokenBucket bucket = buckets.get(key);
+    if (bucket == null) {
+      if (buckets.size() >= maxBuckets) {
+        sweep(building.lastSweep, buckets, now);
+      }
+      bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(rate, burst, now));
+    }
+    return bucket;
+  }
+
+  // Removes the full buckets, at most once per second so that a flood of new keys
+  // can't make every request walk the whole map
+  private static void sweep(AtomicLong lastSweep, Map<String, TokenBucket> buckets, long now) {
+    long last = lastSweep.get();
+    if (now - last < 1_000_000_000L || !lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+    Iterator<TokenBucket> it = buckets.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().isFull(now)) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Waits for a processing slot. Returns false, and the caller must answer 503, if the
+   * queue is full or the wait is too long. A true must be followed by release().
+   */
+  public boolean enter() {
+    if (slots.tryAcquire()) {
+      admitted.increment();
+      return true;
+    }
+    int waiting = queued.incrementAndGet();
+    try {
+      if (waiting > queueCapacity) {
+        shedQueueFull.increment();
+        return false;
+      }
+      maxQueued.accumulateAndGet(waiting, Math::max);
+      if (slots.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        admitted.increment();
+        return true;
+      }
+      shedQueueTimeout.increment();
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      shedQueueTimeout.increment();
+      return false;
+    } finally {
+      queued.decrementAndGet();
+    }
+  }
+
+  /**
+   * Takes a processing slot only if one is free now, without queueing. For the threads
+   * that must never block, like an event loop serving many connections. A true must be
+   * followed by release().
+   */
+  public boolean tryEnter() {
+    if (slots.tryAcquire()) {
+      admitted.increment();
+      return true;
+    }
+    shedBusy.increment();
+    return false;
+  }
+
+  public void release() {
+    slots.release();
+  }
+
+  public static HttpResponse overloaded() {
+    return HttpResponse.error(503, "Service Unavailable", "server busy, try again later")
+        .setHeader("Retry-After", "1");
+  }
+
+  public JSONObject toJson() {
+    long now = System.nanoTime();
+    JSONObject queue = new JSONObject();
+    queue.put("workers", workers);
+    queue.put("busy", workers - slots.availablePermits());
+    queue.put("capacity", queueCapacity);
+    queue.put("depth", Math.min(queued.get(), queueCapacity));
+    queue.put("maxDepth", maxQueued.get());
+    queue.put("timeoutMillis", queueTimeoutMillis);
+
+    JSONObject shed = new JSONObject();
+    shed.put("queueFull", shedQueueFull.sum());
+    shed.put("queueTimeout", shedQueueTimeout.sum());
+    shed.put("busy", shedBusy.sum());
+    shed.put("credentialRate", limitedCredential.sum());
+    shed.put("doorRate", limitedDoor.sum());
+
+    JSONObject json = new JSONObject();
+    json.put("admitted", admitted.sum());
+    json.put("queue", queue);
+    json.put("shed", shed);
+    // of the building asked about
+    Limiters building = limitersOfCurrentBuilding();
+    json.put("credentialLimiter", limiterToJson(building.credentialBuckets, credentialRate,
+        credentialBurst, now));
+    json.put("doorLimiter", limiterToJson(building.doorBuckets, doorRate, doorBurst, now));
+    json.put("doorCommands", DoorExecutor.getInstance().toJson()); // mailboxes of door owners
+    return json;
+  }
+
+  // rate, burst, number of keys tracked and those that have run out of tokens
+  private static JSONObject limiterToJson(Map<String, TokenBucket> buckets, double rate,
+                                          int burst, long now) {
+    int exhausted = 0;
+    for (TokenBucket bucket : buckets.values()) {
+      if (bucket.getTokens(now) == 0) {
+        exhausted++;
+      }
+    }
+    JSONObject json = new JSONObject();
+    json.put("ratePerSecond", rate);
+    json.put("burst", burst);
+    json.put("keys", buckets.size());
+    json.put("exhausted", exhausted);
+    return json;
+  }
+}
@@ -0,0 +1,81 @@
+package baseNoStates;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONObject;
+
+/**
+ * Locks or unlocks a set of doors as a unit: either every door ends in the state the
+ * action asks for, or none of them changes. The doors are reserved one by one in
+ * handle order, so two transactions on overlapping areas never wait for each other in
+ * a cycle: the one that reserves the common door with the lowest handle first goes
+ * first, and the other waits there. Swipes and timers wait too while a door is reserved.
+ * Once all are reserved, the action is tried on every door without changing any. If a
+ * door would not end in the target state, like a propped door that can't be locked or
+ * an open one, the transaction aborts and releases the doors as they were; otherwise
+ * each door is released in its new state.
+ */
+public final class AreaTransaction {
+  private static final LongAdder committed = new LongAdder();
+  private static final LongAdder aborted = new LongAdder();
+
+  private final Door[] doors;
+  private final String action;
+  private final String targetState;
+  private Door refusedBy = null;
+
+  /** The action must be lock or unlock. */
+  public AreaTransaction(Door[] doors, String action) {
+    this.action = Actions.canonicalize(action);
+    if (Actions.LOCK.equals(this.action)) {
+      targetState = DoorStateLocked.INSTANCE.getName();
+    } else if (Actions.UNLOCK.equals(this.action)) {
+      targetState = DoorStateUnlocked.INSTANCE.getName();
+    } else {
+      throw new IllegalArgumentException("no transaction for action " + action);
+    }
+    this.doors = doors.clone();
+    Arrays.sort(this.doors, Comparator.comparingInt(Door::getHandle)); // global order
+  }
+
+  /** Returns true if committed, false if aborted and nothing changed. */
+  public boolean execute() {
+    long[] before = new long[doors.length];
+    long[] after = new long[doors.length];
+    int reserved = 0;
+    boolean checked = false;
+    try {
+      for (; reserved < doors.length; reserved++) {
+        before[reserved] = doors[reserved].reserve();
+      }
+      for (int i = 0; i < doors.length; i++) {
+        after[i] = doors[i].next(action, before[i]);
+        if (!DoorState.of(after[i]).getName().equals(targetState)) {
+          refusedBy = doors[i];
+          break;
+        }
+      }
+      checked = refusedBy == null;
+    } finally {
+      // committing or, if refused or something failed, leaving every door as it was
+      for (int i = 0; i < reserved; i++) {
+        doors[i].release(before[i], checked ? after[i] : before[i]);
+      }
+      (checked ? committed : aborted).increment();
+    }
+    return checked;
+  }
+
+  /** The door that made the transaction abort, null if it committed. */
+  public Door getRefusedBy() {
+    return refusedBy;
+  }
+
+  public static JSONObject statsToJson() {
+    JSONObject json = new JSONObject();
+    json.put("committed", committed.sum());
+    json.put("aborted", aborted.sum());
+    return json;
+  }
+}
@@ -0,0 +1,70 @@
+package baseNoStates;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Returns the same String instance each time it is asked for the same bytes.
+ * Credentials, door ids, area ids and actions repeat all the time, so once they have
+ * been seen decoding them from a request does not allocate anything.
+ *
+ * It is a small open addressing table shared by all threads without locks: slots only
+ * ever hold complete immutable Strings, so a race can at worst lose an insertion,
+ * which just means that String will be created again next time.
+ */
+final class AsciiInterner {
+  private static final int MAX_PROBES = 8;
+  private static final int MAX_LENGTH = 64; // longer values are not worth caching
+
+  private final String[] table;
+  private final int mask;
+
+  AsciiInterner(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+    table = new String[size];
+    mask = size - 1;
+  }
+
+  String intern(byte[] bytes, int offset, int length) {
+    if (length > MAX_LENGTH) {
+      return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      byte b = bytes[offset + i];
+      if (b < 0) { // not ASCII, decode properly and don't cache
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+      }
+      hash = 31 * hash + b;
+    }
+    hash ^= hash >>> 16;
+    int index = hash & mask;
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      String s = table[index];
+      if (s == null) {
+        s = new String(bytes, offset, length, StandardCharsets.US_ASCII);
+        table[index] = s;
+        return s;
+      }
+      if (matches(s, bytes, offset, length)) {
+        return s;
+      }
+      index = (index + 1) & mask;
+    }
+    // neighbourhood full, replace the home slot
+    String s = new String(bytes, offset, length, StandardCharsets.US_ASCII);
+    table[hash & mask] = s;
+    return s;
+  }
+
+  private static boolean matches(String s, byte[] bytes, int offset, int length) {
+    if (s.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (s.charAt(i) != bytes[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
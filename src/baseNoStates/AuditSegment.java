@@ -0,0 +1,451 @@
+package baseNoStates;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One file of the AuditStore: the records of a span of time, in the order they were
+ * added, which is the order of their times too, and the postings of each door and
+ * credential, the numbers of their records in ascending order. While the segment is
+ * written, the postings are in memory; once sealed, they are written to an index file
+ * next to it and read from there, mapped.
+ *
+ * Only one thread appends, with the lock of the store; queries read at the same time
+ * without locks, up to the count of records, which is published after each record.
+ *
+ * Data file layout, big endian: magic "ACSA", format version, start of its partition in
+ * epoch millis, zeros up to 32 bytes, and then records of 32 bytes: time, datetime of the
+ * reader in epoch seconds, credential, door, reasons, action, state and flags, the strings
+ * as ids of the dictionary of the store. The time is written last, a record with time 0
+ * is not there. Header and records being the same size, no record straddles two pages,
+ * so a page torn by a crash can't leave a record with its time but not the rest.
+ *
+ * Index file layout: magic "ACSI", format version, records, door keys, credential keys,
+ * 0, first time and last time; the tables of doors and of credentials, sorted by id, of
+ * id, byte offset of its postings and their count; and then the postings.
+ */
+final class AuditSegment {
+  private static final Logger logger = LoggerFactory.getLogger(AuditSegment.class);
+  static final int RECORD_BYTES = 32;
+  static final int HEADER_BYTES = RECORD_BYTES;
+  static final int MAX_RECORDS = (Integer.MAX_VALUE - HEADER_BYTES) / RECORD_BYTES;
+  static final long NO_DATETIME = Long.MIN_VALUE;
+  static final int AUTHORIZED = 1;
+  static final int CLOSED = 2;
+  private static final int DATA_MAGIC = 0x41435341; // "ACSA"
+  private static final int INDEX_MAGIC = 0x41435349; // "ACSI"
+  private static final int FORMAT_VERSION = 1;
+  private static final int INDEX_HEADER_BYTES = 40;
+  private static final int TABLE_ENTRY_BYTES = 12;
+  // offsets in a record
+  private static final int TIME = 0;
+  private static final int DATETIME = 8;
+  private static final int CREDENTIAL = 16;
+  private static final int DOOR = 20;
+  private static final int REASONS = 24;
+  private static final int ACTION = 28;
+  private static final int STATE = 30;
+  private static final int FLAGS = 31;
+
+  /** Numbers of records in ascending order. */
+  interface Postings {
+    int size();
+
+    int get(int i);
+  }
+
+  private static final Postings NONE = new Postings() {
+    @Override
+    public int size() {
+      return 0;
+    }
+
+    @Override
+    public int get(int i) {
+      throw new IndexOutOfBoundsException(i);
+    }
+  };
+
+  // Grown by the appending thread only; a reader that has read size sees the values
+  // up to it, in this array or in any later one, which has them copied
+  private static final class IntList {
+    private volatile int[] values = new int[8];
+    private volatile int size = 0;
+
+    void add(int value) {
+      int[] array = values;
+      if (size == array.length) {
+        array = Arrays.copyOf(array, array.length * 2);
+        values = array;
+      }
+      array[size] = value;
+      size = size + 1; // single writer
+    }
+
+    Postings snapshot() {
+      int n = size;
+      int[] array = values;
+      return new Postings() {
+        @Override
+        public int size() {
+          return n;
+        }
+
+        @Override
+        public int get(int i) {
+          return array[i];
+        }
+      };
+    }
+  }
+
+  // The postings while the segment is written
+  private static final class MemoryIndex {
+    final Map<Integer, IntList> byDoor = new ConcurrentHashMap<>();
+    final Map<Integer, IntList> byCredential = new ConcurrentHashMap<>();
+
+    void add(Map<Integer, IntList> index, int key, int ordinal) {
+      IntList list = index.get(key);
+      if (list == null) {
+        list = new IntList();
+        index.put(key, list);
+      }
+      list.add(ordinal);
+    }
+  }
+
+  final long number;
+  final long partitionStart;
+  private final Path dataFile;
+  private final Path indexFile;
+  private final int capacity;
+  private volatile MappedByteBuffer data;
+  private volatile int count = 0;
+  private volatile long firstTime = 0;
+  private volatile long lastTime = 0;
+  // postings in memory until sealed, then in the mapped index file
+  private volatile MemoryIndex memory;
+  private volatile MappedByteBuffer index;
+  private int doorKeys;
+
+  private AuditSegment(Path dir, long number, long partitionStart, int capacity) {
+    this.number = number;
+    this.partitionStart = partitionStart;
+    this.dataFile = dataFile(dir, number);
+    this.indexFile = indexFile(dir, number);
+    this.capacity = capacity;
+  }
+
+  static Path dataFile(Path dir, long number) {
+    return dir.resolve(String.format("segment-%010d.dat", number));
+  }
+
+  static Path indexFile(Path dir, long number) {
+    return dir.resolve(String.format("segment-%010d.idx", number));
+  }
+
+  /** Makes a new empty segment, full size from the start, zeros. */
+  static AuditSegment create(Path dir, long number, long partitionStart, int capacity)
+      throws IOException {
+    AuditSegment segment = new AuditSegment(dir, number, partitionStart, capacity);
+    try (FileChannel channel = FileChannel.open(segment.dataFile, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      segment.data = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          HEADER_BYTES + (long) capacity * RECORD_BYTES);
+    }
+    segment.data.putInt(0, DATA_MAGIC);
+    segment.data.putInt(4, FORMAT_VERSION);
+    segment.data.putLong(8, partitionStart);
+    segment.memory = new MemoryIndex();
+    return segment;
+  }
+
+  /**
+   * Opens a segment found on disk. One without index, left by a crash or a stop before it
+   * was sealed, is read up to its last complete record and sealed now. If that fails, it
+   * is queried with its postings in memory, and sealed again at the next start.
+   */
+  static AuditSegment open(Path dir, long number) throws IOException {
+    Path dataFile = dataFile(dir, number);
+    MappedByteBuffer data;
+    try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      data = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+    if (data.capacity() < HEADER_BYTES || data.getInt(0) != DATA_MAGIC
+        || data.getInt(4) != FORMAT_VERSION) {
+      throw new IOException(dataFile + " is not an audit segment");
+    }
+    int records = (data.capacity() - HEADER_BYTES) / RECORD_BYTES;
+    AuditSegment segment = new AuditSegment(dir, number, data.getLong(8), records);
+    segment.data = data;
+    if (Files.exists(segment.indexFile)) {
+      segment.mapIndex();
+      segment.count = segment.index.getInt(8);
+      segment.firstTime = segment.index.getLong(24);
+      segment.lastTime = segment.index.getLong(32);
+      return segment;
+    }
+    MemoryIndex memory = new MemoryIndex();
+    int n = 0;
+    while (n < records && data.getLong(offset(n) + TIME) != 0) {
+      memory.add(memory.byDoor, data.getInt(offset(n) + DOOR), n);
+      memory.add(memory.byCredential, data.getInt(offset(n) + CREDENTIAL), n);
+      n++;
+    }
+    segment.memory = memory;
+    segment.count = n;
+    if (n > 0) {
+      segment.firstTime = data.getLong(offset(0) + TIME);
+      segment.lastTime = data.getLong(offset(n - 1) + TIME);
+    }
+    try {
+      segment.seal();
+    } catch (IOException e) {
+      logger.warn("Could not seal audit segment {}, its postings stay in memory: {}", number,
+          e.toString());
+    }
+    return segment;
+  }
+
+  private static int offset(int ordinal) {
+    return HEADER_BYTES + ordinal * RECORD_BYTES;
+  }
+
+  boolean isFull() {
+    return count == capacity;
+  }
+
+  /** Adds a record. Called by one thread at a time, with times that never go back. */
+  void append(long time, long dateTime, int credential, int door, int reasons, int action,
+              int state, int flags) {
+    int ordinal = count;
+    int offset = offset(ordinal);
+    MappedByteBuffer buffer = data;
+    buffer.putLong(offset + DATETIME, dateTime);
+    buffer.putInt(offset + CREDENTIAL, credential);
+    buffer.putInt(offset + DOOR, door);
+    buffer.putInt(offset + REASONS, reasons);
+    buffer.putShort(offset + ACTION, (short) action);
+    buffer.put(offset + STATE, (byte) state);
+    buffer.put(offset + FLAGS, (byte) flags);
+    buffer.putLong(offset + TIME, time); // last, the record is there only once complete
+    memory.add(memory.byDoor, door, ordinal);
+    memory.add(memory.byCredential, credential, ordinal);
+    if (ordinal == 0) {
+      firstTime = time;
+    }
+    lastTime = time;
+    count = ordinal + 1; // published
+  }
+
+  /**
+   * Once no more records will be appended: forces the records to disk and writes the
+   * index, with the count of records, through a temporary file so an index is there only
+   * whole. Queries go on with the postings in memory until the index is mapped.
+   * The data file keeps its size: it is still mapped, and a mapped file can't be cut on
+   * every system. The records never written are zeros, not on disk in a sparse file.
+   */
+  void seal() throws IOException {
+    data.force();
+    MemoryIndex postings = memory;
+    int[] doors = sortedKeys(postings.byDoor);
+    int[] credentials = sortedKeys(postings.byCredential);
+    Path temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+    try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(count);
+      out.writeInt(doors.length);
+      out.writeInt(credentials.length);
+      out.writeInt(0);
+      out.writeLong(firstTime);
+      out.writeLong(lastTime);
+      int offset = INDEX_HEADER_BYTES + TABLE_ENTRY_BYTES * (doors.length + credentials.length);
+      offset = writeTable(out, doors, postings.byDoor, offset);
+      writeTable(out, credentials, postings.byCredential, offset);
+      writePostings(out, doors, postings.byDoor);
+      writePostings(out, credentials, postings.byCredential);
+      out.flush();
+      file.getFD().sync();
+    }
+    Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    mapIndex();
+    memory = null; // after index is set, so a query sees one or the other
+  }
+
+  private static int[] sortedKeys(Map<Integer, IntList> postings) {
+    int[] keys = new int[postings.size()];
+    int i = 0;
+    for (int key : postings.keySet()) {
+      keys[i++] = key;
+    }
+    Arrays.sort(keys);
+    return keys;
+  }
+
+  private static int writeTable(DataOutputStream out, int[] keys, Map<Integer, IntList> postings,
+                                int offset) throws IOException {
+    for (int key : keys) {
+      int size = postings.get(key).snapshot().size();
+      out.writeInt(key);
+      out.writeInt(offset);
+      out.writeInt(size);
+      offset += 4 * size;
+    }
+    return offset;
+  }
+
+  private static void writePostings(DataOutputStream out, int[] keys,
+                                     Map<Integer, IntList> postings) throws IOException {
+    for (int key : keys) {
+      Postings list = postings.get(key).snapshot();
+      for (int i = 0; i < list.size(); i++) {
+        out.writeInt(list.get(i));
+      }
+    }
+  }
+
+  private void mapIndex() throws IOException {
+    try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (mapped.capacity() < INDEX_HEADER_BYTES || mapped.getInt(0) != INDEX_MAGIC
+          || mapped.getInt(4) != FORMAT_VERSION) {
+        throw new IOException(indexFile + " is not an audit index");
+      }
+      doorKeys = mapped.getInt(12);
+      index = mapped;
+    }
+  }
+
+  /** Forces the records appended so far to disk. */
+  void force() {
+    data.force();
+  }
+
+  int getCount() {
+    return count;
+  }
+
+  long getFirstTime() {
+    return firstTime;
+  }
+
+  long getLastTime() {
+    return lastTime;
+  }
+
+  /** The postings of a door, or of a credential if byDoor is false. */
+  Postings postings(boolean byDoor, int key) {
+    MemoryIndex inMemory = memory;
+    if (inMemory != null) {
+      IntList list = (byDoor ? inMemory.byDoor : inMemory.byCredential).get(key);
+      return list == null ? NONE : list.snapshot();
+    }
+    MappedByteBuffer mapped = index;
+    int from = byDoor ? 0 : doorKeys;
+    int to = byDoor ? doorKeys : doorKeys + mapped.getInt(16);
+    while (from < to) { // binary search of the table
+      int middle = (from + to) >>> 1;
+      int entry = INDEX_HEADER_BYTES + middle * TABLE_ENTRY_BYTES;
+      int found = mapped.getInt(entry);
+      if (found < key) {
+        from = middle + 1;
+      } else if (found > key) {
+        to = middle;
+      } else {
+        int start = mapped.getInt(entry + 4);
+        int size = mapped.getInt(entry + 8);
+        return new Postings() {
+          @Override
+          public int size() {
+            return size;
+          }
+
+          @Override
+          public int get(int i) {
+            return mapped.getInt(start + 4 * i);
+          }
+        };
+      }
+    }
+    return NONE;
+  }
+
+  /** The first record with a time not before the given one, getCount() if none. */
+  int lowerBound(long time) {
+    int from = 0;
+    int to = count;
+    while (from < to) {
+      int middle = (from + to) >>> 1;
+      if (time(middle) < time) {
+        from = middle + 1;
+      } else {
+        to = middle;
+      }
+    }
+    return from;
+  }
+
+  /** The first of the postings with a time not before the given one, size() if none. */
+  int lowerBound(Postings postings, long time) {
+    int from = 0;
+    int to = postings.size();
+    while (from < to) {
+      int middle = (from + to) >>> 1;
+      if (time(postings.get(middle)) < time) {
+        from = middle + 1;
+      } else {
+        to = middle;
+      }
+    }
+    return from;
+  }
+
+  long time(int ordinal) {
+    return data.getLong(offset(ordinal) + TIME);
+  }
+
+  long dateTime(int ordinal) {
+    return data.getLong(offset(ordinal) + DATETIME);
+  }
+
+  int credential(int ordinal) {
+    return data.getInt(offset(ordinal) + CREDENTIAL);
+  }
+
+  int door(int ordinal) {
+    return data.getInt(offset(ordinal) + DOOR);
+  }
+
+  int reasons(int ordinal) {
+    return data.getInt(offset(ordinal) + REASONS);
+  }
+
+  int action(int ordinal) {
+    return data.getShort(offset(ordinal) + ACTION) & 0xFFFF;
+  }
+
+  int state(int ordinal) {
+    return data.get(offset(ordinal) + STATE) & 0xFF;
+  }
+
+  int flags(int ordinal) {
+    return data.get(offset(ordinal) + FLAGS);
+  }
+}
@@ -0,0 +1,609 @@
+package baseNoStates;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Every door request as it was answered, who, which door, what action, whether it was
+ * authorized and why not, the state the door was left in, and when, kept on disk to
+ * answer questions like who went through D5 between 08:00 and 09:00 yesterday. Records
+ * have 32 bytes, the strings replaced by ids of a dictionary kept in dictionary.dat, and
+ * are appended under a short lock to memory mapped AuditSegment files. A segment has the
+ * records of one span of --audit.partitionMinutes (60), or of part of it, as it has at
+ * most --audit.segmentRecords (4M). Once its span ends or it is full, a sealer thread
+ * writes its index by door and by credential next to it.
+ *
+ * query() goes only to the segments of the time asked for and finds, in each, the
+ * first record of the doors or credential in that time by binary search of their
+ * postings, so it takes as long as the results take to write, not as long as there are
+ * records. Results are written as they are found, one JSON object per line.
+ *
+ * The time of a record is that of the server when it answered, so records are in
+ * order; the datetime the reader sent is in the results too. Credentials, doors and
+ * actions the building does not know are all recorded as "unknown", so requests made up
+ * by a client can't grow the dictionary without bound. One per building, see
+ * BuildingContext. Until open(), as in some benchmarks, requests are not recorded.
+ */
+public final class AuditStore {
+  private static final Logger logger = LoggerFactory.getLogger(AuditStore.class);
+  private static final String DICTIONARY_FILE = "dictionary.dat";
+  private static final int WRITE_CHUNK = 1 << 15; // chars of results written at once
+  // kinds of strings in the dictionary
+  private static final byte CREDENTIALS = 1;
+  private static final byte DOORS = 2;
+  private static final byte ACTIONS = 3;
+  private static final byte STATES = 4;
+  private static final byte REASONS = 5;
+  // what a credential, door or action not in the directories is recorded as
+  static final String UNKNOWN = "unknown";
+
+  private volatile boolean open = false;
+  private Path dir;
+  // of the building of the store, to tell known values from made up ones
+  private DirectoryUserGroups userGroups;
+  private DirectoryDoors doorDirectory;
+  private long partitionMillis;
+  private int segmentRecords;
+  private FileChannel dictionaryFile;
+  private final Dictionary credentials = new Dictionary(CREDENTIALS, Integer.MAX_VALUE);
+  private final Dictionary doors = new Dictionary(DOORS, Integer.MAX_VALUE);
+  private final Dictionary actions = new Dictionary(ACTIONS, 0xFFFF);
+  private final Dictionary states = new Dictionary(STATES, 0xFF);
+  private final Dictionary reasons = new Dictionary(REASONS, Integer.MAX_VALUE);
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // guarded by lock
+  private AuditSegment active;
+  private long lastTime = 0;
+  private long recorded = 0;
+  // oldest first, the active one last; replaced, never changed, so queries read it as is
+  private volatile List<AuditSegment> segments = new ArrayList<>();
+  private ExecutorService sealer;
+
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder sealed = new LongAdder();
+  private final LongAdder queries = new LongAdder();
+  private final LongAdder results = new LongAdder();
+
+  /**
+   * Made by BuildingContext, one per building.
+   * Use getInstance() to access the instance of the current building.
+   */
+  AuditStore() {}
+
+  /** The audit store of the building bound to the calling thread, see BuildingContext. */
+  public static AuditStore getInstance() {
+    return BuildingContext.current().getAuditStore();
+  }
+
+  /**
+   * Opens the segments in the directory, sealing those left unsealed, and starts
+   * recording in a new one.
+   */
+  public void open(Path dir) throws IOException {
+    if (open) {
+      return;
+    }
+    this.dir = dir;
+    userGroups = DirectoryUserGroups.getInstance();
+    doorDirectory = DirectoryDoors.getInstance();
+    partitionMillis = TimeUnit.MINUTES.toMillis(Math.max(1, Config.getLong("audit.partitionMinutes", 60)));
+    segmentRecords = (int) Math.min(AuditSegment.MAX_RECORDS,
+        Math.max(1, Config.getLong("audit.segmentRecords", 4 << 20)));
+    Files.createDirectories(dir);
+    loadDictionary();
+
+    List<AuditSegment> opened = new ArrayList<>();
+    long nextNumber = 1;
+    for (long number : listSegments()) {
+      nextNumber = number + 1;
+      try {
+        AuditSegment segment = AuditSegment.open(dir, number);
+        if (segment.getCount() == 0) { // the active one of a start without requests
+          Files.delete(AuditSegment.dataFile(dir, number));
+          Files.deleteIfExists(AuditSegment.indexFile(dir, number));
+          continue;
+        }
+        opened.add(segment);
+        lastTime = Math.max(lastTime, segment.getLastTime());
+        recorded += segment.getCount();
+      } catch (IOException e) {
+        logger.warn("Audit segment {} ignored: {}", number, e.toString());
+      }
+    }
+    long now = Math.max(System.currentTimeMillis(), lastTime);
+    active = AuditSegment.create(dir, nextNumber, partitionStart(now), segmentRecords);
+    opened.add(active);
+    segments = opened;
+
+    BuildingContext building = BuildingContext.current();
+    sealer = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = building.newThread(r, "audit-sealer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    open = true;
+    Runtime.getRuntime().addShutdownHook(building.newThread(this::forceAll, "audit-shutdown"));
+    logger.info("Audit store {}: {} records in {} segments, partitions of {} minutes",
+        dir.toAbsolutePath(), recorded, opened.size() - 1, partitionMillis / 60_000);
+  }
+
+  /**
+   * Adds the answer to a door request. Never fails the request: if the disk does, the
+   * record is lost and counted.
+   */
+  public void record(String credential, String doorId, String action, long epochMinute,
+                     boolean authorized, String state, boolean closed, List<String> reasonList) {
+    if (!open) {
+      return;
+    }
+    try {
+      int credentialId = credentials.idOf(
+          known(credential, userGroups.findUserByCredential(credential) != null));
+      int doorKey = doors.idOf(known(doorId, doorDirectory.findDoorById(doorId) != null));
+      // canonical, so "Open" and "open" are one
+      String canonicalAction = Actions.canonicalize(action);
+      int actionId = actions.idOf(canonicalAction != null ? canonicalAction : known(action, false));
+      int stateId = states.idOf(state);
+      int reasonsId = reasonList.isEmpty() ? 0 : reasons.idOf(String.join("\n", reasonList));
+      long swiped = epochMinute == EpochMinutes.NONE
+          ? AuditSegment.NO_DATETIME : epochMinute * 60;
+      int flags = (authorized ? AuditSegment.AUTHORIZED : 0) | (closed ? AuditSegment.CLOSED : 0);
+      lock.lock();
+      try {
+        // in order even if the clock of the system goes back
+        long time = Math.max(System.currentTimeMillis(), lastTime);
+        if (active.isFull() || time >= active.partitionStart + partitionMillis) {
+          roll(time);
+        }
+        active.append(time, swiped, credentialId, doorKey, reasonsId, actionId, stateId, flags);
+        lastTime = time;
+        recorded++;
+      } finally {
+        lock.unlock();
+      }
+    } catch (IllegalStateException e) {
+      failed.increment();
+      logger.warn("Could not record door request in audit store: {}", e.toString());
+    }
+  }
+
+  private static String known(String value, boolean exists) {
+    return value == null || exists ? value : UNKNOWN;
+  }
+
+  // Starts the next segment and has the last one sealed. Called with the lock held.
+  private void roll(long time) {
+    AuditSegment full = active;
+    try {
+      active = AuditSegment.create(dir, full.number + 1, partitionStart(time), segmentRecords);
+    } catch (IOException e) {
+      throw new IllegalStateException("could not make audit segment in " + dir, e);
+    }
+    List<AuditSegment> all = new ArrayList<>(segments);
+    all.add(active);
+    segments = all;
+    sealer.execute(() -> seal(full));
+  }
+
+  private void seal(AuditSegment segment) {
+    try {
+      segment.seal();
+      sealed.increment();
+    } catch (IOException e) {
+      // its postings stay in memory, it is sealed again at the next start
+      logger.error("Could not seal audit segment {}: {}", segment.number, e.toString());
+    }
+  }
+
+  private long partitionStart(long time) {
+    return time - Math.floorMod(time, partitionMillis);
+  }
+
+  private void forceAll() {
+    lock.lock();
+    try {
+      active.force();
+      dictionaryFile.force(false);
+    } catch (IOException e) {
+      logger.error("Could not force audit store {}: {}", dir, e.toString());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The requests answered in [fromMillis, toMillis), to any of the doors if doorIds is not
+   * null, by the credential if not null, and authorized or not if authorized is not null.
+   * They are written oldest first, at most limit of them, one JSON object per line while
+   * they are found, and then a line with "done": true, how many there were and whether
+   * there were more.
+   */
+  public StreamingBody query(long fromMillis, long toMillis, Collection<String> doorIds,
+                             String credential, Boolean authorized, long limit) {
+    queries.increment();
+    int[] doorKeys = null;
+    if (doorIds != null) {
+      doorKeys = doorIds.stream().mapToInt(doors::find).filter(key -> key > 0).distinct()
+          .sorted().toArray();
+    }
+    int credentialKey = credential == null ? 0 : credentials.find(credential);
+    // nothing to look for if the doors or credential were never recorded
+    boolean none = (doorKeys != null && doorKeys.length == 0)
+        || (credential != null && credentialKey == 0);
+    return new Query(none ? new ArrayList<>() : segments, fromMillis, toMillis, doorKeys,
+        credentialKey, authorized, limit);
+  }
+
+  // The search of query(), done while writing the answer
+  private final class Query implements StreamingBody {
+    private final List<AuditSegment> segments;
+    private final long fromMillis;
+    private final long toMillis;
+    private final int[] doorKeys; // sorted, null for all
+    private final int credentialKey; // 0 for all
+    private final Boolean authorized;
+    private final long limit;
+    private final StringBuilder lines = new StringBuilder(WRITE_CHUNK + 1024);
+    private OutputStream out;
+    private long matched = 0;
+    private boolean more = false;
+    private int searched = 0;
+    // requests in a row often have the same datetime, formatted once
+    private long lastDateTime = AuditSegment.NO_DATETIME;
+    private String lastDateTimeText = null;
+
+    Query(List<AuditSegment> segments, long fromMillis, long toMillis, int[] doorKeys,
+          int credentialKey, Boolean authorized, long limit) {
+      this.segments = segments;
+      this.fromMillis = fromMillis;
+      this.toMillis = toMillis;
+      this.doorKeys = doorKeys;
+      this.credentialKey = credentialKey;
+      this.authorized = authorized;
+      this.limit = limit;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      this.out = out;
+      long start = System.nanoTime();
+      for (AuditSegment segment : segments) {
+        int count = segment.getCount(); // first, the times are of the records up to it
+        if (more || segment.getFirstTime() >= toMillis && count > 0) {
+          break;
+        }
+        if (count == 0 || segment.getLastTime() < fromMillis) {
+          continue;
+        }
+        searched++;
+        if (doorKeys == null && credentialKey == 0) {
+          scan(segment, count);
+        } else {
+          merge(segment);
+        }
+      }
+      lines.append("{\"done\":true,\"results\":").append(matched)
+          .append(",\"more\":").append(more)
+          .append(",\"segmentsSearched\":").append(searched)
+          .append(",\"micros\":").append((System.nanoTime() - start) / 1000).append("}\n");
+      write();
+      out.flush();
+      results.add(matched);
+    }
+
+    // All the records of the time, in a row
+    private void scan(AuditSegment segment, int count) throws IOException {
+      for (int i = segment.lowerBound(fromMillis); i < count && !more; i++) {
+        if (segment.time(i) >= toMillis) {
+          return;
+        }
+        offer(segment, i, false, false);
+      }
+    }
+
+    // The postings of the doors merged in the order of the records, or those of the
+    // credential if it has fewer, filtered by door
+    private void merge(AuditSegment segment) throws IOException {
+      List<AuditSegment.Postings> lists = new ArrayList<>();
+      long doorRecords = 0;
+      if (doorKeys != null) {
+        for (int key : doorKeys) {
+          AuditSegment.Postings postings = segment.postings(true, key);
+          if (postings.size() > 0) {
+            lists.add(postings);
+            doorRecords += postings.size();
+          }
+        }
+      }
+      boolean filterDoor = false;
+      boolean filterCredential = false;
+      if (credentialKey != 0) {
+        AuditSegment.Postings postings = segment.postings(false, credentialKey);
+        if (doorKeys == null || postings.size() < doorRecords) {
+          lists.clear();
+          lists.add(postings);
+          filterDoor = doorKeys != null;
+        } else {
+          filterCredential = true;
+        }
+      }
+      PriorityQueue<Cursor> cursors = new PriorityQueue<>(Math.max(1, lists.size()));
+      for (AuditSegment.Postings postings : lists) {
+        Cursor cursor = new Cursor(postings, segment.lowerBound(postings, fromMillis));
+        if (cursor.next < postings.size()) {
+          cursors.add(cursor);
+        }
+      }
+      while (!cursors.isEmpty() && !more) {
+        Cursor cursor = cursors.poll();
+        int ordinal = cursor.ordinal();
+        if (segment.time(ordinal) >= toMillis) {
+          return; // the others are later
+        }
+        offer(segment, ordinal, filterDoor, filterCredential);
+        cursor.next++;
+        if (cursor.next < cursor.postings.size()) {
+          cursors.add(cursor);
+        }
+      }
+    }
+
+    private void offer(AuditSegment segment, int ordinal, boolean filterDoor,
+                       boolean filterCredential) throws IOException {
+      int flags = segment.flags(ordinal);
+      if (authorized != null && authorized != ((flags & AuditSegment.AUTHORIZED) != 0)
+          || filterDoor && Arrays.binarySearch(doorKeys, segment.door(ordinal)) < 0
+          || filterCredential && segment.credential(ordinal) != credentialKey) {
+        return;
+      }
+      if (matched == limit) {
+        more = true;
+        return;
+      }
+      matched++;
+      appendLine(segment, ordinal, flags);
+      if (lines.length() >= WRITE_CHUNK) {
+        write();
+      }
+    }
+
+    private void appendLine(AuditSegment segment, int ordinal, int flags) {
+      lines.append("{\"time\":").append(segment.time(ordinal));
+      long dateTime = segment.dateTime(ordinal);
+      if (dateTime != lastDateTime) {
+        lastDateTime = dateTime;
+        lastDateTimeText = dateTime == AuditSegment.NO_DATETIME
+            ? null : EpochMinutes.toString(Math.floorDiv(dateTime, 60));
+      }
+      lines.append(",\"datetime\":");
+      AccessLog.appendQuoted(lines, lastDateTimeText);
+      lines.append(",\"credential\":");
+      AccessLog.appendQuoted(lines, credentials.valueOf(segment.credential(ordinal)));
+      lines.append(",\"doorId\":");
+      AccessLog.appendQuoted(lines, doors.valueOf(segment.door(ordinal)));
+      lines.append(",\"action\":");
+      AccessLog.appendQuoted(lines, actions.valueOf(segment.action(ordinal)));
+      lines.append(",\"authorized\":").append((flags & AuditSegment.AUTHORIZED) != 0);
+      lines.append(",\"state\":");
+      AccessLog.appendQuoted(lines, states.valueOf(segment.state(ordinal)));
+      lines.append(",\"closed\":").append((flags & AuditSegment.CLOSED) != 0);
+      lines.append(",\"reasons\":[");
+      String why = reasons.valueOf(segment.reasons(ordinal));
+      if (why != null) {
+        int from = 0;
+        for (int to = why.indexOf('\n'); to >= 0; to = why.indexOf('\n', from)) {
+          AccessLog.appendQuoted(lines, why.substring(from, to));
+          lines.append(',');
+          from = to + 1;
+        }
+        AccessLog.appendQuoted(lines, why.substring(from));
+      }
+      lines.append("]}\n");
+    }
+
+    private void write() throws IOException {
+      out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+      lines.setLength(0);
+    }
+  }
+
+  // Where a merge is in the postings of a door or credential
+  private static final class Cursor implements Comparable<Cursor> {
+    final AuditSegment.Postings postings;
+    int next;
+
+    Cursor(AuditSegment.Postings postings, int next) {
+      this.postings = postings;
+      this.next = next;
+    }
+
+    int ordinal() {
+      return postings.get(next);
+    }
+
+    @Override
+    public int compareTo(Cursor other) {
+      return Integer.compare(ordinal(), other.ordinal());
+    }
+  }
+
+  // The strings of one field, each with the id records have instead, from 1; 0 is null.
+  // New ones are added to the dictionary file before any record has their id.
+  private final class Dictionary {
+    private final byte kind;
+    private final int maxId;
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[64];
+    private int size = 1; // guarded by this
+
+    Dictionary(byte kind, int maxId) {
+      this.kind = kind;
+      this.maxId = maxId;
+    }
+
+    int idOf(String value) {
+      if (value == null) {
+        return 0;
+      }
+      Integer id = ids.get(value);
+      return id != null ? id : add(value);
+    }
+
+    /** The id of the value if it was ever recorded, 0 if not. */
+    int find(String value) {
+      Integer id = ids.get(value);
+      return id == null ? 0 : id;
+    }
+
+    private synchronized int add(String value) {
+      Integer id = ids.get(value);
+      if (id != null) {
+        return id;
+      }
+      if (size > maxId) {
+        return 0; // recorded as null, not to overflow the field of the record
+      }
+      int newId = size;
+      writeDictionaryEntry(kind, newId, value);
+      put(newId, value);
+      return newId;
+    }
+
+    // values is published before the id can be found, and so before any record has it
+    synchronized void put(int id, String value) {
+      String[] array = values;
+      if (id >= array.length) {
+        array = Arrays.copyOf(array, Math.max(array.length * 2, id + 1));
+      }
+      array[id] = value;
+      values = array;
+      ids.put(value, id);
+      size = Math.max(size, id + 1);
+    }
+
+    String valueOf(int id) {
+      String[] array = values;
+      return id > 0 && id < array.length ? array[id] : null;
+    }
+
+    int size() {
+      return ids.size();
+    }
+  }
+
+  // Entries of kind, id, length and UTF-8 bytes
+  private synchronized void writeDictionaryEntry(byte kind, int id, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    int length = Math.min(bytes.length, 0xFFFF);
+    ByteBuffer entry = ByteBuffer.allocate(7 + length);
+    entry.put(kind).putInt(id).putShort((short) length).put(bytes, 0, length).flip();
+    try {
+      while (entry.hasRemaining()) {
+        dictionaryFile.write(entry);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("could not write audit dictionary in " + dir, e);
+    }
+  }
+
+  // Reads the entries up to the last whole one, and cuts there what a crash may have left
+  private void loadDictionary() throws IOException {
+    Path file = dir.resolve(DICTIONARY_FILE);
+    dictionaryFile = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    MappedByteBuffer in = dictionaryFile.map(FileChannel.MapMode.READ_ONLY, 0, dictionaryFile.size());
+    int end = 0;
+    while (in.remaining() >= 7) {
+      byte kind = in.get();
+      int id = in.getInt();
+      int length = in.getShort() & 0xFFFF;
+      if (length > in.remaining()) {
+        break;
+      }
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      Dictionary dictionary = dictionary(kind);
+      if (dictionary != null) {
+        dictionary.put(id, new String(bytes, StandardCharsets.UTF_8));
+      }
+      end = in.position();
+    }
+    dictionaryFile.truncate(end);
+    dictionaryFile.position(end);
+  }
+
+  private Dictionary dictionary(byte kind) {
+    switch (kind) {
+      case CREDENTIALS:
+        return credentials;
+      case DOORS:
+        return doors;
+      case ACTIONS:
+        return actions;
+      case STATES:
+        return states;
+      case REASONS:
+        return reasons;
+      default:
+        return null;
+    }
+  }
+
+  private List<Long> listSegments() throws IOException {
+    List<Long> numbers = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*.dat")) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          numbers.add(Long.parseLong(name.substring("segment-".length(), name.length() - 4)));
+        } catch (NumberFormatException e) {
+          logger.warn("Ignoring {} in the audit directory", name);
+        }
+      }
+    }
+    numbers.sort(null);
+    return numbers;
+  }
+
+  public JSONObject toJson() {
+    JSONObject json = new JSONObject();
+    json.put("open", open);
+    lock.lock();
+    try {
+      json.put("records", recorded);
+    } finally {
+      lock.unlock();
+    }
+    json.put("segments", segments.size());
+    json.put("sealed", sealed.sum());
+    json.put("failed", failed.sum());
+    json.put("credentials", credentials.size());
+    json.put("doors", doors.size());
+    json.put("queries", queries.sum());
+    json.put("results", results.sum());
+    return json;
+  }
+}
@@ -0,0 +1,207 @@
+package baseNoStates;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONObject;
+
+/**
+ * Recent authorization decisions of reader requests, so that a badge swiped again and
+ * again at the same door skips the whole check (spaces of the door, schedule, space
+ * and action permissions). The key is credential, door, action and minute, the
+ * resolution of schedules, so a cached decision is never applied to another minute.
+ * Bounded: the cache is split in stripes, each one a LinkedHashMap in access order
+ * that drops its least recently used entry when full.
+ * It observes DirectoryUserGroups, DirectoryAreas and DirectoryDoors: any change of
+ * users, groups, topology or the set of doors invalidates every decision at once by
+ * moving to a new generation. Door state changes aren't told to observers, decisions
+ * don't depend on them.
+ */
+public final class AuthorizationCache implements Observer {
+  private static final int STRIPES = 16;
+
+  private final boolean enabled = Config.getBoolean("authCache.enabled", true);
+  private final int capacity = Config.getInt("authCache.size", 16384);
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  // decisions made in an older generation are stale
+  private final AtomicLong generation = new AtomicLong();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+
+  /** The outcome of an authorization: allowed, or denied and why. */
+  public static final class Decision {
+    private final boolean authorized;
+    private final String reason;
+    private final long generation;
+
+    private Decision(boolean authorized, String reason, long generation) {
+      this.authorized = authorized;
+      this.reason = reason;
+      this.generation = generation;
+    }
+
+    public boolean isAuthorized() {
+      return authorized;
+    }
+
+    /** Why it was denied, null if authorized. */
+    public String getReason() {
+      return reason;
+    }
+  }
+
+  private static final class Key {
+    private final String credential;
+    private final String doorId;
+    private final String action;
+    private final long epochMinute;
+
+    Key(String credential, String doorId, String action, long epochMinute) {
+      this.credential = credential;
+      this.doorId = doorId;
+      this.action = action;
+      this.epochMinute = epochMinute;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return epochMinute == other.epochMinute && Objects.equals(credential, other.credential)
+          && Objects.equals(doorId, other.doorId) && Objects.equals(action, other.action);
+    }
+
+    @Override
+    public int hashCode() {
+      int h = Objects.hashCode(credential);
+      h = 31 * h + Objects.hashCode(doorId);
+      h = 31 * h + Objects.hashCode(action);
+      return 31 * h + Long.hashCode(epochMinute);
+    }
+  }
+
+  private final class Stripe extends LinkedHashMap<Key, Decision> {
+    private static final long serialVersionUID = 1L;
+    private final int maxEntries;
+
+    Stripe(int maxEntries) {
+      super(16, 0.75f, true); // access order, so the eldest is the least recently used
+      this.maxEntries = maxEntries;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Decision> eldest) {
+      if (size() > maxEntries) {
+        evictions.increment();
+        return true;
+      }
+      return false;
+    }
+  }
+
+  AuthorizationCache() {
+    int perStripe = Math.max(1, capacity / STRIPES);
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe(perStripe);
+    }
+    DirectoryUserGroups.getInstance().addObserver(this);
+    DirectoryAreas.getInstance().addObserver(this);
+    DirectoryDoors.getInstance().addObserver(this);
+  }
+
+  public static AuthorizationCache getInstance() {
+    return BuildingContext.current().getAuthorizationCache();
+  }
+
+  /** The cached decision, or null if there is none still valid. */
+  public Decision get(String credential, String doorId, String action, long epochMinute) {
+    if (!enabled) {
+      return null;
+    }
+    Key key = new Key(credential, doorId, action, epochMinute);
+    Stripe stripe = stripeOf(key);
+    Decision decision;
+    synchronized (stripe) {
+      decision = stripe.get(key);
+    }
+    if (decision == null || decision.generation != generation.get()) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return decision;
+  }
+
+  /** Current generation, to be read before deciding and passed to put(). */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Remembers a decision made with the directories as they were at the given generation.
+   * If they have changed meanwhile, the decision is not cached.
+   */
+  public void put(String credential, String doorId, String action, long epochMinute,
+                  boolean authorized, String reason, long decidedAt) {
+    if (!enabled || decidedAt != generation.get()) {
+      return;
+    }
+    Key key = new Key(credential, doorId, action, epochMinute);
+    Stripe stripe = stripeOf(key);
+    synchronized (stripe) {
+      stripe.put(key, new Decision(authorized, reason, decidedAt));
+    }
+  }
+
+  private Stripe stripeOf(Key key) {
+    int h = key.hashCode();
+    return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+  }
+
+  // Users, groups, areas or the set of doors have changed
+  @Override
+  public void update(Observable o, Object arg) {
+    invalidateAll();
+  }
+
+  public void invalidateAll() {
+    generation.incrementAndGet();
+    invalidations.increment();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.clear();
+      }
+    }
+  }
+
+  public JSONObject toJson() {
+    long hitCount = hits.sum();
+    long missCount = misses.sum();
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    JSONObject json = new JSONObject();
+    json.put("enabled", enabled);
+    json.put("capacity", capacity);
+    json.put("size", size);
+    json.put("hits", hitCount);
+    json.put("misses", missCount);
+    json.put("hitRatio", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+    json.put("evictions", evictions.sum());
+    json.put("invalidations", invalidations.sum());
+    json.put("generation", generation.get());
+    return json;
+  }
+}
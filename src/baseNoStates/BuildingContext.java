@@ -0,0 +1,214 @@
+package baseNoStates;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One building, or site, served by this process: its own directories of doors, areas
+ * and user groups, and what works on them, the authorization cache, the /refresh and
+ * /events answers, the door executor, the timing wheel, the door journal and the audit
+ * store. The rest is shared by all the buildings of the process: the web server, the
+ * load limits of its admission control (its rate limits are per building), the access
+ * log, the metrics, the request traces, the connection stats and the fork-join pool of
+ * area requests, whose tasks bind the building of their request while they run.
+ *
+ * The classes above keep their getInstance(), which now gives the instance of the
+ * current building: the one bound to the calling thread. The web server binds the
+ * building of each request while serving it (/buildings/{id}/reader?..., or the default
+ * building, the first one made, without that prefix). The threads a building starts,
+ * its door workers, timing wheel, snapshot writer, journal committer and audit sealer, are
+ * bound to it for good. Only in ACTOR mode (see DoorExecutor) are the door changes of a
+ * building all made by its own workers; in the default DIRECT mode they are made by the
+ * threads serving its requests.
+ */
+public final class BuildingContext {
+  private static final Logger logger = LoggerFactory.getLogger(BuildingContext.class);
+  private static final Map<String, BuildingContext> contexts = new ConcurrentHashMap<>();
+  private static final List<BuildingContext> ordered = new ArrayList<>();
+  private static final ThreadLocal<BuildingContext> current = new ThreadLocal<>();
+  private static volatile BuildingContext defaultContext = null;
+
+  private final String id;
+  private final Component<DirectoryDoors> doors = new Component<>(DirectoryDoors::new);
+  private final Component<DirectoryAreas> areas = new Component<>(DirectoryAreas::new);
+  private final Component<DirectoryUserGroups> userGroups =
+      new Component<>(DirectoryUserGroups::new);
+  private final Component<AuthorizationCache> authorizationCache =
+      new Component<>(AuthorizationCache::new);
+  private final Component<RefreshSnapshot> refreshSnapshot = new Component<>(RefreshSnapshot::new);
+  private final Component<DoorEventStream> eventStream = new Component<>(DoorEventStream::new);
+  private final Component<DoorExecutor> doorExecutor = new Component<>(DoorExecutor::new);
+  private final Component<TimingWheel> timingWheel = new Component<>(TimingWheel::new);
+  private final Component<DoorJournal> doorJournal = new Component<>(DoorJournal::new);
+  private final Component<AuditStore> auditStore = new Component<>(AuditStore::new);
+
+  // Made the first time it is needed, with the building bound to the thread making it,
+  // as it may look for other components of the building
+  private final class Component<T> {
+    private final Supplier<T> factory;
+    private volatile T instance;
+
+    Component(Supplier<T> factory) {
+      this.factory = factory;
+    }
+
+    T get() {
+      T result = instance;
+      if (result == null) {
+        synchronized (BuildingContext.this) {
+          result = instance;
+          if (result == null) {
+            result = call(factory);
+            instance = result;
+          }
+        }
+      }
+      return result;
+    }
+  }
+
+  private BuildingContext(String id) {
+    this.id = id;
+  }
+
+  /** Makes the context of a new building. The first one made is the default building. */
+  public static synchronized BuildingContext create(String id) {
+    if (contexts.containsKey(id)) {
+      throw new IllegalArgumentException("building " + id + " already exists");
+    }
+    BuildingContext context = new BuildingContext(id);
+    contexts.put(id, context);
+    ordered.add(context);
+    if (defaultContext == null) {
+      defaultContext = context;
+    }
+    logger.info("Building {} created", id);
+    return context;
+  }
+
+  /** The building with this id, null if there is none. */
+  public static BuildingContext get(String id) {
+    return contexts.get(id);
+  }
+
+  /** The building of requests that don't name one, made with id "default" if none was. */
+  public static BuildingContext getDefault() {
+    BuildingContext context = defaultContext;
+    if (context == null) {
+      synchronized (BuildingContext.class) {
+        context = defaultContext;
+        if (context == null) {
+          context = create("default");
+        }
+      }
+    }
+    return context;
+  }
+
+  public static synchronized List<BuildingContext> getAll() {
+    return new ArrayList<>(ordered);
+  }
+
+  /** The building bound to the calling thread, or the default one. */
+  public static BuildingContext current() {
+    BuildingContext context = current.get();
+    return context != null ? context : getDefault();
+  }
+
+  /**
+   * Binds this building to the calling thread and returns the one that was bound before,
+   * to be given back to exit().
+   */
+  public BuildingContext enter() {
+    BuildingContext previous = current.get();
+    current.set(this);
+    return previous;
+  }
+
+  public static void exit(BuildingContext previous) {
+    if (previous == null) {
+      current.remove();
+    } else {
+      current.set(previous);
+    }
+  }
+
+  /** Runs the code with this building bound to the calling thread. */
+  public <T> T call(Supplier<T> code) {
+    BuildingContext previous = enter();
+    try {
+      return code.get();
+    } finally {
+      exit(previous);
+    }
+  }
+
+  public void run(Runnable code) {
+    call(() -> {
+      code.run();
+      return null;
+    });
+  }
+
+  /** A thread bound to this building for all its life, named after it. */
+  public Thread newThread(Runnable code, String name) {
+    return new Thread(() -> {
+      current.set(this);
+      code.run();
+    }, id + "-" + name);
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public DirectoryDoors getDoors() {
+    return doors.get();
+  }
+
+  public DirectoryAreas getAreas() {
+    return areas.get();
+  }
+
+  public DirectoryUserGroups getUserGroups() {
+    return userGroups.get();
+  }
+
+  public AuthorizationCache getAuthorizationCache() {
+    return authorizationCache.get();
+  }
+
+  public RefreshSnapshot getRefreshSnapshot() {
+    return refreshSnapshot.get();
+  }
+
+  public DoorEventStream getEventStream() {
+    return eventStream.get();
+  }
+
+  public DoorExecutor getDoorExecutor() {
+    return doorExecutor.get();
+  }
+
+  public TimingWheel getTimingWheel() {
+    return timingWheel.get();
+  }
+
+  public DoorJournal getDoorJournal() {
+    return doorJournal.get();
+  }
+
+  public AuditStore getAuditStore() {
+    return auditStore.get();
+  }
+
+  @Override
+  public String toString() {
+    return "BuildingContext{" + id + "}";
+  }
+}
@@ -0,0 +1,50 @@
+package baseNoStates;
+
+/**
+ * Startup options of the server.
+ * Every option is a system property with the prefix "acs." and can also be given
+ * as a program argument of the form --name=value (for instance --server=virtual).
+ * Keeping them in one place avoids magic numbers spread across the codebase.
+ */
+public final class Config {
+  private static final String PREFIX = "acs.";
+
+  private Config() {}
+
+  /**
+   * Copies the program arguments of the form --name=value into system properties.
+   * Other arguments are ignored.
+   */
+  public static void loadArgs(String[] args) {
+    for (String arg : args) {
+      if (!arg.startsWith("--")) {
+        continue;
+      }
+      int eq = arg.indexOf('=');
+      if (eq < 0) {
+        System.setProperty(PREFIX + arg.substring(2), "true");
+      } else {
+        System.setProperty(PREFIX + arg.substring(2, eq), arg.substring(eq + 1));
+      }
+    }
+  }
+
+  public static String getString(String name, String defaultValue) {
+    return System.getProperty(PREFIX + name, defaultValue);
+  }
+
+  public static int getInt(String name, int defaultValue) {
+    String value = System.getProperty(PREFIX + name);
+    return value == null ? defaultValue : Integer.parseInt(value.trim());
+  }
+
+  public static long getLong(String name, long defaultValue) {
+    String value = System.getProperty(PREFIX + name);
+    return value == null ? defaultValue : Long.parseLong(value.trim());
+  }
+
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    String value = System.getProperty(PREFIX + name);
+    return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+  }
+}
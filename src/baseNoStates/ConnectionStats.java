@@ -0,0 +1,90 @@
+package baseNoStates;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONObject;
+
+/**
+ * Counters of the connections handled by the web server.
+ * Singleton so that the server and the request reporting them share the same numbers.
+ * All counters are atomic because every connection updates them from its own thread.
+ */
+public final class ConnectionStats {
+  private static ConnectionStats uniqueInstance = null;
+
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong idleTimeouts = new AtomicLong();
+
+  private ConnectionStats() {}
+
+  public static synchronized ConnectionStats getInstance() {
+    if (uniqueInstance == null) {
+      uniqueInstance = new ConnectionStats();
+    }
+    return uniqueInstance;
+  }
+
+  public void connectionAccepted() {
+    accepted.incrementAndGet();
+  }
+
+  public void connectionOpened() {
+    active.incrementAndGet();
+  }
+
+  public void connectionClosed() {
+    active.decrementAndGet();
+  }
+
+  public void connectionRejected() {
+    rejected.incrementAndGet();
+  }
+
+  public void requestServed() {
+    requests.incrementAndGet();
+  }
+
+  public void idleTimeout() {
+    idleTimeouts.incrementAndGet();
+  }
+
+  public long getAccepted() {
+    return accepted.get();
+  }
+
+  public int getActive() {
+    return active.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public long getIdleTimeouts() {
+    return idleTimeouts.get();
+  }
+
+  public JSONObject toJson() {
+    JSONObject json = new JSONObject();
+    json.put("accepted", getAccepted());
+    json.put("active", getActive());
+    json.put("rejected", getRejected());
+    json.put("requests", getRequests());
+    json.put("idleTimeouts", getIdleTimeouts());
+    return json;
+  }
+
+  @Override
+  public String toString() {
+    return "ConnectionStats{accepted=" + getAccepted() + ", active=" + getActive()
+        + ", rejected=" + getRejected() + ", requests=" + getRequests()
+        + ", idleTimeouts=" + getIdleTimeouts() + "}";
+  }
+}
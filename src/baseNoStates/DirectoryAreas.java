@@ -1,6 +1,8 @@
 package baseNoStates;
 
+import java.util.Map;
 import java.util.Observable;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * DirectoryAreas - Singleton Observable pattern implementation
@@ -14,29 +16,32 @@ import java.util.Observable;
  * - Consistency: Prevents multiple conflicting area structures from existing
  * - Resource efficiency: Building hierarchy is created and maintained only once
  * - Global access point: Any component can access area information through getInstance()
+ * - One per building: getInstance() is the single instance of the building being served
+ *   (see BuildingContext), several sites can share one process
  */
 public final class DirectoryAreas extends Observable {
-  // Unique instance - only one DirectoryAreas exists in the application
-  private static DirectoryAreas uniqueInstance = null;
-
   // Root of the area hierarchy tree
   private Partition rootArea;
 
+  // Incremented each time the spaces are numbered again, so that what was computed
+  // from their indexes (like the space bitsets of user groups) knows it must be redone
+  private volatile long topologyVersion = 0;
+  private int numSpaces = 0;
+  // every area of the hierarchy by id, so finding one doesn't walk the tree
+  private volatile Map<String, Area> areasById = new ConcurrentHashMap<>();
+
   /**
-   * Private constructor prevents direct instantiation.
-   * Use getInstance() to access the singleton instance.
+   * Made by BuildingContext, one per building.
+   * Use getInstance() to access the instance of the current building.
    */
-  private DirectoryAreas() {}
+  DirectoryAreas() {}
 
   /**
-   * Returns the singleton instance of DirectoryAreas.
-   * Creates the instance on first call (lazy initialization).
+   * Returns the instance of DirectoryAreas of the building bound to the calling thread,
+   * see BuildingContext. It is created on first call (lazy initialization).
    */
   public static DirectoryAreas getInstance() {
-    if (uniqueInstance == null) {
-      uniqueInstance = new DirectoryAreas();
-    }
-    return uniqueInstance;
+    return BuildingContext.current().getAreas();
   }
 
   /**
@@ -109,6 +114,7 @@ public final class DirectoryAreas extends Observable {
     link("D9", corridor, it);
 
     rootArea = building;
+    indexAreas();
 
     // Notify observers that the area hierarchy has been created
     setChanged();
@@ -116,8 +122,64 @@ public final class DirectoryAreas extends Observable {
   }
 
   /**
-   * Finds an area by its unique identifier using the Visitor pattern.
-   * Searches recursively through the entire area hierarchy.
+   * Replaces the hierarchy by the one read from a DirectorySnapshot, instead of makeAreas().
+   * Doors are already linked to their spaces.
+   */
+  public void installAreas(Partition root) {
+    rootArea = root;
+    indexAreas();
+    setChanged();
+    notifyObservers("areas_loaded");
+  }
+
+  /**
+   * Number of spaces in the hierarchy, Space.getIndex() is below it.
+   */
+  public int getNumSpaces() {
+    return numSpaces;
+  }
+
+  /**
+   * Changes each time spaces are numbered again.
+   */
+  public long getTopologyVersion() {
+    return topologyVersion;
+  }
+
+  // Indexes areas by id and gives every space its dense number, in traversal order
+  private synchronized void indexAreas() {
+    IndexAreasVisitor visitor = new IndexAreasVisitor();
+    if (rootArea != null) {
+      rootArea.accept(visitor);
+    }
+    areasById = new ConcurrentHashMap<>(visitor.getAreasById());
+    numSpaces = visitor.getNumSpaces();
+    topologyVersion++;
+  }
+
+  /**
+   * Adds an area, possibly with children already, under a partition of the hierarchy.
+   * Only the new areas are indexed, existing spaces keep their numbers.
+   * Ids are unique, one already in the hierarchy is an IllegalArgumentException.
+   */
+  public synchronized void addArea(Partition parent, Area area) {
+    IndexAreasVisitor visitor = new IndexAreasVisitor(numSpaces);
+    area.accept(visitor);
+    for (String id : visitor.getAreasById().keySet()) {
+      if (areasById.containsKey(id)) {
+        throw new IllegalArgumentException("area " + id + " already exists");
+      }
+    }
+    parent.addChild(area);
+    areasById.putAll(visitor.getAreasById());
+    numSpaces = visitor.getNumSpaces();
+    topologyVersion++; // groups having the parent must now have the new spaces too
+    setChanged();
+    notifyObservers(area);
+  }
+
+  /**
+   * Finds an area by its unique identifier, in the index of areas by id.
    */
   public Area findAreaById(String id) {
     if (id == null) return null;
@@ -125,11 +187,7 @@ public final class DirectoryAreas extends Observable {
     if (id.equals("ROOT")) {
       return rootArea;
     }
-    // Use Visitor pattern to traverse the area tree
-    if (rootArea == null) return null;
-    FindAreaVisitor visitor = new FindAreaVisitor(id);
-    rootArea.accept(visitor);
-    return visitor.getFoundArea();
+    return areasById.get(id);
   }
 
   /**
@@ -141,8 +199,8 @@ public final class DirectoryAreas extends Observable {
     Door d = DirectoryDoors.getInstance().findDoorById(doorId);
     if (d == null) throw new IllegalStateException("Puerta no encontrada: " + doorId);
 
-    d.setFromSpace(from.getId());
-    d.setToSpace(to.getId());
+    d.setFromSpace(from);
+    d.setToSpace(to);
 
     to.addDoorGivingAccess(d);
   }
@@ -152,6 +210,7 @@ public final class DirectoryAreas extends Observable {
    * Used for reactive updates when area state is modified.
    */
   public void notifyAreaChanged(Area area) {
+    indexAreas(); // children may have been added or removed
     setChanged();
     notifyObservers(area);
   }
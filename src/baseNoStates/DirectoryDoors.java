@@ -1,8 +1,13 @@
 package baseNoStates;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Observable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * DirectoryDoors - Singleton Observable pattern implementation
@@ -16,31 +21,61 @@ import java.util.Observable;
  * - Consistency: Prevents multiple conflicting door lists from existing
  * - Resource efficiency: Door collection is created and maintained only once
  * - Global access point: Any component can access door information through getInstance()
+ * - One per building: getInstance() is the single instance of the building being served
+ *   (see BuildingContext), several sites can share one process
  */
 public final class DirectoryDoors extends Observable {
-  // Unique instance - only one DirectoryDoors exists in the application
-  private static DirectoryDoors uniqueInstance = null;
+  // All doors in the system, replaced as a whole when they are made or installed, so
+  // readers never lock and always see a consistent array and index
+  private volatile Registry registry = new Registry(new Door[0], new HashMap<>());
 
-  // Collection of all doors in the system
-  private ArrayList<Door> allDoors;
+  // Incremented on every door change, and when the doors are replaced, so it numbers the
+  // changes in the order they happened
+  private final AtomicLong version = new AtomicLong();
+  // told of every door change, without any lock, see addDoorListener
+  private final List<DoorListener> doorListeners = new CopyOnWriteArrayList<>();
 
   /**
-   * Private constructor prevents direct instantiation.
-   * Use getInstance() to access the singleton instance.
+   * Told of each change of a door, on the thread that made it, with the word the door
+   * changed to (see DoorState) and the number of the change. Changes of different doors,
+   * or of the same door from different threads, may be told at the same time and not in
+   * the order of their numbers, so the door may already be in another state.
    */
-  private DirectoryDoors() {
-    allDoors = new ArrayList<>();
+  public interface DoorListener {
+    void doorChanged(Door door, long word, long version);
+
+    /** All the doors have been replaced, by makeDoors() or installDoors(), as change version. */
+    default void doorsReplaced(long version) {}
   }
 
   /**
-   * Returns the singleton instance of DirectoryDoors.
-   * Creates the instance on first call (lazy initialization).
+   * Made by BuildingContext, one per building.
+   * Use getInstance() to access the instance of the current building.
    */
-  public static DirectoryDoors getInstance() {
-    if (uniqueInstance == null) {
-      uniqueInstance = new DirectoryDoors();
+  DirectoryDoors() {}
+
+  /**
+   * Doors by handle, a dense number from 0 that is their position in the array,
+   * and the handle of each door id.
+   */
+  private static final class Registry {
+    final Door[] doors;
+    final List<Door> doorList;
+    final Map<String, Integer> handles;
+
+    Registry(Door[] doors, Map<String, Integer> handles) {
+      this.doors = doors;
+      this.doorList = Collections.unmodifiableList(Arrays.asList(doors));
+      this.handles = handles;
     }
-    return uniqueInstance;
+  }
+
+  /**
+   * Returns the instance of DirectoryDoors of the building bound to the calling thread,
+   * see BuildingContext. It is created on first call (lazy initialization).
+   */
+  public static DirectoryDoors getInstance() {
+    return BuildingContext.current().getDoors();
   }
 
   /**
@@ -64,7 +99,8 @@ public final class DirectoryDoors extends Observable {
     Door d8 = new Door("D8"); // corridor, room3
     Door d9 = new Door("D9"); // corridor, IT
 
-    allDoors = new ArrayList<>(Arrays.asList(d1, d2, d3, d4, d5, d6, d7, d8, d9));
+    registry = makeRegistry(Arrays.asList(d1, d2, d3, d4, d5, d6, d7, d8, d9));
+    notifyDoorsReplaced();
 
     // Notify observers that doors have been created
     setChanged();
@@ -72,32 +108,102 @@ public final class DirectoryDoors extends Observable {
   }
 
   /**
-   * Finds a door by its unique identifier.
+   * Replaces the doors by those read from a DirectorySnapshot, instead of makeDoors().
    */
-  public Door findDoorById(String id) {
-    for (Door door : allDoors) {
-      if (door.getId().equals(id)) {
-        return door;
+  public void installDoors(List<Door> doors) {
+    registry = makeRegistry(doors);
+    notifyDoorsReplaced();
+    // the restored states start their timers now that the doors have their handles
+    for (Door door : doors) {
+      door.resumeStateTimer();
+    }
+    setChanged();
+    notifyObservers("doors_loaded");
+  }
+
+  private static Registry makeRegistry(List<Door> doorList) {
+    Door[] doors = doorList.toArray(new Door[0]);
+    Map<String, Integer> handles = new HashMap<>(doors.length * 4 / 3 + 1);
+    for (int handle = 0; handle < doors.length; handle++) {
+      doors[handle].setHandle(handle);
+      if (handles.put(doors[handle].getId(), handle) != null) {
+        throw new IllegalArgumentException("door " + doors[handle].getId() + " appears twice");
       }
     }
-    System.out.println("door with id " + id + " not found");
-    return null;
+    return new Registry(doors, handles);
   }
 
   /**
-   * Gets the complete list of all doors in the system.
+   * Finds a door by its unique identifier, null if there is none.
    */
-  public ArrayList<Door> getAllDoors() {
-    System.out.println(allDoors);
-    return allDoors;
+  public Door findDoorById(String id) {
+    Registry current = registry;
+    Integer handle = id == null ? null : current.handles.get(id);
+    return handle == null ? null : current.doors[handle];
   }
 
   /**
-   * Notifies observers that a specific door has changed state.
-   * Used for reactive updates when door state is modified.
+   * The door with this handle, see Door.getHandle().
    */
-  public void notifyDoorChanged(Door door) {
+  public Door getDoor(int handle) {
+    return registry.doors[handle];
+  }
+
+  /**
+   * Number of doors, handles go from 0 to this minus 1.
+   */
+  public int getNumDoors() {
+    return registry.doors.length;
+  }
+
+  /**
+   * Gets the complete list of all doors in the system, in handle order.
+   * It is a read-only view of the doors at the time of the call.
+   */
+  public List<Door> getAllDoors() {
+    return registry.doorList;
+  }
+
+  /**
+   * Number of door changes so far, counting each replacement of the doors as one, so that
+   * the ETag of /refresh changes with them. Listeners told of a change get its number.
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Adds a listener of door changes. The observers of the directory are told only when
+   * the set of doors is made or replaced, not of each change, so that doors changing from
+   * many threads don't wait for each other on the monitor of an Observable.
+   */
+  public void addDoorListener(DoorListener listener) {
+    doorListeners.add(listener);
+  }
+
+  /**
+   * Tells the observers that a setting of a door, not its state, has changed.
+   */
+  public void notifyDoorSettingsChanged(Door door) {
     setChanged();
     notifyObservers(door);
   }
-}
\ No newline at end of file
+
+  /**
+   * Tells the listeners that a specific door has changed to the given word, with a new
+   * number.
+   */
+  public void notifyDoorChanged(Door door, long word) {
+    long changeVersion = version.incrementAndGet();
+    for (DoorListener listener : doorListeners) {
+      listener.doorChanged(door, word, changeVersion);
+    }
+  }
+
+  private void notifyDoorsReplaced() {
+    long changeVersion = version.incrementAndGet();
+    for (DoorListener listener : doorListeners) {
+      listener.doorsReplaced(changeVersion);
+    }
+  }
+}
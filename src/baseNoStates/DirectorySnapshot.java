@@ -0,0 +1,529 @@
+package baseNoStates;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary image of the three directories: doors with their current state, the area
+ * hierarchy with the doors giving access to each space, schedules, user groups and users.
+ * At boot the file is memory mapped and decoded in one sequential pass, every reference
+ * being an index into what was already read, so there are no lookups by id and no
+ * visitor traversals as when the directories are made from code. While the server runs
+ * the file is rewritten shortly after users, groups, areas or the set of doors change:
+ * the file is replaced atomically and has a checksum. The changes of state of the doors
+ * go to the DoorJournal instead, for which each image is a checkpoint, so an image is
+ * also written once --snapshot.checkpointRecords (100000) changes have been journaled
+ * since the last one, to keep the replay at boot short. Without a journal, every door
+ * change marks the image as out of date, as it is all there is to keep door states.
+ *
+ * Layout, big endian:
+ *   header    magic "ACSS", format version, time written, door version
+ *   strings   count, then length and UTF-8 bytes of each distinct string
+ *   doors     count, then id, from space, to space, closed, unlock_shortly millis,
+ *             state name, version
+ *   areas     count, then in preorder kind, id, description, parent index,
+ *             and for spaces the indexes of the doors giving access
+ *   schedules count, then start and end epoch day, windows (weekday mask, first
+ *             and end minute of the day) and holidays (epoch days)
+ *   groups    count, then name, schedule index, unlock_shortly millis, actions,
+ *             area indexes, users
+ *   trailer   CRC32 of all the above
+ * Strings are written as indexes into the string table.
+ */
+public final class DirectorySnapshot implements Observer {
+  private static final Logger logger = LoggerFactory.getLogger(DirectorySnapshot.class);
+  private static final int MAGIC = 0x41435353; // "ACSS"
+  private static final int FORMAT_VERSION = 1;
+  private static final byte PARTITION = 0;
+  private static final byte SPACE = 1;
+
+  private final Path file;
+  private final AtomicBoolean dirty = new AtomicBoolean(false);
+  private final long checkpointRecords = Config.getLong("snapshot.checkpointRecords", 100000);
+  // journal sequence number of the last image written
+  private long checkpointed = 0;
+
+  private DirectorySnapshot(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Keeps the file up to date: directories changes mark it dirty, and it is written
+   * at most once every intervalMillis, and once more when the server stops. The
+   * DoorJournal, if any, must be open already.
+   */
+  public static void startWriting(Path file) {
+    DirectorySnapshot snapshot = new DirectorySnapshot(file);
+    // the directories of the current building, also for the threads writing them
+    BuildingContext building = BuildingContext.current();
+    DirectoryDoors.getInstance().addObserver(snapshot);
+    if (!DoorJournal.getInstance().isOpen()) {
+      DirectoryDoors.getInstance().addDoorListener((door, word, version) -> snapshot.dirty.set(true));
+    }
+    DirectoryAreas.getInstance().addObserver(snapshot);
+    DirectoryUserGroups.getInstance().addObserver(snapshot);
+    long intervalMillis = Config.getLong("snapshot.intervalMillis", 1000);
+    ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = building.newThread(r, "snapshot-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    writer.scheduleWithFixedDelay(snapshot::writeIfDirty, intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(building.newThread(snapshot::writeAtShutdown, "snapshot-shutdown"));
+    snapshot.dirty.set(true); // first image straight away
+    snapshot.writeIfDirty();
+  }
+
+  @Override
+  public void update(Observable o, Object arg) {
+    dirty.set(true);
+  }
+
+  private synchronized void writeIfDirty() {
+    // the journal before the doors are read: the changes up to here are all in the file
+    DoorJournal journal = DoorJournal.getInstance();
+    long journaled = journal.getSequence();
+    if (!dirty.getAndSet(false) && journaled - checkpointed < checkpointRecords) {
+      return;
+    }
+    try {
+      write(file);
+      journal.checkpoint(journaled);
+      checkpointed = journaled;
+    } catch (IOException | RuntimeException e) {
+      dirty.set(true); // try again next time
+      logger.error("Could not write snapshot {}: {}", file, e.toString());
+    }
+  }
+
+  // A last checkpoint, so the next boot has no journal to replay
+  private synchronized void writeAtShutdown() {
+    if (DoorJournal.getInstance().getSequence() > checkpointed) {
+      dirty.set(true);
+    }
+    writeIfDirty();
+  }
+
+  /**
+   * Writes the directories to a temporary file next to the target and renames it,
+   * so a reader never sees a half written snapshot.
+   */
+  public static void write(Path file) throws IOException {
+    long start = System.nanoTime();
+    byte[] bytes = encode();
+    Path absolute = file.toAbsolutePath();
+    Path tmp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+    Files.move(tmp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    logger.debug("Snapshot of {} bytes written in {} us", bytes.length,
+        (System.nanoTime() - start) / 1000);
+  }
+
+  /**
+   * Maps the file and installs its directories. Returns false if there is no usable
+   * snapshot (missing, other format or corrupt), and then nothing has been installed.
+   */
+  public static boolean load(Path file) {
+    if (!Files.isRegularFile(file)) {
+      return false;
+    }
+    long start = System.nanoTime();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      new Decoder(buffer).decodeAndInstall();
+    } catch (IOException | IllegalStateException | BufferUnderflowException
+             | IndexOutOfBoundsException | ClassCastException | DateTimeException e) {
+      logger.warn("Ignoring snapshot {}: {}", file, e.toString());
+      return false;
+    }
+    logger.info("Directories loaded from snapshot {} in {} us", file,
+        (System.nanoTime() - start) / 1000);
+    return true;
+  }
+
+
+  private static byte[] encode() {
+    try {
+      return new Encoder().encode();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // can't happen writing to memory
+    }
+  }
+
+  private static final class Encoder {
+    private final Map<String, Integer> strings = new LinkedHashMap<>();
+    private final Map<Door, Integer> doorIndexes = new IdentityHashMap<>();
+    private final Map<Area, Integer> areaIndexes = new IdentityHashMap<>();
+    private final Map<Schedule, Integer> scheduleIndexes = new IdentityHashMap<>();
+    private final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(4096);
+    private final DataOutputStream body = new DataOutputStream(bodyBytes);
+
+    byte[] encode() throws IOException {
+      writeDoors(DirectoryDoors.getInstance().getAllDoors());
+      writeAreas(DirectoryAreas.getInstance().getRootArea());
+      // with the directory locked, a user being moved is in exactly one group
+      synchronized (DirectoryUserGroups.getInstance()) {
+        writeGroups(DirectoryUserGroups.getInstance().getUserGroups());
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(bodyBytes.size() + 16 * strings.size() + 64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(System.currentTimeMillis());
+      out.writeLong(DirectoryDoors.getInstance().getVersion());
+      out.writeInt(strings.size());
+      for (String s : strings.keySet()) {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > 0xFFFF) {
+          throw new IllegalStateException("string too long for a snapshot: " + s.length());
+        }
+        out.writeShort(utf8.length);
+        out.write(utf8);
+      }
+      bodyBytes.writeTo(out);
+      CRC32 crc = new CRC32();
+      crc.update(bytes.toByteArray());
+      out.writeInt((int) crc.getValue());
+      return bytes.toByteArray();
+    }
+
+    private void writeString(String s) throws IOException {
+      if (s == null) {
+        body.writeInt(-1);
+        return;
+      }
+      Integer index = strings.get(s);
+      if (index == null) {
+        index = strings.size();
+        strings.put(s, index);
+      }
+      body.writeInt(index);
+    }
+
+    private void writeDoors(List<Door> doors) throws IOException {
+      body.writeInt(doors.size());
+      for (Door door : doors) {
+        doorIndexes.put(door, doorIndexes.size());
+        writeString(door.getId());
+        writeString(door.getFromSpace() == null ? null : door.getFromSpace().getId());
+        writeString(door.getToSpace() == null ? null : door.getToSpace().getId());
+        long w = door.getWord(); // state, closed and version of the same moment
+        body.writeBoolean(DoorState.isClosed(w));
+        body.writeLong(door.getUnlockShortlyMillis());
+        writeString(DoorState.of(w).getName());
+        body.writeLong(DoorState.getVersion(w));
+      }
+    }
+
+    private void writeAreas(Partition root) throws IOException {
+      List<Area> preorder = new ArrayList<>();
+      if (root != null) {
+        addPreorder(root, preorder);
+      }
+      body.writeInt(preorder.size());
+      for (Area area : preorder) {
+        areaIndexes.put(area, areaIndexes.size());
+        body.writeByte(area instanceof Space ? SPACE : PARTITION);
+        writeString(area.getId());
+        writeString(area.getDescription());
+        body.writeInt(area.getParent() == null ? -1 : areaIndexes.get(area.getParent()));
+        if (area instanceof Space) {
+          List<Door> doors = ((Space) area).getDoorsGivingAccess();
+          body.writeInt(doors.size());
+          for (Door door : doors) {
+            body.writeInt(doorIndexes.get(door));
+          }
+        }
+      }
+    }
+
+    private static void addPreorder(Area area, List<Area> preorder) {
+      preorder.add(area);
+      if (area instanceof Partition) {
+        for (Area child : ((Partition) area).getChildren()) {
+          addPreorder(child, preorder);
+        }
+      }
+    }
+
+    private void writeGroups(List<UserGroup> groups) throws IOException {
+      List<Schedule> schedules = new ArrayList<>();
+      for (UserGroup group : groups) {
+        if (!scheduleIndexes.containsKey(group.getSchedule())) {
+          scheduleIndexes.put(group.getSchedule(), schedules.size());
+          schedules.add(group.getSchedule());
+        }
+      }
+      body.writeInt(schedules.size());
+      for (Schedule schedule : schedules) {
+        body.writeLong(schedule.getStartDate().toEpochDay());
+        body.writeLong(schedule.getEndDate().toEpochDay());
+        body.writeInt(schedule.getWindows().size());
+        for (Schedule.Window window : schedule.getWindows()) {
+          body.writeByte(window.getDayMask());
+          body.writeShort(window.getFromMinute());
+          body.writeShort(window.getToMinute());
+        }
+        List<LocalDate> holidays = schedule.getHolidays();
+        body.writeInt(holidays.size());
+        for (LocalDate holiday : holidays) {
+          body.writeLong(holiday.toEpochDay());
+        }
+      }
+
+      body.writeInt(groups.size());
+      for (UserGroup group : groups) {
+        writeString(group.getName());
+        body.writeInt(scheduleIndexes.get(group.getSchedule()));
+        body.writeLong(group.getUnlockShortlyMillis());
+        body.writeInt(group.getActions().size());
+        for (String action : group.getActions()) {
+          writeString(action);
+        }
+        body.writeInt(group.getAreas().size());
+        for (Area area : group.getAreas()) {
+          Integer index = areaIndexes.get(area);
+          if (index == null) {
+            throw new IllegalStateException("area " + area.getId() + " of group "
+                + group.getName() + " is not in the hierarchy");
+          }
+          body.writeInt(index);
+        }
+        body.writeInt(group.getUsers().size());
+        for (User user : group.getUsers()) {
+          writeString(user.getName());
+          writeString(user.getCredential());
+        }
+      }
+    }
+  }
+
+
+  private static final class Decoder {
+    private final ByteBuffer in;
+    private String[] strings;
+    private Door[] doors;
+    // space ids of the doors, resolved once the areas have been read
+    private String[] doorFrom;
+    private String[] doorTo;
+    private Area[] areas;
+
+    Decoder(ByteBuffer in) {
+      this.in = in;
+    }
+
+    void decodeAndInstall() {
+      checkHeaderAndCrc();
+      readStrings();
+      ArrayList<Door> doorList = readDoors();
+      Partition root = readAreas();
+      List<UserGroup> groups = readGroups();
+      // only once everything has been read, so a bad file leaves the directories as they were
+      DirectoryDoors.getInstance().installDoors(doorList);
+      DirectoryAreas.getInstance().installAreas(root);
+      DirectoryUserGroups.getInstance().installUserGroups(groups);
+    }
+
+    private void checkHeaderAndCrc() {
+      if (in.remaining() < 28) {
+        throw new IllegalStateException("file too short");
+      }
+      if (in.getInt(0) != MAGIC) {
+        throw new IllegalStateException("not a directories snapshot");
+      }
+      int formatVersion = in.getInt(4);
+      if (formatVersion != FORMAT_VERSION) {
+        throw new IllegalStateException("snapshot format " + formatVersion
+            + ", expected " + FORMAT_VERSION);
+      }
+      int end = in.limit() - 4;
+      CRC32 crc = new CRC32();
+      crc.update(in.duplicate().position(0).limit(end));
+      if ((int) crc.getValue() != in.getInt(end)) {
+        throw new IllegalStateException("checksum mismatch, snapshot is corrupt");
+      }
+      in.limit(end);
+      in.position(8);
+      long writtenAt = in.getLong();
+      long doorVersion = in.getLong();
+      logger.debug("Snapshot written at {} after {} door changes", writtenAt, doorVersion);
+    }
+
+    private void readStrings() {
+      strings = new String[in.getInt()];
+      byte[] scratch = new byte[256];
+      for (int i = 0; i < strings.length; i++) {
+        int length = Short.toUnsignedInt(in.getShort());
+        if (length > scratch.length) {
+          scratch = new byte[length];
+        }
+        in.get(scratch, 0, length);
+        strings[i] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+      }
+    }
+
+    private String readString() {
+      int index = in.getInt();
+      return index < 0 ? null : strings[index];
+    }
+
+    private ArrayList<Door> readDoors() {
+      doors = new Door[in.getInt()];
+      doorFrom = new String[doors.length];
+      doorTo = new String[doors.length];
+      ArrayList<Door> list = new ArrayList<>(doors.length);
+      for (int i = 0; i < doors.length; i++) {
+        Door door = new Door(readString());
+        doorFrom[i] = readString();
+        doorTo[i] = readString();
+        boolean closed = in.get() != 0;
+        door.restoreUnlockShortlyMillis(in.getLong());
+        String stateName = readString();
+        door.restore(stateName, closed, in.getLong());
+        doors[i] = door;
+        list.add(door);
+      }
+      return list;
+    }
+
+    private Partition readAreas() {
+      areas = new Area[in.getInt()];
+      for (int i = 0; i < areas.length; i++) {
+        byte kind = in.get();
+        String id = readString();
+        String description = readString();
+        int parentIndex = in.getInt();
+        Partition parent = parentIndex < 0 ? null : (Partition) areas[parentIndex];
+        if (kind == SPACE) {
+          Space space = new Space(id, description, parent);
+          int numDoors = in.getInt();
+          for (int d = 0; d < numDoors; d++) {
+            space.addDoorGivingAccess(doors[in.getInt()]);
+          }
+          areas[i] = space;
+        } else {
+          areas[i] = new Partition(id, description, parent);
+        }
+        if (parent != null) {
+          parent.addChild(areas[i]);
+        }
+      }
+      Map<String, Space> spacesById = new HashMap<>();
+      for (Area area : areas) {
+        if (area instanceof Space) {
+          spacesById.put(area.getId(), (Space) area);
+        }
+      }
+      for (int i = 0; i < doors.length; i++) {
+        doors[i].setFromSpace(doorFrom[i] == null ? null : spacesById.get(doorFrom[i]));
+        doors[i].setToSpace(doorTo[i] == null ? null : spacesById.get(doorTo[i]));
+      }
+      if (areas.length == 0) {
+        return null;
+      }
+      if (!(areas[0] instanceof Partition)) {
+        throw new IllegalStateException("root area is not a partition");
+      }
+      return (Partition) areas[0];
+    }
+
+    private Schedule readSchedule() {
+      long startDay = in.getLong();
+      long endDay = in.getLong();
+      int numWindows = in.getInt();
+      List<Schedule.Window> windows = new ArrayList<>(numWindows);
+      for (int w = 0; w < numWindows; w++) {
+        int dayMask = in.get();
+        int fromMinute = in.getShort();
+        int toMinute = in.getShort();
+        windows.add(new Schedule.Window(dayMask, fromMinute, toMinute));
+      }
+      List<LocalDate> holidays = new ArrayList<>();
+      int numHolidays = in.getInt();
+      for (int h = 0; h < numHolidays; h++) {
+        holidays.add(LocalDate.ofEpochDay(in.getLong()));
+      }
+      return new Schedule(LocalDate.ofEpochDay(startDay), LocalDate.ofEpochDay(endDay),
+          windows, holidays);
+    }
+
+    private List<UserGroup> readGroups() {
+      Schedule[] schedules = new Schedule[in.getInt()];
+      for (int i = 0; i < schedules.length; i++) {
+        schedules[i] = readSchedule();
+      }
+
+      int numGroups = in.getInt();
+      List<UserGroup> groups = new ArrayList<>(numGroups);
+      Map<String, String> seenCredentials = new HashMap<>();
+      for (int g = 0; g < numGroups; g++) {
+        String name = readString();
+        Schedule schedule = schedules[in.getInt()];
+        long unlockShortlyMillis = in.getLong();
+        int numActions = in.getInt();
+        ArrayList<String> actions = new ArrayList<>(numActions);
+        for (int i = 0; i < numActions; i++) {
+          actions.add(readString());
+        }
+        int numAreas = in.getInt();
+        ArrayList<Area> groupAreas = new ArrayList<>(numAreas);
+        for (int i = 0; i < numAreas; i++) {
+          groupAreas.add(areas[in.getInt()]);
+        }
+        UserGroup group = new UserGroup(name, actions, groupAreas, schedule);
+        group.restoreUnlockShortlyMillis(unlockShortlyMillis);
+        int numUsers = in.getInt();
+        for (int i = 0; i < numUsers; i++) {
+          String userName = readString();
+          String credential = readString();
+          if (seenCredentials.put(credential, name) != null) {
+            throw new IllegalStateException("credential " + credential + " appears twice");
+          }
+          group.addUser(new User(userName, credential, group));
+        }
+        groups.add(group);
+      }
+      if (in.hasRemaining()) {
+        throw new IllegalStateException(in.remaining() + " unexpected bytes at the end");
+      }
+      return groups;
+    }
+  }
+}
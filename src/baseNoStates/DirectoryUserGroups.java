@@ -6,6 +6,11 @@ import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Observable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * DirectoryUserGroups - Singleton Observable pattern implementation
@@ -20,29 +25,33 @@ import java.util.Observable;
  * - Security: Single point of control for user authentication and authorization
  * - Resource efficiency: User groups and schedules are created and maintained only once
  * - Global access point: Any component can access user information through getInstance()
+ * - One per building: getInstance() is the single instance of the building being served
+ *   (see BuildingContext), several sites can share one process
  */
 public final class DirectoryUserGroups extends Observable {
-  // Unique instance - only one DirectoryUserGroups exists in the application
-  private static DirectoryUserGroups uniqueInstance = null;
+  private static final Logger logger = LoggerFactory.getLogger(DirectoryUserGroups.class);
 
   // Collection of all user groups in the system
-  private final List<UserGroup> userGroups = new ArrayList<>();
+  private final List<UserGroup> userGroups = new CopyOnWriteArrayList<>();
+
+  // Every user by credential, so a lookup costs the same whatever the number of users.
+  // Reads take no lock; additions, moves and removals are synchronized on the directory
+  // so the index and the user lists of the groups always agree. A new set of groups gets
+  // a whole new index, published at once, so readers never see it half made.
+  private volatile ConcurrentHashMap<String, User> usersByCredential = new ConcurrentHashMap<>();
 
   /**
-   * Private constructor prevents direct instantiation.
-   * Use getInstance() to access the singleton instance.
+   * Made by BuildingContext, one per building.
+   * Use getInstance() to access the instance of the current building.
    */
-  private DirectoryUserGroups() {}
+  DirectoryUserGroups() {}
 
   /**
-   * Returns the singleton instance of DirectoryUserGroups.
-   * Creates the instance on first call (lazy initialization).
+   * Returns the instance of DirectoryUserGroups of the building bound to the calling thread,
+   * see BuildingContext. It is created on first call (lazy initialization).
    */
   public static DirectoryUserGroups getInstance() {
-    if (uniqueInstance == null) {
-      uniqueInstance = new DirectoryUserGroups();
-    }
-    return uniqueInstance;
+    return BuildingContext.current().getUserGroups();
   }
 
   /**
@@ -173,25 +182,135 @@ public final class DirectoryUserGroups extends Observable {
     userGroups.add(employeeGroup);
     userGroups.add(managerGroup);
     userGroups.add(adminGroup);
+    indexCredentials();
 
     // Notify observers that user groups have been created
     setChanged();
     notifyObservers("usergroups_created");
   }
 
+  /**
+   * Replaces the groups by those read from a DirectorySnapshot, instead of makeUserGroups().
+   */
+  public void installUserGroups(List<UserGroup> groups) {
+    userGroups.clear();
+    userGroups.addAll(groups);
+    indexCredentials();
+    setChanged();
+    notifyObservers("usergroups_loaded");
+  }
+
+  public List<UserGroup> getUserGroups() {
+    return userGroups;
+  }
+
   /**
    * Finds a user by their credential (ID card or access code).
-   * Searches through all user groups to locate the user.
+   * A single lock-free lookup in the credential index.
    */
   public User findUserByCredential(String credential) {
+    return credential == null ? null : usersByCredential.get(credential);
+  }
+
+  /**
+   * Creates a user in a group. Credentials are unique, an existing one is an
+   * IllegalArgumentException.
+   */
+  public synchronized User addUser(String name, String credential, UserGroup group) {
+    if (usersByCredential.containsKey(credential)) {
+      throw new IllegalArgumentException("credential " + credential + " already in use");
+    }
+    User user = new User(name, credential, group);
+    group.addUser(user);
+    usersByCredential.put(credential, user);
+    notifyUserChanged(user);
+    return user;
+  }
+
+  /**
+   * Moves the user with this credential to another group. Returns the user, or null
+   * if there is no such credential.
+   */
+  public synchronized User moveUser(String credential, UserGroup to) {
+    User user = usersByCredential.get(credential);
+    if (user == null) {
+      return null;
+    }
+    UserGroup from = user.getUserGroup();
+    if (from != to) {
+      to.addUser(user);
+      user.setUserGroup(to);
+      from.removeUser(user);
+      notifyUserChanged(user);
+    }
+    return user;
+  }
+
+  /**
+   * Removes the user with this credential. Returns it, or null if there was none.
+   */
+  public synchronized User removeUser(String credential) {
+    User user = usersByCredential.remove(credential);
+    if (user != null) {
+      user.getUserGroup().removeUser(user);
+      notifyUserChanged(user);
+    }
+    return user;
+  }
+
+  public UserGroup findUserGroupByName(String name) {
     for (UserGroup group : userGroups) {
-      for (User user : group.getUsers()) {
-        if (user.getCredential().equals(credential)) return user;
+      if (group.getName().equals(name)) {
+        return group;
       }
     }
     return null;
   }
 
+  // Makes the credential index again from the users of the groups, and swaps it in
+  private synchronized void indexCredentials() {
+    ConcurrentHashMap<String, User> index = new ConcurrentHashMap<>();
+    for (UserGroup group : userGroups) {
+      for (User user : group.getUsers()) {
+        User previous = index.put(user.getCredential(), user);
+        if (previous != null) {
+          logger.warn("Credential {} belongs to {} and {}, keeping the last one",
+              user.getCredential(), previous, user);
+        }
+      }
+    }
+    usersByCredential = index;
+  }
+
+  /**
+   * Size of the credential index and an estimate of its memory, assuming a 64-bit JVM
+   * with compressed references: per entry a ConcurrentHashMap node (32 bytes) and its
+   * share of the table (4 bytes per slot, the table being the power of two keeping the
+   * load under 0.75), besides the credential strings, which users hold anyway.
+   */
+  public JSONObject credentialIndexToJson() {
+    ConcurrentHashMap<String, User> index = usersByCredential;
+    int entries = index.size();
+    long tableSlots = 16;
+    while (tableSlots * 3 / 4 < entries) {
+      tableSlots *= 2;
+    }
+    long indexBytes = 32L * entries + 4L * tableSlots;
+    long keyBytes = 0;
+    for (String credential : index.keySet()) {
+      // String object plus its byte[] (header, length, Latin-1 bytes), rounded up to 8
+      keyBytes += 24 + ((16 + credential.length() + 7) / 8) * 8;
+    }
+    JSONObject json = new JSONObject();
+    json.put("users", entries);
+    json.put("groups", userGroups.size());
+    json.put("tableSlots", tableSlots);
+    json.put("indexBytes", indexBytes);
+    json.put("credentialBytes", keyBytes);
+    json.put("bytesPerEntry", entries == 0 ? 0 : (indexBytes + keyBytes) / entries);
+    return json;
+  }
+
   /**
    * Helper method to add an area to a list if it exists in the directory.
    * Safely handles cases where areas might not be initialized yet.
@@ -209,4 +328,12 @@ public final class DirectoryUserGroups extends Observable {
     setChanged();
     notifyObservers(user);
   }
+
+  /**
+   * Notifies observers that the permissions of a group have changed.
+   */
+  public void notifyUserGroupChanged(UserGroup group) {
+    setChanged();
+    notifyObservers(group);
+  }
 }
\ No newline at end of file
@@ -1,5 +1,9 @@
 package baseNoStates;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,76 +16,335 @@ import org.slf4j.LoggerFactory;
 
 public class Door {
   private static final Logger logger = LoggerFactory.getLogger(Door.class);
+  private static final long DEFAULT_UNLOCK_SHORTLY_MILLIS =
+      Config.getLong("door.unlockShortlyMillis", 10000);
+  // spins waiting for a door reserved by an AreaTransaction before parking, see unreserved()
+  private static final int MAX_SPINS = 100;
   private final String id;
-  private boolean closed;
+  // position in DirectoryDoors, given when the door is registered
+  private int handle = -1;
+  // state code, closed flag and version in one word, see DoorState. Every change is a
+  // compare-and-set of the whole word, so state and closed always change together and
+  // a transition computed from a word that is no longer current is never installed.
+  private final AtomicLong word;
+  // version of the door when it entered its current state
+  private volatile long stateVersion = 0;
+  // the timer ending the current state, if it ends by itself, cancelled when it is left
+  // before. Cancelling is only to keep the wheel small: a timer that escapes it finds
+  // the door in another state, or version, and does nothing.
+  private volatile TimingWheel.Timeout stateTimer;
+  // the transition whose state bookkeeping (timer, stateVersion, entered) was done last,
+  // guarded by the bookkeeping lock. Two changes of the door can reach changed() in either
+  // order after their compare-and-sets, only the newer one may leave its timer.
+  private final Object bookkeeping = new Object();
+  private long appliedVersion = 0;
+  private DoorState appliedState = DoorStateUnlocked.INSTANCE;
+  // the threads parked in unreserved() until the AreaTransaction that has the door releases it
+  private final Queue<Thread> reservationWaiters = new ConcurrentLinkedQueue<>();
+  // how long unlock_shortly lasts here, 0 for the default
+  private volatile long unlockShortlyMillis = 0;
 
-  private DoorState state;
-
-  private String fromSpace;
-  private String toSpace;
+  // the spaces the door goes from and to, set when it is linked by DirectoryAreas
+  private Space fromSpace;
+  private Space toSpace;
 
   public Door(String id) {
     this.id = id;
-    this.closed = true;
-    this.state = new DoorStateUnlocked(this);
-    this.fromSpace = "hall";
-    this.toSpace = "office";
+    this.word = new AtomicLong(DoorState.word(DoorStateUnlocked.INSTANCE, true));
   }
 
   public String getId() {
     return id;
   }
 
+  /** Dense number of the door in DirectoryDoors, -1 until registered. */
+  public int getHandle() {
+    return handle;
+  }
+
+  void setHandle(int handle) {
+    this.handle = handle;
+  }
+
   public boolean isClosed() {
-    return closed;
+    return DoorState.isClosed(word.get());
   }
 
   public void setClosed(boolean closed) {
-    this.closed = closed;
+    long before;
+    long after;
+    do {
+      before = unreserved();
+      after = DoorState.setClosed(before, closed);
+      if (after == before) {
+        return;
+      }
+    } while (!word.compareAndSet(before, after = DoorState.nextVersion(after)));
+    changed(before, after, 0, closed ? Actions.CLOSE : Actions.OPEN);
+  }
+
+  /** How long the door stays unlocked after unlock_shortly, 0 if as any other door. */
+  public long getUnlockShortlyMillis() {
+    return unlockShortlyMillis;
+  }
+
+  public void setUnlockShortlyMillis(long millis) {
+    unlockShortlyMillis = millis;
+    // a setting, not a change of state: not journaled, kept by the DirectorySnapshot
+    DirectoryDoors.getInstance().notifyDoorSettingsChanged(this);
+  }
+
+  // from a DirectorySnapshot, restoring is not a change
+  void restoreUnlockShortlyMillis(long millis) {
+    unlockShortlyMillis = millis;
+  }
+
+  // the group's duration if it has one, else the door's, else the default
+  private long resolveUnlockShortlyMillis(long groupMillis) {
+    if (groupMillis > 0) {
+      return groupMillis;
+    }
+    return unlockShortlyMillis > 0 ? unlockShortlyMillis : DEFAULT_UNLOCK_SHORTLY_MILLIS;
+  }
+
+  void setStateTimer(TimingWheel.Timeout timer) {
+    stateTimer = timer;
   }
 
   /**
    * Nombre del estado lógico para el JSON que usa el simulador.
    */
   public String getStateName() {
-    return state.getName();
+    return getState().getName();
+  }
+
+  DoorState getState() {
+    return DoorState.of(word.get());
+  }
+
+  // state, closed, reserved and version, as DoorState decodes them
+  long getWord() {
+    return word.get();
+  }
+
+  /** Number of changes of state or closed since the door was made. */
+  public long getVersion() {
+    return DoorState.getVersion(word.get());
   }
 
   public void setState(DoorState newState) {
-    this.state = newState;
+    long before;
+    long after;
+    do {
+      before = unreserved();
+      after = newState.enter(before);
+      if (after == before) {
+        return;
+      }
+    } while (!word.compareAndSet(before, after = DoorState.nextVersion(after)));
+    changed(before, after, 0, "set");
   }
 
-  public String getFromSpace() {
+  public Space getFromSpace() {
     return fromSpace;
   }
 
-  public String getToSpace() {
+  public Space getToSpace() {
     return toSpace;
   }
 
-  public void setFromSpace(String s) {
+  public void setFromSpace(Space s) {
     this.fromSpace = s;
   }
 
-  public void setToSpace(String s) {
+  public void setToSpace(Space s) {
     this.toSpace = s;
   }
 
+  /**
+   * Puts back the state, closed flag and version saved in a DirectorySnapshot or the
+   * DoorJournal, without notifying anybody: restoring is not a change. What the state
+   * does on entering waits for resumeStateTimer(), once the door is in DirectoryDoors.
+   */
+  void restore(String stateName, boolean closed, long version) {
+    DoorState state = DoorState.ofName(stateName);
+    long restored = DoorState.word(state, closed, version);
+    synchronized (bookkeeping) {
+      TimingWheel.Timeout timer = stateTimer;
+      if (timer != null) {
+        stateTimer = null;
+        timer.cancel();
+      }
+      word.set(restored);
+      stateVersion = version;
+      appliedVersion = version;
+      appliedState = state;
+    }
+  }
+
+  /**
+   * After restore(), once the door has its handle and so its owner in DoorExecutor: the
+   * restored state does what it does on entering. The short unlock period starts again,
+   * it could not be checked while down.
+   */
+  void resumeStateTimer() {
+    synchronized (bookkeeping) {
+      long w = word.get();
+      if (DoorState.getVersion(w) != appliedVersion) {
+        return; // changed since, and changed() did it
+      }
+      TimingWheel.Timeout timer = stateTimer;
+      if (timer != null) {
+        stateTimer = null;
+        timer.cancel();
+      }
+      DoorState.of(w).entered(this, w, resolveUnlockShortlyMillis(0));
+    }
+  }
+
   public void doAction(String action) {
+    doAction(action, 0);
+  }
+
+  /**
+   * Does the action, with unlock_shortly lasting the given time if not 0: the duration
+   * of the group of the user, that takes precedence over the door's.
+   */
+  public void doAction(String action, long unlockShortlyMillis) {
     String a = Actions.canonicalize(action);
     if (a == null) return;
 
+    long before;
+    long after;
+    do {
+      before = unreserved();
+      after = applyAction(a, DoorState.of(before), before);
+      if (after == before) {
+        return;
+      }
+    } while (!word.compareAndSet(before, after = DoorState.nextVersion(after)));
+    // one notification per transition, even if the action changed both state and closed
+    changed(before, after, unlockShortlyMillis, a);
+  }
+
+  private long applyAction(String a, DoorState state, long w) {
     if (Actions.OPEN.equals(a)) {
-      state.open();
+      return state.open(this, w);
     } else if (Actions.CLOSE.equals(a)) {
-      state.close();
+      return state.close(this, w);
     } else if (Actions.LOCK.equals(a)) {
-      state.lock();
+      return state.lock(this, w);
     } else if (Actions.UNLOCK.equals(a)) {
-      state.unlock();
+      return state.unlock(this, w);
     } else if (Actions.UNLOCK_SHORTLY.equals(a)) {
-      state.unlockShortly();
+      return state.unlockShortly(this, w);
+    }
+    return w;
+  }
+
+  /**
+   * Ends the short unlock period the door entered at the given version, unless it has
+   * already left it: locked by hand, or even unlocked shortly again, a new period.
+   */
+  void endShortUnlock(long enteredVersion) {
+    long before;
+    long after;
+    do {
+      before = unreserved();
+      if (DoorState.of(before) != DoorStateUnlockedShortly.INSTANCE
+          || stateVersion != enteredVersion) {
+        return;
+      }
+      after = DoorStateUnlockedShortly.INSTANCE.expire(this, before);
+    } while (!word.compareAndSet(before, after = DoorState.nextVersion(after)));
+    changed(before, after, 0, "expire");
+  }
+
+  // The current word once no AreaTransaction has the door reserved. Transactions keep
+  // doors only while checking and changing them, so the wait is short: a few spins, and
+  // then the thread parks, not to take the core from the transaction it waits for,
+  // until release() unparks it.
+  private long unreserved() {
+    long w = word.get();
+    for (int spins = 0; DoorState.isReserved(w) && spins < MAX_SPINS; spins++) {
+      Thread.onSpinWait();
+      w = word.get();
+    }
+    if (!DoorState.isReserved(w)) {
+      return w;
+    }
+    Thread waiter = Thread.currentThread();
+    reservationWaiters.add(waiter);
+    try {
+      // the word is read after joining the waiters, so a release after this read unparks us
+      while (DoorState.isReserved(w = word.get())) {
+        LockSupport.park(this);
+      }
+    } finally {
+      reservationWaiters.remove(waiter);
+    }
+    return w;
+  }
+
+  /**
+   * Reserves the door for an AreaTransaction, waiting if another one has it, and returns
+   * its word. Until release(), nobody else changes the door.
+   */
+  long reserve() {
+    while (true) {
+      long before = unreserved();
+      if (word.compareAndSet(before, DoorState.setReserved(before, true))) {
+        return before;
+      }
+    }
+  }
+
+  /** The word the action would give from the given one, without changing anything. */
+  long next(String canonicalAction, long w) {
+    return applyAction(canonicalAction, DoorState.of(w), w);
+  }
+
+  /**
+   * Ends the reservation made by reserve(), which returned before: the door goes to
+   * after, or stays as it was if they are the same.
+   */
+  void release(long before, long after) {
+    long installed = after == before ? before : DoorState.nextVersion(after);
+    word.set(installed);
+    for (Thread waiter : reservationWaiters) {
+      LockSupport.unpark(waiter);
+    }
+    if (installed != before) {
+      changed(before, installed, 0, "transaction");
+    }
+  }
+
+  // After a transition has been installed: it goes to the DoorJournal, the timer of the
+  // state left is cancelled, the new state does what it does on entering, and then the
+  // notification. The cause is the action, or what else made the door change.
+  // Only the compare-and-set that installed the transition is lock-free: the journal and
+  // the bookkeeping take locks, and listeners may allocate.
+  private void changed(long before, long after, long groupUnlockShortlyMillis, String cause) {
+    DoorJournal.getInstance().append(this, before, after, cause);
+    DoorState state = DoorState.of(after);
+    long version = DoorState.getVersion(after);
+    synchronized (bookkeeping) {
+      // a newer transition got here first, the door is no longer in this state
+      if (version > appliedVersion) {
+        if (state != appliedState) {
+          TimingWheel.Timeout timer = stateTimer;
+          if (timer != null) {
+            stateTimer = null;
+            timer.cancel();
+          }
+          stateVersion = version;
+          state.entered(this, after, resolveUnlockShortlyMillis(groupUnlockShortlyMillis));
+        }
+        appliedVersion = version;
+        appliedState = state;
+      }
     }
+    DirectoryDoors.getInstance().notifyDoorChanged(this, after);
   }
 
   public void processRequest(baseNoStates.requests.RequestReader req) {
@@ -94,26 +357,30 @@ public class Door {
       return;
     }
     if (!req.isAuthorized()) {
-      logger.info("Request unauthorized for door {}: user {}", id, req.toString()); // INFO
+      logger.debug("Request unauthorized for door {}: user {}", id, req); // in the AccessLog
       req.setDoorStateName(getStateName());
       return;
     }
-    logger.info("Door {}: Request authorized. Executing action '{}'", id, canonical);
-    doAction(canonical);
+    logger.debug("Door {}: Request authorized. Executing action '{}'", id, canonical);
+    long transitionStart = System.nanoTime();
+    doAction(canonical, req.getUnlockShortlyMillis());
+    RequestTrace.add(req.getTrace(), RequestTrace.Phase.TRANSITION, transitionStart);
     req.setDoorStateName(getStateName());
   }
 
   public JSONObject toJson() {
+    long w = word.get(); // state and closed of the same moment
     JSONObject json = new JSONObject();
     json.put("id", id);
-    json.put("state", getStateName());
-    json.put("closed", closed);
+    json.put("state", DoorState.of(w).getName());
+    json.put("closed", DoorState.isClosed(w));
     return json;
   }
 
   @Override
   public String toString() {
-    return "Door{ id='" + id + "', closed=" + closed + ", state=" + getStateName()
+    long w = word.get();
+    return "Door{ id='" + id + "', closed=" + DoorState.isClosed(w) + ", state=" + DoorState.of(w).getName()
         + ", fromSpace='" + fromSpace + "', toSpace='" + toSpace + "' }";
   }
 }
@@ -0,0 +1,73 @@
+package baseNoStates;
+
+import java.nio.charset.StandardCharsets;
+import org.json.JSONObject;
+
+/**
+ * One change of a door as sent to the subscribers of /events: sequence number, door,
+ * state and closed flag. It is encoded as a Server-Sent Event only once, when it
+ * happens, and the same bytes are written to every subscriber. A reset event, see
+ * reset(), has no door: all of them may have changed.
+ */
+public final class DoorEvent {
+  private final long sequence;
+  private final String doorId;
+  private final String state;
+  private final boolean closed;
+  private final byte[] sseBytes;
+
+  public DoorEvent(long sequence, String doorId, String state, boolean closed) {
+    this.sequence = sequence;
+    this.doorId = doorId;
+    this.state = state;
+    this.closed = closed;
+    JSONObject json = new JSONObject();
+    json.put("seq", sequence);
+    json.put("id", doorId);
+    json.put("state", state);
+    json.put("closed", closed);
+    String sse = "id: " + DoorEventStream.eventId(sequence) + "\nevent: door\ndata: " + json + "\n\n";
+    this.sseBytes = sse.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private DoorEvent(long sequence, byte[] sseBytes) {
+    this.sequence = sequence;
+    this.doorId = null;
+    this.state = null;
+    this.closed = false;
+    this.sseBytes = sseBytes;
+  }
+
+  /** Tells the subscriber to /refresh, as of this sequence number. */
+  public static DoorEvent reset(long sequence) {
+    String sse = "id: " + DoorEventStream.eventId(sequence) + "\nevent: reset\ndata: {\"seq\":"
+        + sequence + "}\n\n";
+    return new DoorEvent(sequence, sse.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public String getDoorId() {
+    return doorId;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  public byte[] getSseBytes() {
+    return sseBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "DoorEvent{seq=" + sequence + ", id=" + doorId + ", state=" + state
+        + ", closed=" + closed + "}";
+  }
+}
@@ -0,0 +1,197 @@
+package baseNoStates;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stream of door changes behind the /events endpoint (Server-Sent Events).
+ * Listens to DirectoryDoors and keeps the most recent changes in a ring buffer, numbered
+ * with the door version of DirectoryDoors. A subscriber waits until there are changes
+ * after the last one it has seen, so an idle dashboard is just a parked thread, and a
+ * client that reconnects with Last-Event-ID (or ?since=) gets what it missed as long as
+ * it is still in the buffer; otherwise it gets a "reset" event and should /refresh.
+ * Event ids are bootId-sequence, with the boot id of the ETags of RefreshSnapshot: the
+ * door versions start again from the snapshot or the journal at every boot, so an id
+ * of a previous run says nothing about what the client has seen, and gets a reset too.
+ * Doors publish their changes without any lock: the lock is only taken to wake
+ * subscribers, and only when some are waiting.
+ */
+public final class DoorEventStream implements DirectoryDoors.DoorListener {
+  private static final Logger logger = LoggerFactory.getLogger(DoorEventStream.class);
+  private static final byte[] HEARTBEAT = ": keepalive\n\n".getBytes(StandardCharsets.US_ASCII);
+  /** What sequenceOf() gives for an event id of another boot of the server. */
+  public static final long OTHER_BOOT = -1;
+
+  // event number s goes to slot s % length, unless a newer one is already there
+  private final AtomicReferenceArray<DoorEvent> history;
+  // every event up to this one is in history (or has been overwritten by a newer one)
+  private final AtomicLong published;
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition newEvents = lock.newCondition();
+  private final long heartbeatMillis = Config.getLong("events.heartbeatMillis", 15000);
+
+  DoorEventStream() {
+    history = new AtomicReferenceArray<>(Config.getInt("events.history", 1024));
+    published = new AtomicLong(DirectoryDoors.getInstance().getVersion());
+    DirectoryDoors.getInstance().addDoorListener(this);
+  }
+
+  public static DoorEventStream getInstance() {
+    return BuildingContext.current().getEventStream();
+  }
+
+  // Called by DirectoryDoors.notifyDoorChanged from the thread that changed the door, maybe
+  // at the same time as for other changes and out of order
+  @Override
+  public void doorChanged(Door door, long word, long sequence) {
+    publish(new DoorEvent(sequence, door.getId(), DoorState.of(word).getName(),
+        DoorState.isClosed(word)));
+  }
+
+  // the doors were made or installed again, subscribers start over from /refresh
+  @Override
+  public void doorsReplaced(long sequence) {
+    publish(DoorEvent.reset(sequence));
+  }
+
+  private void publish(DoorEvent event) {
+    long sequence = event.getSequence();
+    int slot = slot(sequence);
+    DoorEvent there = history.get(slot);
+    while ((there == null || there.getSequence() < sequence)
+        && !history.compareAndSet(slot, there, event)) {
+      there = history.get(slot);
+    }
+    // move published over this event and any later ones that were waiting for it
+    long last = published.get();
+    DoorEvent next = history.get(slot(last + 1));
+    while (next != null && next.getSequence() > last) {
+      published.compareAndSet(last, last + 1);
+      last = published.get();
+      next = history.get(slot(last + 1));
+    }
+    if (waiting.get() > 0) {
+      lock.lock();
+      try {
+        newEvents.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private int slot(long sequence) {
+    return (int) (sequence % history.length());
+  }
+
+  public long getLastSequence() {
+    return published.get();
+  }
+
+  /** The id of the event with this sequence number, as sent in the id: field. */
+  public static String eventId(long sequence) {
+    return RefreshSnapshot.BOOT_ID + "-" + sequence;
+  }
+
+  /**
+   * The sequence number of an event id, OTHER_BOOT if the id is of a previous run of the
+   * server or has no boot id. Throws NumberFormatException if it is malformed.
+   */
+  public static long sequenceOf(String eventId) {
+    int dash = eventId.lastIndexOf('-');
+    long sequence = Long.parseLong(eventId.substring(dash + 1));
+    if (sequence < 0) {
+      throw new NumberFormatException("negative sequence in event id " + eventId);
+    }
+    return dash > 0 && eventId.substring(0, dash).equals(RefreshSnapshot.BOOT_ID)
+        ? sequence : OTHER_BOOT;
+  }
+
+  /**
+   * Events after the given sequence number, waiting up to timeoutMillis if there are none.
+   * Returns an empty list on timeout, and null if some of the events asked for are no
+   * longer in the buffer.
+   */
+  public List<DoorEvent> awaitEventsAfter(long sequence, long timeoutMillis)
+      throws InterruptedException {
+    long last = published.get();
+    if (last <= sequence) {
+      lock.lock();
+      waiting.incrementAndGet();
+      try {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        // published is read after waiting is raised, so a change after this read signals us
+        while ((last = published.get()) <= sequence && nanos > 0) {
+          nanos = newEvents.awaitNanos(nanos);
+        }
+      } finally {
+        waiting.decrementAndGet();
+        lock.unlock();
+      }
+    }
+    if (last - sequence > history.length() || sequence > last) {
+      return null;
+    }
+    List<DoorEvent> events = new ArrayList<>((int) (last - sequence));
+    for (long s = sequence + 1; s <= last; s++) {
+      DoorEvent event = history.get(slot(s));
+      if (event == null || event.getSequence() != s) {
+        return null; // overwritten while we were reading
+      }
+      events.add(event);
+    }
+    return events;
+  }
+
+  /**
+   * The body of an /events answer: events after the given sequence number as they happen,
+   * and a comment line every heartbeat so proxies keep the connection and we notice when
+   * the client has gone away. Since OTHER_BOOT starts with a reset.
+   */
+  public StreamingBody subscribe(long since) {
+    return out -> {
+      long last = since;
+      logger.debug("Subscriber starting after event {}", since);
+      try {
+        if (last == OTHER_BOOT) {
+          last = getLastSequence();
+          writeReset(out, last);
+          out.flush();
+        }
+        while (true) {
+          List<DoorEvent> events = awaitEventsAfter(last, heartbeatMillis);
+          if (events == null) {
+            last = getLastSequence();
+            writeReset(out, last);
+          } else if (events.isEmpty()) {
+            out.write(HEARTBEAT);
+          } else {
+            for (DoorEvent event : events) {
+              out.write(event.getSseBytes());
+            }
+            last = events.get(events.size() - 1).getSequence();
+          }
+          out.flush();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    };
+  }
+
+  private void writeReset(OutputStream out, long sequence) throws IOException {
+    out.write(DoorEvent.reset(sequence).getSseBytes());
+  }
+}
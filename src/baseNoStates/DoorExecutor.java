@@ -0,0 +1,156 @@
+package baseNoStates;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the commands that change doors: actions of reader requests and the expiry of
+ * the short unlock period.
+ * DIRECT: in the thread that asks, as always, so two threads can change a door at once.
+ * ACTOR: every door has one owner, a worker of a fixed pool chosen by the door handle,
+ * and its commands wait in that worker's mailbox and run one after the other. The
+ * transitions of a door are then linearizable without any lock, and different doors
+ * change in parallel on different cores.
+ * Selected at startup with --door.execution=direct|actor, --door.workers sets the pool size.
+ */
+public final class DoorExecutor {
+  private static final Logger logger = LoggerFactory.getLogger(DoorExecutor.class);
+
+  public enum Mode { DIRECT, ACTOR }
+
+  private final Mode mode;
+  private final Worker[] workers;
+
+  DoorExecutor() {
+    mode = Mode.valueOf(Config.getString("door.execution", "direct").toUpperCase());
+    int numWorkers = mode == Mode.ACTOR
+        ? Config.getInt("door.workers", Runtime.getRuntime().availableProcessors()) : 0;
+    workers = new Worker[numWorkers];
+    BuildingContext building = BuildingContext.current();
+    for (int i = 0; i < numWorkers; i++) {
+      workers[i] = new Worker(building, i);
+      workers[i].start();
+    }
+    logger.info("Door commands of building {} run in {} mode with {} workers",
+        building.getId(), mode, numWorkers);
+  }
+
+  public static DoorExecutor getInstance() {
+    return BuildingContext.current().getDoorExecutor();
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * Runs a command on the door and waits for it to finish. Whatever the command wrote
+   * is visible to the caller afterwards.
+   */
+  public void run(Door door, Runnable command) {
+    call(door, () -> {
+      command.run();
+      return null;
+    });
+  }
+
+  /** Same as run(), with a result. */
+  public <T> T call(Door door, Callable<T> command) {
+    Worker owner = ownerOf(door);
+    if (owner == null || Thread.currentThread() == owner) {
+      return callHere(command); // direct mode, or already the owner
+    }
+    FutureTask<T> task = new FutureTask<>(command);
+    owner.mailbox.add(task);
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted waiting for door " + door.getId(), e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /** Queues a command on the door without waiting, like timer expiries. */
+  public void execute(Door door, Runnable command) {
+    Worker owner = ownerOf(door);
+    if (owner == null) {
+      command.run();
+    } else {
+      owner.mailbox.add(command);
+    }
+  }
+
+  private static <T> T callHere(Callable<T> command) {
+    try {
+      return command.call();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Worker ownerOf(Door door) {
+    if (workers.length == 0) {
+      return null;
+    }
+    int key = door.getHandle() >= 0 ? door.getHandle() : door.getId().hashCode();
+    return workers[Math.floorMod(key, workers.length)];
+  }
+
+  public JSONObject toJson() {
+    JSONArray mailboxes = new JSONArray();
+    for (Worker worker : workers) {
+      mailboxes.put(worker.mailbox.size());
+    }
+    JSONObject json = new JSONObject();
+    json.put("mode", mode.name().toLowerCase());
+    json.put("workers", workers.length);
+    json.put("mailboxes", mailboxes);
+    return json;
+  }
+
+
+  // Owner of the doors whose handle modulo the number of workers is its index, bound
+  // to the building of the doors for all its life
+  private static final class Worker extends Thread {
+    private final LinkedBlockingQueue<Runnable> mailbox = new LinkedBlockingQueue<>();
+    private final BuildingContext building;
+
+    Worker(BuildingContext building, int index) {
+      super(building.getId() + "-door-worker-" + index);
+      this.building = building;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      building.enter();
+      while (true) {
+        try {
+          mailbox.take().run();
+        } catch (InterruptedException e) {
+          return;
+        } catch (RuntimeException e) {
+          // a FutureTask keeps its exception for the caller, this is an execute() command
+          logger.error("Exception in door command: ", e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,417 @@
+package baseNoStates;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the changes of state of the doors, so that at boot they are
+ * exactly as they were, even after a crash, and not only as in the last DirectorySnapshot,
+ * written at most once a second. Each change (door, state before and after, closed flag,
+ * door version, cause and time) is a record appended to a memory mapped segment file,
+ * that is, copied to memory under a short lock; when a segment is full, the next one is
+ * made. A committer thread forces the pages to disk for all the records appended since
+ * the last time at once (group commit): every --journal.commitMillis (10), or, with
+ * --journal.syncCommits=true, as soon as there are any, and then the doors that changed
+ * wait until their record is on disk.
+ *
+ * A DirectorySnapshot is the checkpoint: once written, the segments whose records are
+ * all in it are deleted. At boot the snapshot is loaded and then the journal replayed
+ * over it: the record with the highest version of each door wins if it is newer than
+ * the door. Versions, which the snapshot keeps too, order the changes of a door even if
+ * two threads appended them in the other order. A record torn by a crash has a wrong
+ * checksum and ends the replay of its segment.
+ *
+ * One per building, see BuildingContext. Until open(), as in the benchmarks, appending
+ * does nothing.
+ *
+ * Segment layout, big endian: magic "ACSJ", format version, first sequence number, and
+ * then records of length, CRC32 of the rest, sequence number, time, door version, state
+ * before, state after, closed, cause and door id. A length of 0 is the end.
+ */
+public final class DoorJournal {
+  private static final Logger logger = LoggerFactory.getLogger(DoorJournal.class);
+  private static final int MAGIC = 0x4143534A; // "ACSJ"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_BYTES = 16;
+  // length, crc, sequence, time, version, before, after, closed, cause length, id length
+  private static final int RECORD_FIXED_BYTES = 4 + 4 + 8 + 8 + 8 + 1 + 1 + 1 + 1 + 2;
+  private static final String PREFIX = "segment-";
+  private static final String SUFFIX = ".log";
+
+  private volatile boolean open = false;
+  private Path dir;
+  private int segmentBytes;
+  private boolean syncCommits;
+  private long commitNanos;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition pending = lock.newCondition();
+  private final Condition durable = lock.newCondition();
+  // guarded by lock
+  private MappedByteBuffer segment;
+  private final List<Long> segmentFirstSequences = new ArrayList<>(); // oldest first
+  private long nextSequence = 1;
+  private long appendedSequence = 0;
+  private long forcedSequence = 0;
+  private final CRC32 crc = new CRC32();
+
+  private long appended = 0;
+  private long bytesAppended = 0;
+  private long forces = 0;
+  private long segmentsDeleted = 0;
+  private long replayed = 0;
+
+  /**
+   * Made by BuildingContext, one per building.
+   * Use getInstance() to access the instance of the current building.
+   */
+  DoorJournal() {}
+
+  /** The journal of the building bound to the calling thread, see BuildingContext. */
+  public static DoorJournal getInstance() {
+    return BuildingContext.current().getDoorJournal();
+  }
+
+  /**
+   * Replays the segments in the directory over the doors of the current building, and
+   * then starts appending to a new segment. Doors must already be made or loaded.
+   */
+  public void open(Path dir) throws IOException {
+    if (open) {
+      return;
+    }
+    this.dir = dir;
+    segmentBytes = Config.getInt("journal.segmentBytes", 16 << 20);
+    syncCommits = Config.getBoolean("journal.syncCommits", false);
+    commitNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong("journal.commitMillis", 10));
+    Files.createDirectories(dir);
+
+    List<Long> existing = listSegments();
+    long lastSequence = replay(existing);
+    lock.lock();
+    try {
+      segmentFirstSequences.addAll(existing);
+      nextSequence = lastSequence + 1;
+      appendedSequence = lastSequence;
+      forcedSequence = lastSequence;
+      newSegment();
+    } finally {
+      lock.unlock();
+    }
+    BuildingContext building = BuildingContext.current();
+    Thread committer = building.newThread(this::commitLoop, "journal-committer");
+    committer.setDaemon(true);
+    open = true;
+    committer.start();
+    Runtime.getRuntime().addShutdownHook(building.newThread(this::forceAll, "journal-shutdown"));
+    logger.info("Door journal {}: {} records replayed from {} segments, group commit {}",
+        dir.toAbsolutePath(), replayed, existing.size(),
+        syncCommits ? "before answering" : "every " + commitNanos / 1_000_000 + " ms");
+  }
+
+  /**
+   * Appends the change of a door from the word before to the word after, both without the
+   * reserved flag. With syncCommits, returns once the record is on disk.
+   */
+  void append(Door door, long before, long after, String cause) {
+    if (!open) {
+      return;
+    }
+    byte[] id = door.getId().getBytes(StandardCharsets.UTF_8);
+    byte[] causeBytes = cause.getBytes(StandardCharsets.US_ASCII);
+    int length = RECORD_FIXED_BYTES + causeBytes.length + id.length;
+    long sequence;
+    lock.lock();
+    try {
+      if (segment.remaining() < length + 4) { // always room for the 0 that ends it
+        segment.force();
+        newSegmentUnchecked();
+      }
+      sequence = nextSequence++;
+      int start = segment.position();
+      segment.position(start + 8);
+      segment.putLong(sequence);
+      segment.putLong(System.currentTimeMillis());
+      segment.putLong(DoorState.getVersion(after));
+      segment.put((byte) DoorState.of(before).getCode());
+      segment.put((byte) DoorState.of(after).getCode());
+      segment.put((byte) (DoorState.isClosed(after) ? 1 : 0));
+      segment.put((byte) causeBytes.length);
+      segment.put(causeBytes);
+      segment.putShort((short) id.length);
+      segment.put(id);
+      crc.reset();
+      crc.update(segment.duplicate().position(start + 8).limit(start + length));
+      segment.putInt(start + 4, (int) crc.getValue());
+      segment.putInt(start, length); // last, a record is there only once complete
+      appendedSequence = sequence;
+      appended++;
+      bytesAppended += length;
+      if (syncCommits) {
+        pending.signal();
+        while (forcedSequence < sequence) {
+          durable.awaitUninterruptibly();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Whether open() has been called, until then nothing is journaled. */
+  public boolean isOpen() {
+    return open;
+  }
+
+  /** Sequence number of the last record appended, 0 if none. */
+  public long getSequence() {
+    lock.lock();
+    try {
+      return appendedSequence;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Called once a DirectorySnapshot with all the changes up to the sequence number is on
+   * disk: the segments whose records are all older are deleted.
+   */
+  public void checkpoint(long sequence) {
+    if (!open) {
+      return;
+    }
+    List<Long> deletable = new ArrayList<>();
+    lock.lock();
+    try {
+      // a segment ends where the next one begins, the current one is never deleted
+      while (segmentFirstSequences.size() > 1 && segmentFirstSequences.get(1) - 1 <= sequence) {
+        deletable.add(segmentFirstSequences.remove(0));
+      }
+      segmentsDeleted += deletable.size();
+    } finally {
+      lock.unlock();
+    }
+    for (long first : deletable) {
+      try {
+        Files.deleteIfExists(segmentFile(first));
+      } catch (IOException e) {
+        logger.warn("Could not delete journal segment {}: {}", segmentFile(first), e.toString());
+      }
+    }
+  }
+
+  // Forces the records appended since the last time, all at once. The pages are written
+  // without the lock, so doors go on changing meanwhile.
+  private void commitLoop() {
+    while (true) {
+      MappedByteBuffer toForce;
+      long target;
+      lock.lock();
+      try {
+        if (syncCommits) {
+          while (appendedSequence == forcedSequence) {
+            pending.awaitUninterruptibly();
+          }
+        } else {
+          pending.awaitNanos(commitNanos);
+          if (appendedSequence == forcedSequence) {
+            continue;
+          }
+        }
+        toForce = segment;
+        target = appendedSequence;
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        lock.unlock();
+      }
+      // records of a segment already replaced were forced when it was replaced
+      toForce.force();
+      lock.lock();
+      try {
+        forcedSequence = Math.max(forcedSequence, target);
+        forces++;
+        durable.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void forceAll() {
+    lock.lock();
+    try {
+      segment.force();
+      forcedSequence = appendedSequence;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Makes and maps the segment starting at nextSequence; the file is full size from the
+  // start, zeros, so appending never grows it. A segment left by a crash before its first
+  // record has the same name, and is made again. Called with the lock held.
+  private void newSegment() throws IOException {
+    Path file = segmentFile(nextSequence);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      // the mapping stays valid once the channel is closed
+      segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+    segment.putInt(MAGIC);
+    segment.putInt(FORMAT_VERSION);
+    segment.putLong(nextSequence);
+    if (segmentFirstSequences.isEmpty()
+        || segmentFirstSequences.get(segmentFirstSequences.size() - 1) != nextSequence) {
+      segmentFirstSequences.add(nextSequence);
+    }
+  }
+
+  // For append(), called by doors changing, that can't do anything about an IOException
+  private void newSegmentUnchecked() {
+    try {
+      newSegment();
+    } catch (IOException e) {
+      throw new IllegalStateException("could not make journal segment in " + dir, e);
+    }
+  }
+
+  private Path segmentFile(long firstSequence) {
+    return dir.resolve(String.format("%s%020d%s", PREFIX, firstSequence, SUFFIX));
+  }
+
+  private List<Long> listSegments() throws IOException {
+    List<Long> firsts = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          firsts.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+        } catch (NumberFormatException e) {
+          logger.warn("Ignoring {} in the journal directory", name);
+        }
+      }
+    }
+    firsts.sort(null);
+    return firsts;
+  }
+
+  // The state a record leaves a door in
+  private static final class Change {
+    final long version;
+    final DoorState state;
+    final boolean closed;
+
+    Change(long version, DoorState state, boolean closed) {
+      this.version = version;
+      this.state = state;
+      this.closed = closed;
+    }
+  }
+
+  // Reads all the segments, keeps the newest change of each door and puts the doors that
+  // are older in that state. Returns the last sequence number found.
+  private long replay(List<Long> firsts) throws IOException {
+    Map<String, Change> newest = new HashMap<>();
+    long lastSequence = 0;
+    for (long first : firsts) {
+      Path file = segmentFile(first);
+      ByteBuffer in;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      if (in.remaining() < HEADER_BYTES || in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+        logger.warn("Journal segment {} is not one, ignored", file);
+        continue;
+      }
+      in.getLong(); // first sequence, as in the name
+      CRC32 checksum = new CRC32();
+      while (in.remaining() >= RECORD_FIXED_BYTES) {
+        int start = in.position();
+        int length = in.getInt(start);
+        if (length < RECORD_FIXED_BYTES || length > in.remaining()) {
+          break; // the end, or a record torn by a crash
+        }
+        checksum.reset();
+        checksum.update(in.duplicate().position(start + 8).limit(start + length));
+        if ((int) checksum.getValue() != in.getInt(start + 4)) {
+          logger.warn("Journal segment {} torn at byte {}, rest ignored", file, start);
+          break;
+        }
+        in.position(start + 8);
+        long sequence = in.getLong();
+        in.getLong(); // time
+        long version = in.getLong();
+        in.get(); // state before
+        DoorState state = DoorState.of(in.get());
+        boolean closed = in.get() != 0;
+        int causeLength = in.get();
+        in.position(in.position() + causeLength); // cause, not needed to replay
+        byte[] id = new byte[in.getShort()];
+        in.get(id);
+        String doorId = new String(id, StandardCharsets.UTF_8);
+        Change change = newest.get(doorId);
+        if (change == null || version > change.version) {
+          newest.put(doorId, new Change(version, state, closed));
+        }
+        lastSequence = Math.max(lastSequence, sequence);
+        replayed++;
+      }
+    }
+
+    int restored = 0;
+    for (Map.Entry<String, Change> entry : newest.entrySet()) {
+      Door door = DirectoryDoors.getInstance().findDoorById(entry.getKey());
+      Change change = entry.getValue();
+      if (door != null && change.version > door.getVersion()) {
+        door.restore(change.state.getName(), change.closed, change.version);
+        door.resumeStateTimer();
+        restored++;
+      }
+    }
+    if (restored > 0) {
+      logger.info("{} doors put back as the journal had them", restored);
+    }
+    return lastSequence;
+  }
+
+  public JSONObject toJson() {
+    lock.lock();
+    try {
+      JSONObject json = new JSONObject();
+      json.put("open", open);
+      json.put("syncCommits", syncCommits);
+      json.put("sequence", appendedSequence);
+      json.put("forcedSequence", forcedSequence);
+      json.put("appended", appended);
+      json.put("bytesAppended", bytesAppended);
+      json.put("forces", forces);
+      json.put("segments", segmentFirstSequences.size());
+      json.put("segmentsDeleted", segmentsDeleted);
+      json.put("replayed", replayed);
+      return json;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
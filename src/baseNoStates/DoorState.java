@@ -5,16 +5,35 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Abstract class representing the state of a door.
- * Each door can have different states like Locked, Unlocked, or later Propped/UnlockedShortly.
+ * Each door can have different states like Locked, Unlocked, Propped or UnlockedShortly.
  * The State pattern lets us change door behaviour depending on its current state.
+ *
+ * States are stateless and shared by all doors, one INSTANCE each. A door keeps its state
+ * in a single word, see Door, and the actions of a state don't change the door: they
+ * compute the word the door goes to from the current one, and the door installs it
+ * with a compare-and-set, trying again if another thread changed the door meanwhile.
+ * So an action may be computed more than once and, besides logging, must not have any
+ * side effect. What has to happen once a state is entered goes in entered().
  */
 public abstract class DoorState {
   private static final Logger logger = LoggerFactory.getLogger(DoorState.class);
-  protected final Door door;
+
+  // The word of a door: state code in the lowest bits, then the closed flag, the flag
+  // of a door reserved by an AreaTransaction, and the number of changes, its version
+  static final int LOCKED = 0;
+  static final int UNLOCKED = 1;
+  static final int UNLOCKED_SHORTLY = 2;
+  static final int PROPPED = 3;
+  private static final long CODE_MASK = 0x7;
+  private static final long CLOSED_BIT = 0x8;
+  private static final long RESERVED_BIT = 0x10;
+  private static final int VERSION_SHIFT = 5;
+
+  private final int code;
   private final String name;
 
-  protected DoorState(Door door, String name) {
-    this.door = door;
+  protected DoorState(int code, String name) {
+    this.code = code;
     this.name = name;
   }
 
@@ -22,27 +41,106 @@ public abstract class DoorState {
     return name;
   }
 
-  public void open() {
-    invalid("open");
+  final int getCode() {
+    return code;
+  }
+
+  /** The state of a door word. */
+  static DoorState of(long word) {
+    switch ((int) (word & CODE_MASK)) {
+      case LOCKED:
+        return DoorStateLocked.INSTANCE;
+      case UNLOCKED_SHORTLY:
+        return DoorStateUnlockedShortly.INSTANCE;
+      case PROPPED:
+        return DoorStatePropped.INSTANCE;
+      default:
+        return DoorStateUnlocked.INSTANCE;
+    }
+  }
+
+  static DoorState ofName(String name) {
+    switch (name) {
+      case "locked":
+        return DoorStateLocked.INSTANCE;
+      case "unlocked_shortly":
+        return DoorStateUnlockedShortly.INSTANCE;
+      case "propped":
+        return DoorStatePropped.INSTANCE;
+      default:
+        return DoorStateUnlocked.INSTANCE;
+    }
+  }
+
+  static long word(DoorState state, boolean closed) {
+    return state.code | (closed ? CLOSED_BIT : 0);
+  }
+
+  static long word(DoorState state, boolean closed, long version) {
+    return word(state, closed) | (version << VERSION_SHIFT);
+  }
+
+  static boolean isClosed(long word) {
+    return (word & CLOSED_BIT) != 0;
+  }
+
+  static boolean isReserved(long word) {
+    return (word & RESERVED_BIT) != 0;
+  }
+
+  static long setReserved(long word, boolean reserved) {
+    return reserved ? word | RESERVED_BIT : word & ~RESERVED_BIT;
+  }
+
+  static long getVersion(long word) {
+    return word >>> VERSION_SHIFT;
+  }
+
+  // the same word, one version later
+  static long nextVersion(long word) {
+    return word + (1L << VERSION_SHIFT);
+  }
+
+  /** The word with the door in this state, closed or not as it was. */
+  protected final long enter(long word) {
+    return (word & ~CODE_MASK) | code;
+  }
+
+  protected static long setClosed(long word, boolean closed) {
+    return closed ? word | CLOSED_BIT : word & ~CLOSED_BIT;
+  }
+
+  // Each action returns the next word, or the same word if the action does nothing here
+
+  public long open(Door door, long word) {
+    return invalid(door, "open", word);
+  }
+
+  public long close(Door door, long word) {
+    return invalid(door, "close", word);
   }
 
-  public void close() {
-    invalid("close");
+  public long lock(Door door, long word) {
+    return invalid(door, "lock", word);
   }
 
-  public void lock() {
-    invalid("lock");
+  public long unlock(Door door, long word) {
+    return invalid(door, "unlock", word);
   }
 
-  public void unlock() {
-    invalid("unlock");
+  public long unlockShortly(Door door, long word) {
+    return invalid(door, "unlock_shortly", word);
   }
 
-  public void unlockShortly() {
-    invalid("unlock_shortly");
+  /**
+   * Called once the door has entered this state, with the word it was given and, for
+   * states that end by themselves, how long this one has to last.
+   */
+  void entered(Door door, long word, long durationMillis) {
   }
 
-  protected void invalid(String action) {
+  protected long invalid(Door door, String action, long word) {
     logger.warn("Action '{}' not allowed in state '{}' for door {}", action, name, door.getId());
+    return word;
   }
 }
@@ -7,40 +7,44 @@ import org.slf4j.LoggerFactory;
  */
 public class DoorStateLocked extends DoorState {
   private static final Logger logger = LoggerFactory.getLogger(DoorStateLocked.class);
-  public DoorStateLocked(Door door) {
-    super(door, "locked");
+  public static final DoorStateLocked INSTANCE = new DoorStateLocked();
+
+  private DoorStateLocked() {
+    super(LOCKED, "locked");
   }
 
   @Override
-  public void open() {
+  public long open(Door door, long word) {
     logger.warn("Cannot open door {} because it is locked", door.getId());
+    return word;
   }
 
   @Override
-  public void close() {
+  public long close(Door door, long word) {
     // Ensure physically closed
-    if (!door.isClosed()) {
-      door.setClosed(true);
+    if (!isClosed(word)) {
+      return setClosed(word, true);
     }
     else {
       logger.debug("Door {} is already closed", door.getId());
+      return word;
     }
   }
 
   @Override
-  public void lock() {
+  public long lock(Door door, long word) {
     logger.warn("Door {} is already locked", door.getId());
+    return word;
   }
 
   @Override
-  public void unlock() {
-    door.setState(new DoorStateUnlocked(door));
-    logger.info("Door {} is now unlocked", door.getId());
-
+  public long unlock(Door door, long word) {
+    logger.debug("Door {} is now unlocked", door.getId());
+    return DoorStateUnlocked.INSTANCE.enter(word);
   }
 
   @Override
-  public void unlockShortly() {
-    door.setState(new DoorStateUnlockedShortly(door));
+  public long unlockShortly(Door door, long word) {
+    return DoorStateUnlockedShortly.INSTANCE.enter(word);
   }
 }
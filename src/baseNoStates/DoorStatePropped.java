@@ -6,29 +6,32 @@ import org.slf4j.LoggerFactory;
 /** State: Propped. Door left open too long. Closes → Locked. */
 public class DoorStatePropped extends DoorState {
     private static final Logger logger = LoggerFactory.getLogger(DoorStatePropped.class);
-    public DoorStatePropped(Door door) {
-        super(door, "propped");
+    public static final DoorStatePropped INSTANCE = new DoorStatePropped();
+
+    private DoorStatePropped() {
+        super(PROPPED, "propped");
     }
 
     @Override
-    public void open() {
+    public long open(Door door, long word) {
         logger.warn("Door {} is already open (propped state)", door.getId());
+        return word;
     }
 
     @Override
-    public void close() {
-        logger.info("Door {} closed (was propped). Returning to Locked state.", door.getId());
-        door.setClosed(true);
-        door.setState(new DoorStateLocked(door));
+    public long close(Door door, long word) {
+        logger.debug("Door {} closed (was propped). Returning to Locked state.", door.getId());
+        return DoorStateLocked.INSTANCE.enter(setClosed(word, true));
     }
 
     @Override
-    public void lock() {
+    public long lock(Door door, long word) {
         logger.warn("Cannot lock door {} directly because it is propped open. Close it first.", door.getId());
+        return word;
     }
 
     @Override
-    public void unlock() {
-        door.setState(new DoorStateUnlocked(door));
+    public long unlock(Door door, long word) {
+        return DoorStateUnlocked.INSTANCE.enter(word);
     }
 }
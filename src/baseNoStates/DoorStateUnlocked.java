@@ -8,32 +8,35 @@ import org.slf4j.LoggerFactory;
  */
 public class DoorStateUnlocked extends DoorState {
     private static final Logger logger = LoggerFactory.getLogger(DoorStateUnlocked.class);
+    public static final DoorStateUnlocked INSTANCE = new DoorStateUnlocked();
 
-    public DoorStateUnlocked(Door door) {
-        super(door, "unlocked"); // "unlocked"
+    private DoorStateUnlocked() {
+        super(UNLOCKED, "unlocked"); // "unlocked"
     }
 
     @Override
-    public void open() {
-        door.setClosed(false);
+    public long open(Door door, long word) {
+        return setClosed(word, false);
     }
 
     @Override
-    public void close() {
-        door.setClosed(true);
+    public long close(Door door, long word) {
+        return setClosed(word, true);
     }
 
     @Override
-    public void lock() {
-        if (door.isClosed()) {
-            door.setState(new DoorStateLocked(door));
+    public long lock(Door door, long word) {
+        if (isClosed(word)) {
+            return DoorStateLocked.INSTANCE.enter(word);
         } else {
             logger.warn("Cannot lock door {} because it is open (must be closed first)", door.getId());
+            return word;
         }
     }
 
     @Override
-    public void unlock(){
+    public long unlock(Door door, long word) {
         logger.warn("Door {} is already unlocked", door.getId());
+        return word;
     }
-}
\ No newline at end of file
+}
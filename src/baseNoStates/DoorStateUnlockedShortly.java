@@ -1,65 +1,66 @@
 package baseNoStates;
 
-import java.util.Observable;
-import java.util.Observer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * State: UnlockedShortly. Temporarily unlocked (≈10 s) before re-locking or propped.
+ * State: UnlockedShortly. Temporarily unlocked (10 s by default, see Door) before
+ * re-locking or propped. Each short unlock period is a timer of the TimingWheel, which
+ * knows the version the door had when entering it.
  */
-public class DoorStateUnlockedShortly extends DoorState implements Observer {
+public class DoorStateUnlockedShortly extends DoorState {
   private static final Logger logger = LoggerFactory.getLogger(DoorStateUnlockedShortly.class);
-  private long startMillis;
+  public static final DoorStateUnlockedShortly INSTANCE = new DoorStateUnlockedShortly();
 
-  public DoorStateUnlockedShortly(Door door) {
-    super(door, "unlocked_shortly");
-    this.startMillis = System.currentTimeMillis();
-    Clock.getInstance().addObserver(this);
+  private DoorStateUnlockedShortly() {
+    super(UNLOCKED_SHORTLY, "unlocked_shortly");
   }
 
   @Override
-  public void update(Observable o, Object arg) {
-    long nowMillis = (Long) arg;
-    long elapsed = (nowMillis - startMillis) / 1000;
+  void entered(Door door, long word, long durationMillis) {
+    long enteredVersion = getVersion(word);
+    // like any other change of the door, run by its DoorExecutor owner
+    door.setStateTimer(TimingWheel.getInstance().schedule(durationMillis,
+        () -> DoorExecutor.getInstance().execute(door, () -> door.endShortUnlock(enteredVersion))));
+  }
 
-    if (elapsed >= 10) { // after 10 seconds
-      logger.info("Door {} short unlock period expired ({}s). Checking status...", door.getId(), elapsed);
-      Clock.getInstance().deleteObserver(this);
-      if (door.isClosed()) {
-        logger.info("Door {} is closed. Auto-locking.", door.getId());
-        door.setState(new DoorStateLocked(door));
-      } else {
-        logger.warn("Door {} remained open! Entering PROPPED state.", door.getId()); // WARN importante
-        door.setState(new DoorStatePropped(door));
-      }
+  // Where the door goes at the end of the period
+  long expire(Door door, long word) {
+    logger.debug("Door {} short unlock period expired. Checking status...", door.getId());
+    if (isClosed(word)) {
+      logger.debug("Door {} is closed. Auto-locking.", door.getId());
+      return DoorStateLocked.INSTANCE.enter(word);
+    } else {
+      logger.warn("Door {} remained open! Entering PROPPED state.", door.getId()); // WARN importante
+      return DoorStatePropped.INSTANCE.enter(word);
     }
   }
 
   @Override
-  public void open() {
+  public long open(Door door, long word) {
     logger.debug("Opening door {} (unlocked shortly)", door.getId());
-    door.setClosed(false);
+    return setClosed(word, false);
   }
 
   @Override
-  public void close() {
+  public long close(Door door, long word) {
     logger.debug("Closing door {} (unlocked shortly)", door.getId());
-    door.setClosed(true);
+    return setClosed(word, true);
   }
 
   @Override
-  public void lock() {
-    door.setState(new DoorStateLocked(door));
+  public long lock(Door door, long word) {
+    return DoorStateLocked.INSTANCE.enter(word);
   }
 
   @Override
-  public void unlock() {
-    invalid("unlock");
+  public long unlock(Door door, long word) {
+    return invalid(door, "unlock", word);
   }
 
   @Override
-  public void unlockShortly() {
+  public long unlockShortly(Door door, long word) {
     logger.warn("Door {} is already in unlocked_shortly state", door.getId());
+    return word;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,48 @@
+package baseNoStates;
+
+import baseNoStates.RequestParams.Param;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Resources the web server answers to, that is, the first segment of the request path.
+ * The names are kept as bytes so RequestRouter can match them without decoding the path,
+ * together with the query parameters a request to each of them must have.
+ */
+public enum Endpoint {
+  REFRESH("refresh"),
+  READER("reader", Param.CREDENTIAL, Param.ACTION, Param.DATETIME, Param.DOOR_ID),
+  AREA("area", Param.CREDENTIAL, Param.ACTION, Param.DATETIME, Param.AREA_ID),
+  GET_CHILDREN("get_children", Param.AREA_ID),
+  CONNECTIONS("connections"),
+  EVENTS("events"),
+  READER_BATCH("reader_batch"),
+  ADMISSION("admission"),
+  USERS("users"),
+  AUTH_CACHE("auth_cache"),
+  TIMERS("timers"),
+  METRICS("metrics"),
+  TRACES("traces"),
+  AUDIT("audit");
+
+  // values() makes a new array on each call, the router uses this one
+  static final Endpoint[] ALL = values();
+
+  private final String path;
+  final byte[] pathBytes;
+  final Param[] required;
+
+  Endpoint(String path, Param... required) {
+    this.path = path;
+    this.pathBytes = path.getBytes(StandardCharsets.US_ASCII);
+    this.required = required;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /** The HTTP method requests to this endpoint must use. */
+  public String getMethod() {
+    return this == READER_BATCH ? "POST" : "GET";
+  }
+}
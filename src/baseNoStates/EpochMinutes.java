@@ -0,0 +1,95 @@
+package baseNoStates;
+
+import java.time.LocalDateTime;
+
+/**
+ * Calendar arithmetic on plain numbers, counting minutes since 1970-01-01T00:00.
+ * Used on the request path instead of LocalDateTime so that no objects are created.
+ * The day algorithms are the usual proleptic Gregorian ones (H. Hinnant, "chrono-Compatible
+ * Low-Level Date Algorithms").
+ */
+public final class EpochMinutes {
+  public static final int MINUTES_PER_DAY = 24 * 60;
+  // no datetime, as a request without one has
+  public static final long NONE = Long.MIN_VALUE;
+
+  private EpochMinutes() {}
+
+  /** Days since 1970-01-01 of the given date. */
+  public static long daysFromCivil(int year, int month, int day) {
+    int y = month <= 2 ? year - 1 : year;
+    int era = Math.floorDiv(y, 400);
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return (long) era * 146097 + dayOfEra - 719468;
+  }
+
+  public static long of(int year, int month, int day, int hour, int minute) {
+    return daysFromCivil(year, month, day) * MINUTES_PER_DAY + hour * 60 + minute;
+  }
+
+  public static long of(LocalDateTime dateTime) {
+    return of(dateTime.getYear(), dateTime.getMonthValue(), dateTime.getDayOfMonth(),
+        dateTime.getHour(), dateTime.getMinute());
+  }
+
+  /**
+   * Appends the minute as yyyy-MM-ddTHH:mm, like LocalDateTime.toString() without
+   * seconds, and without making a LocalDateTime.
+   */
+  public static void appendTo(StringBuilder out, long epochMinute) {
+    long days = Math.floorDiv(epochMinute, MINUTES_PER_DAY);
+    int minuteOfDay = (int) (epochMinute - days * MINUTES_PER_DAY);
+    // civil_from_days, the inverse of daysFromCivil
+    long z = days + 719468;
+    long era = Math.floorDiv(z, 146097);
+    int dayOfEra = (int) (z - era * 146097);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int mp = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+    int month = mp < 10 ? mp + 3 : mp - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    appendPadded(out, year, 4);
+    out.append('-');
+    appendPadded(out, month, 2);
+    out.append('-');
+    appendPadded(out, day, 2);
+    out.append('T');
+    appendPadded(out, minuteOfDay / 60, 2);
+    out.append(':');
+    appendPadded(out, minuteOfDay % 60, 2);
+  }
+
+  public static String toString(long epochMinute) {
+    StringBuilder out = new StringBuilder(16);
+    appendTo(out, epochMinute);
+    return out.toString();
+  }
+
+  private static void appendPadded(StringBuilder out, long value, int width) {
+    for (long limit = 10; width > 1 && value < limit; width--, limit *= 10) {
+      out.append('0');
+    }
+    out.append(value);
+  }
+
+  public static boolean isLeapYear(int year) {
+    return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+  }
+
+  public static int lengthOfMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        return isLeapYear(year) ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package baseNoStates;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * An HTTP request as received by the web server: request line, headers and body.
+ * Header names are stored in lower case so that lookups are case insensitive.
+ * The target is kept as the bytes received, RequestRouter decodes it from them.
+ */
+public class HttpRequest {
+  private final String method;
+  private final byte[] target; // what comes after "localhost:8080"
+  private final String version;
+  private final Map<String, String> headers;
+  private final byte[] body;
+  private long receivedNanos; // System.nanoTime() of its first byte, 0 if not known
+
+  public HttpRequest(String method, byte[] target, String version,
+                     Map<String, String> headers, byte[] body) {
+    this.method = method;
+    this.target = target;
+    this.version = version;
+    this.headers = headers;
+    this.body = body;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public byte[] getTargetBytes() {
+    return target;
+  }
+
+  public String getTarget() {
+    return new String(target, StandardCharsets.ISO_8859_1);
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  /** The value of a header, given its name in lower case. */
+  public String getHeader(String name) {
+    return headers.get(name);
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  public long getReceivedNanos() {
+    return receivedNanos;
+  }
+
+  void setReceivedNanos(long receivedNanos) {
+    this.receivedNanos = receivedNanos;
+  }
+
+  /**
+   * HTTP/1.1 connections are persistent unless the client asks to close them,
+   * HTTP/1.0 ones only if the client explicitly asks to keep them alive.
+   */
+  public boolean isKeepAlive() {
+    String connection = getHeader("connection");
+    if ("HTTP/1.1".equals(version)) {
+      return connection == null || !connection.equalsIgnoreCase("close");
+    }
+    return connection != null && connection.equalsIgnoreCase("keep-alive");
+  }
+
+  @Override
+  public String toString() {
+    return method + " " + getTarget() + " " + version;
+  }
+}
@@ -0,0 +1,188 @@
+package baseNoStates;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Incremental HTTP request parser.
+ * Bytes can arrive in pieces of any size (as they come out of a non-blocking channel):
+ * the parser remembers where it was, so the request line, the headers and the body
+ * are assembled across as many calls to parse() as needed. Input that is not a request
+ * it accepts makes parse() throw a MalformedRequestException.
+ */
+public class HttpRequestParser {
+  private static final int MAX_LINE = 8192;
+  private static final int MAX_HEADERS = 100;
+  private static final int MAX_BODY = Config.getInt("maxBodyBytes", 1 << 20);
+
+  private static final byte[] NO_BODY = new byte[0];
+  private static final String[] KNOWN_METHODS = {"GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS"};
+  private static final String[] KNOWN_VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
+
+  private enum State { REQUEST_LINE, HEADERS, BODY, DONE }
+
+  private State state = State.REQUEST_LINE;
+  private final byte[] line = new byte[MAX_LINE];
+  private int lineLength = 0;
+
+  private String method;
+  private byte[] target;
+  private String version;
+  private Map<String, String> headers = new HashMap<>();
+  private byte[] body;
+  private int bodyRead;
+  private HttpRequest request;
+  private long receivedNanos; // when its first bytes were given to parse()
+
+  /**
+   * Consumes bytes from the buffer until a whole request has been read or the buffer
+   * is exhausted. Returns true when a request is ready; remaining bytes (a pipelined
+   * request) are left in the buffer for the next call after reset().
+   */
+  public boolean parse(ByteBuffer buffer) throws IOException {
+    if (receivedNanos == 0 && buffer.hasRemaining()) {
+      receivedNanos = System.nanoTime();
+    }
+    while (buffer.hasRemaining() && state != State.DONE) {
+      if (state == State.BODY) {
+        int n = Math.min(buffer.remaining(), body.length - bodyRead);
+        buffer.get(body, bodyRead, n);
+        bodyRead += n;
+        if (bodyRead == body.length) {
+          finish();
+        }
+        continue;
+      }
+      byte b = buffer.get();
+      if (b == '\n') {
+        lineCompleted();
+      } else if (b != '\r') {
+        if (lineLength == MAX_LINE) {
+          throw MalformedRequestException.badRequest("Line too long");
+        }
+        line[lineLength++] = b;
+      }
+    }
+    return state == State.DONE;
+  }
+
+  public HttpRequest getRequest() {
+    return request;
+  }
+
+  /** True if some bytes of a request have been read but the request is not complete. */
+  public boolean isInsideRequest() {
+    return state != State.REQUEST_LINE || lineLength > 0;
+  }
+
+  /** Prepares the parser for the next request on the same connection. */
+  public void reset() {
+    state = State.REQUEST_LINE;
+    lineLength = 0;
+    method = null;
+    target = null;
+    version = null;
+    headers = new HashMap<>();
+    body = null;
+    bodyRead = 0;
+    request = null;
+    receivedNanos = 0;
+  }
+
+  private void lineCompleted() throws IOException {
+    if (state == State.REQUEST_LINE) {
+      if (lineLength > 0) { // else a stray CRLF between pipelined requests
+        requestLineCompleted();
+      }
+      lineLength = 0;
+      return;
+    }
+    if (lineLength == 0) {
+      headersCompleted();
+      return;
+    }
+    String text = new String(line, 0, lineLength, StandardCharsets.ISO_8859_1);
+    lineLength = 0;
+    if (headers.size() == MAX_HEADERS) {
+      throw MalformedRequestException.badRequest("Too many headers");
+    }
+    int colon = text.indexOf(':');
+    if (colon > 0) {
+      headers.put(text.substring(0, colon).trim().toLowerCase(), text.substring(colon + 1).trim());
+    }
+  }
+
+  // METHOD SP target [SP version], kept as bytes; common methods and versions are constants
+  private void requestLineCompleted() throws IOException {
+    int firstSpace = indexOf(' ', 0);
+    int secondSpace = firstSpace < 0 ? -1 : indexOf(' ', firstSpace + 1);
+    if (firstSpace <= 0) {
+      throw MalformedRequestException.badRequest("Malformed request line: "
+          + new String(line, 0, lineLength, StandardCharsets.ISO_8859_1));
+    }
+    int targetEnd = secondSpace < 0 ? lineLength : secondSpace;
+    method = token(0, firstSpace, KNOWN_METHODS);
+    target = Arrays.copyOfRange(line, firstSpace + 1, targetEnd);
+    version = secondSpace < 0 ? "HTTP/1.0" : token(secondSpace + 1, lineLength, KNOWN_VERSIONS);
+    state = State.HEADERS;
+  }
+
+  private int indexOf(char c, int from) {
+    for (int i = from; i < lineLength; i++) {
+      if (line[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private String token(int start, int end, String[] known) {
+    for (String candidate : known) {
+      if (candidate.length() == end - start) {
+        boolean same = true;
+        for (int i = 0; i < candidate.length() && same; i++) {
+          same = candidate.charAt(i) == line[start + i];
+        }
+        if (same) {
+          return candidate;
+        }
+      }
+    }
+    return new String(line, start, end - start, StandardCharsets.ISO_8859_1).toUpperCase();
+  }
+
+  private void headersCompleted() throws IOException {
+    String contentLength = headers.get("content-length");
+    long length = 0;
+    if (contentLength != null) {
+      try {
+        length = Long.parseLong(contentLength);
+      } catch (NumberFormatException e) {
+        throw MalformedRequestException.badRequest("Malformed Content-Length: " + contentLength);
+      }
+    }
+    if (length < 0) {
+      throw MalformedRequestException.badRequest("Malformed Content-Length: " + contentLength);
+    }
+    if (length > MAX_BODY) {
+      throw new MalformedRequestException(413, "Payload Too Large", "Body too large: " + length);
+    }
+    body = length == 0 ? NO_BODY : new byte[(int) length];
+    bodyRead = 0;
+    if (length == 0) {
+      finish();
+    } else {
+      state = State.BODY;
+    }
+  }
+
+  private void finish() {
+    request = new HttpRequest(method, target, version, headers, body);
+    request.setReceivedNanos(receivedNanos);
+    state = State.DONE;
+  }
+}
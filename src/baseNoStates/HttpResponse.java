@@ -0,0 +1,144 @@
+package baseNoStates;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.JSONObject;
+
+/**
+ * An HTTP response ready to be sent: status line, headers and an already encoded body.
+ * The body is kept as bytes so that Content-Length is always exact and the same
+ * response can be written to a blocking stream or to a channel.
+ * Streaming responses have instead a StreamingBody, written after the head, and
+ * always close the connection at the end.
+ */
+public class HttpResponse {
+  private final int status;
+  private final String reason;
+  private final String contentType;
+  private final byte[] body;
+  private final StreamingBody streamingBody;
+  private final Map<String, String> headers = new LinkedHashMap<>();
+  private RequestTrace trace; // of the request answered, null if not traced
+
+  public HttpResponse(int status, String reason, String contentType, byte[] body) {
+    this.status = status;
+    this.reason = reason;
+    this.contentType = contentType;
+    this.body = body;
+    this.streamingBody = null;
+  }
+
+  public HttpResponse(String contentType, StreamingBody streamingBody) {
+    this.status = 200;
+    this.reason = "OK";
+    this.contentType = contentType;
+    this.body = null;
+    this.streamingBody = streamingBody;
+  }
+
+  public static HttpResponse json(JSONObject json) {
+    return new HttpResponse(200, "OK", "application/json",
+        json.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Answer to a conditional request whose ETag still matches: no body, the client
+   * uses its copy.
+   */
+  public static HttpResponse notModified(String etag) {
+    return new HttpResponse(304, "Not Modified", "application/json", new byte[0])
+        .setHeader("ETag", etag);
+  }
+
+  /**
+   * An error answer with a small JSON body, so the Javascript client can always parse it.
+   */
+  public static HttpResponse error(int status, String reason, String message) {
+    JSONObject json = new JSONObject();
+    json.put("error", message);
+    return new HttpResponse(status, reason, "application/json",
+        json.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  public boolean isStreaming() {
+    return streamingBody != null;
+  }
+
+  public StreamingBody getStreamingBody() {
+    return streamingBody;
+  }
+
+  /** The same streaming answer, with its body written by the given one instead. */
+  HttpResponse withStreamingBody(StreamingBody newBody) {
+    HttpResponse response = new HttpResponse(contentType, newBody);
+    response.headers.putAll(headers);
+    response.trace = trace;
+    return response;
+  }
+
+  public RequestTrace getTrace() {
+    return trace;
+  }
+
+  void setTrace(RequestTrace trace) {
+    this.trace = trace;
+  }
+
+  public HttpResponse setHeader(String name, String value) {
+    headers.put(name, value);
+    return this;
+  }
+
+  /**
+   * Encodes status line, headers and body.
+   * With keepAlive the client is told the connection stays open and for how long.
+   */
+  public byte[] toBytes(String version, boolean keepAlive, int keepAliveSeconds) {
+    byte[] head = headBytes(version, keepAlive, keepAliveSeconds);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(head.length + body.length);
+    out.writeBytes(head);
+    out.writeBytes(body);
+    return out.toByteArray();
+  }
+
+  /**
+   * Status line and headers only. For a streaming response, the body follows without
+   * Content-Length until the connection is closed.
+   */
+  public byte[] headBytes(String version, boolean keepAlive, int keepAliveSeconds) {
+    keepAlive = keepAlive && !isStreaming();
+    StringBuilder head = new StringBuilder(128);
+    head.append(version).append(' ').append(status).append(' ').append(reason).append("\r\n");
+    head.append("Content-type: ").append(contentType).append("\r\n");
+    if (isStreaming()) {
+      head.append("Cache-Control: no-cache\r\n");
+    } else {
+      head.append("Content-Length: ").append(body.length).append("\r\n");
+    }
+    // SUPERIMPORTANT to avoid the CORS problem :
+    // "Cross-Origin Request Blocked: The Same Origin Policy disallows reading
+    // the remote resource..."
+    head.append("Access-Control-Allow-Origin: *\r\n");
+    if (keepAlive) {
+      head.append("Connection: keep-alive\r\n");
+      head.append("Keep-Alive: timeout=").append(keepAliveSeconds).append("\r\n");
+    } else {
+      head.append("Connection: close\r\n");
+    }
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    head.append("\r\n"); // blank line between headers and content, very important !
+    return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
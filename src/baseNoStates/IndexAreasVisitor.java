@@ -0,0 +1,43 @@
+package baseNoStates;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Visitor that indexes a hierarchy: every area by its id, and the spaces numbered
+// 0, 1, 2... in traversal order, so that a set of spaces can be a bitset indexed
+// by Space.getIndex().
+
+public class IndexAreasVisitor implements AreaVisitor {
+  private final Map<String, Area> areasById = new HashMap<>();
+  private int numSpaces;
+
+  public IndexAreasVisitor() {
+    this(0);
+  }
+
+  /** To index a subtree added to an indexed hierarchy, numbering its spaces after the others. */
+  public IndexAreasVisitor(int firstSpaceIndex) {
+    numSpaces = firstSpaceIndex;
+  }
+
+  @Override
+  public void visit(Space space) {
+    space.setIndex(numSpaces++);
+    areasById.put(space.getId(), space);
+  }
+
+  @Override
+  public void visit(Partition partition) {
+    // Partitions have no number, only their spaces.
+    areasById.put(partition.getId(), partition);
+  }
+
+  public Map<String, Area> getAreasById() {
+    return areasById;
+  }
+
+  /** Number of the next space, that is, of spaces numbered including those before the first. */
+  public int getNumSpaces() {
+    return numSpaces;
+  }
+}
@@ -0,0 +1,100 @@
+package baseNoStates;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations in nanoseconds, to get percentiles of request latencies.
+ * Like an HdrHistogram, values below 64 have a bucket each and every power of two above is
+ * split in 32 buckets, so a percentile is off by at most 1/32, about 3%, from the real
+ * value, whatever its magnitude. Recording is one increment of an AtomicLongArray and
+ * two LongAdder adds, without locks, from any number of threads. Values above about
+ * 18 minutes are counted in the last bucket.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // per power of two
+  private static final int LINEAR = 2 * SUB_BUCKETS; // 0..63 exact
+  private static final int MAX_EXPONENT = 40; // 2^40 ns, 18 minutes
+  private static final int NUM_BUCKETS =
+      LINEAR + (MAX_EXPONENT - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.getAndIncrement(bucketOf(nanos));
+    count.increment();
+    sum.add(nanos);
+    if (nanos > max.get()) {
+      max.accumulateAndGet(nanos, Math::max);
+    }
+  }
+
+  static int bucketOf(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value); // at least 6
+    if (exponent >= MAX_EXPONENT) {
+      return NUM_BUCKETS - 1;
+    }
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+  }
+
+  // the largest value that falls in the bucket
+  static long highestValueOf(int bucket) {
+    if (bucket < LINEAR) {
+      return bucket;
+    }
+    int exponent = (bucket - LINEAR) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+    int subBucket = (bucket - LINEAR) % SUB_BUCKETS;
+    int shift = exponent - SUB_BUCKET_BITS;
+    return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSumNanos() {
+    return sum.sum();
+  }
+
+  public long getMaxNanos() {
+    return max.get();
+  }
+
+  /**
+   * The value below which are the given fraction of the recorded ones, like 0.99 for
+   * the 99th percentile, or 0 if nothing has been recorded. Buckets are read one by one
+   * while others may be recording, so it is as exact as a live reading can be.
+   */
+  public long valueAtQuantile(double quantile) {
+    long[] snapshot = new long[NUM_BUCKETS];
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+}
@@ -1,15 +1,90 @@
 package baseNoStates;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class Main {
     private static final Logger logger = LoggerFactory.getLogger(Main.class);
     public static void main(String[] args) {
+        Config.loadArgs(args);
         logger.info("System starting up...");
-        DirectoryDoors.getInstance().makeDoors();
-        DirectoryAreas.getInstance().makeAreas();
-        DirectoryUserGroups.getInstance().makeUserGroups();
-        new WebServer();
+        // --buildings=a,b,c serves several sites from this process, the first is the default
+        String[] buildings = Config.getString("buildings", "default").split(",");
+        for (int i = 0; i < buildings.length; i++) {
+            BuildingContext building = BuildingContext.create(buildings[i].trim());
+            boolean isDefault = i == 0;
+            building.run(() -> startBuilding(building, isDefault));
+        }
+        startAccessLog();
+        // --server=classic|virtual uses the blocking WebServer, --server=nio the selector based one
+        if (Config.getString("server", "classic").equalsIgnoreCase("nio")) {
+            new NioWebServer();
+        } else {
+            new WebServer();
+        }
+    }
+
+    // door requests of all buildings to --accessLog.file, see AccessLog
+    private static void startAccessLog() {
+        if (!Config.getBoolean("accessLog.enabled", true)) {
+            return;
+        }
+        Path file = Paths.get(Config.getString("accessLog.file", "access.jsonl"));
+        try {
+            AccessLog.getInstance().start(file);
+        } catch (IOException e) {
+            logger.error("Could not open access log {}, requests are not logged: {}", file, e.toString());
+        }
+    }
+
+    // Runs with the building bound, so the directories made or loaded are its own
+    private static void startBuilding(BuildingContext building, boolean isDefault) {
+        // directories and door states as they were when the server stopped, if possible
+        Path snapshot = buildingPath(Config.getString("snapshot.file", "directories.snapshot"),
+                building, isDefault);
+        boolean useSnapshot = Config.getBoolean("snapshot.enabled", true);
+        if (!useSnapshot || !DirectorySnapshot.load(snapshot)) {
+            DirectoryDoors.getInstance().makeDoors();
+            DirectoryAreas.getInstance().makeAreas();
+            DirectoryUserGroups.getInstance().makeUserGroups();
+        }
+        // then the door changes after that snapshot, see DoorJournal
+        if (Config.getBoolean("journal.enabled", true)) {
+            Path journalDir = buildingPath(Config.getString("journal.dir", "journal"), building, isDefault);
+            try {
+                DoorJournal.getInstance().open(journalDir);
+            } catch (IOException e) {
+                logger.error("Could not open door journal {}, changes are not journaled: {}",
+                        journalDir, e.toString());
+            }
+        }
+        // every door request answered, to query by door, area or credential, see AuditStore
+        if (Config.getBoolean("audit.enabled", true)) {
+            Path auditDir = buildingPath(Config.getString("audit.dir", "audit"), building, isDefault);
+            try {
+                AuditStore.getInstance().open(auditDir);
+            } catch (IOException e) {
+                logger.error("Could not open audit store {}, requests are not recorded: {}",
+                        auditDir, e.toString());
+            }
+        }
+        if (useSnapshot) {
+            DirectorySnapshot.startWriting(snapshot);
+        }
+        DoorEventStream.getInstance(); // starts recording door changes for /events
+    }
+
+    // The name as is for the default building, with -{id} before the extension for the others
+    private static Path buildingPath(String name, BuildingContext building, boolean isDefault) {
+        if (!isDefault) {
+            int dot = name.lastIndexOf('.');
+            name = dot > 0
+                    ? name.substring(0, dot) + "-" + building.getId() + name.substring(dot)
+                    : name + "-" + building.getId();
+        }
+        return Paths.get(name);
     }
 }
@@ -0,0 +1,29 @@
+package baseNoStates;
+
+import java.io.IOException;
+
+/**
+ * Thrown by HttpRequestParser when the bytes received are not a request it accepts, like
+ * a malformed request line or Content-Length, or a body too large. Every front end answers
+ * it with toResponse() and closes the connection, as what follows can't be parsed either.
+ */
+public class MalformedRequestException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final int status;
+  private final String reason;
+
+  public MalformedRequestException(int status, String reason, String message) {
+    super(message);
+    this.status = status;
+    this.reason = reason;
+  }
+
+  static MalformedRequestException badRequest(String message) {
+    return new MalformedRequestException(400, "Bad Request", message);
+  }
+
+  public HttpResponse toResponse() {
+    return HttpResponse.error(status, reason, getMessage());
+  }
+}
@@ -0,0 +1,139 @@
+package baseNoStates;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the requests the server answers, given at /metrics
+ * in the Prometheus text format so that a local scraper can read them.
+ * RequestDispatcher records every request, whichever web server mode it came through,
+ * with its endpoint, status and how long it took, and RequestReader records every door
+ * request, alone or of a batch or area, as authorized or denied. Recording only adds to
+ * LongAdders and LatencyHistograms, no locks, so it costs well under a microsecond (see
+ * bench.MetricsRecordingBenchmark).
+ * Process wide, like ConnectionStats, so the numbers of all buildings add up. Made
+ * eagerly instead of in a synchronized getInstance(), that would be paid on each record.
+ */
+public final class MetricsRegistry {
+  private static final String PREFIX = "access_control_";
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+  private static final MetricsRegistry uniqueInstance = new MetricsRegistry(); // after those
+
+  private final LatencyHistogram[] latencies = new LatencyHistogram[Endpoint.ALL.length];
+  // [endpoint][status / 100 - 1], with one more endpoint at the end for requests that
+  // could not be routed, like a 400 before knowing the endpoint
+  private final LongAdder[][] responses = new LongAdder[Endpoint.ALL.length + 1][];
+  private final LongAdder swipesAuthorized = new LongAdder();
+  private final LongAdder swipesDenied = new LongAdder();
+
+  private MetricsRegistry() {
+    for (int i = 0; i < Endpoint.ALL.length; i++) {
+      latencies[i] = new LatencyHistogram();
+    }
+    for (int i = 0; i < responses.length; i++) {
+      responses[i] = new LongAdder[STATUS_CLASSES.length];
+      for (int j = 0; j < STATUS_CLASSES.length; j++) {
+        responses[i][j] = new LongAdder();
+      }
+    }
+  }
+
+  public static MetricsRegistry getInstance() {
+    return uniqueInstance;
+  }
+
+  /** The endpoint is null if the request could not be routed. */
+  public void recordRequest(Endpoint endpoint, int status, long nanos) {
+    int statusClass = Math.min(Math.max(status / 100, 1), STATUS_CLASSES.length) - 1;
+    if (endpoint == null) {
+      responses[Endpoint.ALL.length][statusClass].increment();
+      return;
+    }
+    latencies[endpoint.ordinal()].record(nanos);
+    responses[endpoint.ordinal()][statusClass].increment();
+  }
+
+  public void recordSwipe(boolean authorized) {
+    (authorized ? swipesAuthorized : swipesDenied).increment();
+  }
+
+  public LatencyHistogram getLatencies(Endpoint endpoint) {
+    return latencies[endpoint.ordinal()];
+  }
+
+  /**
+   * All metrics in the Prometheus text exposition format, version 0.0.4. Latencies are
+   * summaries with their quantiles in seconds, endpoints without requests are left out.
+   */
+  public String toPrometheus() {
+    StringBuilder out = new StringBuilder(4096);
+    String name = PREFIX + "request_duration_seconds";
+    out.append("# HELP ").append(name).append(" Time to make the answer of a request.\n");
+    out.append("# TYPE ").append(name).append(" summary\n");
+    for (Endpoint endpoint : Endpoint.ALL) {
+      LatencyHistogram histogram = latencies[endpoint.ordinal()];
+      long count = histogram.getCount();
+      if (count == 0) {
+        continue;
+      }
+      String label = "endpoint=\"" + endpoint.getPath() + "\"";
+      for (double quantile : QUANTILES) {
+        out.append(name).append('{').append(label).append(",quantile=\"").append(quantile)
+            .append("\"} ").append(seconds(histogram.valueAtQuantile(quantile))).append('\n');
+      }
+      out.append(name).append("_sum{").append(label).append("} ")
+          .append(seconds(histogram.getSumNanos())).append('\n');
+      out.append(name).append("_count{").append(label).append("} ").append(count).append('\n');
+    }
+
+    name = PREFIX + "requests_total";
+    out.append("# HELP ").append(name).append(" Requests answered, by endpoint and status.\n");
+    out.append("# TYPE ").append(name).append(" counter\n");
+    for (int i = 0; i < responses.length; i++) {
+      String path = i < Endpoint.ALL.length ? Endpoint.ALL[i].getPath() : "unrouted";
+      for (int j = 0; j < STATUS_CLASSES.length; j++) {
+        long value = responses[i][j].sum();
+        if (value > 0) {
+          out.append(name).append("{endpoint=\"").append(path)
+              .append("\",code=\"").append(STATUS_CLASSES[j]).append("\"} ")
+              .append(value).append('\n');
+        }
+      }
+    }
+
+    name = PREFIX + "swipes_total";
+    out.append("# HELP ").append(name)
+        .append(" Door requests of readers, batches and areas, by whether authorized.\n");
+    out.append("# TYPE ").append(name).append(" counter\n");
+    out.append(name).append("{outcome=\"authorized\"} ").append(swipesAuthorized.sum()).append('\n');
+    out.append(name).append("{outcome=\"denied\"} ").append(swipesDenied.sum()).append('\n');
+
+    ConnectionStats connections = ConnectionStats.getInstance();
+    counter(out, "connections_accepted_total", "Connections accepted.", connections.getAccepted());
+    counter(out, "connections_rejected_total", "Connections refused at the limit.",
+        connections.getRejected());
+    counter(out, "connections_idle_timeouts_total", "Connections closed for being idle.",
+        connections.getIdleTimeouts());
+    AccessLog accessLog = AccessLog.getInstance();
+    counter(out, "access_log_events_total", "Door requests put in the access log.",
+        accessLog.getLogged());
+    counter(out, "access_log_dropped_total", "Door requests not logged, the ring was full.",
+        accessLog.getDropped());
+    name = PREFIX + "connections_active";
+    out.append("# HELP ").append(name).append(" Connections open now.\n");
+    out.append("# TYPE ").append(name).append(" gauge\n");
+    out.append(name).append(' ').append(connections.getActive()).append('\n');
+    return out.toString();
+  }
+
+  private static void counter(StringBuilder out, String name, String help, long value) {
+    name = PREFIX + name;
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" counter\n");
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static String seconds(long nanos) {
+    return Double.toString(nanos / 1e9);
+  }
+}
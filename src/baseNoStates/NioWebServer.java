@@ -0,0 +1,462 @@
+package baseNoStates;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking front end of the web server, an alternative to the blocking WebServer.
+ * One acceptor thread hands new connections out to a small fixed set of event loops.
+ * Each event loop owns a Selector and a direct ByteBuffer for reading, and feeds the
+ * bytes to a per connection HttpRequestParser, so a connection costs only its parser
+ * state and not a thread. Requests are answered through the same RequestDispatcher
+ * as WebServer, with the same keep-alive rules. Streaming answers (like /events) are
+ * written by a virtual thread each, and the event loop sends what they write.
+ * Requests that may block (RequestDispatcher.mayBlock: areas, batches, door requests in
+ * ACTOR mode) are dispatched on a virtual thread too, and the loop sends the answer once
+ * it is ready, so one of them waiting for a door doesn't stall the other connections.
+ * The connection is not read meanwhile, the answers go out in the order of the requests.
+ */
+public class NioWebServer {
+  private static final Logger logger = LoggerFactory.getLogger(NioWebServer.class);
+  private static final int PORT = Config.getInt("port", 8080);
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+  private static final long IDLE_CHECK_MILLIS = 1000;
+  private static final long MAX_PENDING_BYTES = 256 * 1024;
+
+  private final int maxConnections = Config.getInt("maxConnections", 10000);
+  private final int idleTimeoutMillis = Config.getInt("idleTimeoutMillis", 15000);
+  private final int maxRequestsPerConnection = Config.getInt("maxRequestsPerConnection", 1000);
+  private final ConnectionStats stats = ConnectionStats.getInstance();
+  private final EventLoop[] eventLoops;
+  // runs the bodies of streaming answers, like /events, one cheap virtual thread each
+  private final ExecutorService streamWriters =
+      Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("stream-", 0).factory());
+  // dispatches the requests that may block, one virtual thread each
+  private final ExecutorService blockingDispatchers =
+      Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("dispatch-", 0).factory());
+
+  public NioWebServer() {
+    int numLoops = Config.getInt("eventLoops", Runtime.getRuntime().availableProcessors());
+    eventLoops = new EventLoop[numLoops];
+    try {
+      for (int i = 0; i < numLoops; i++) {
+        eventLoops[i] = new EventLoop(i);
+        eventLoops[i].start();
+      }
+      ServerSocketChannel serverChannel = ServerSocketChannel.open();
+      serverChannel.bind(new InetSocketAddress(PORT), 1024);
+      serverChannel.configureBlocking(false);
+      Selector acceptSelector = Selector.open();
+      serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+      logger.info("NIO server started with {} event loops. Listening for connections on port: {}",
+          numLoops, PORT);
+      acceptLoop(serverChannel, acceptSelector);
+    } catch (IOException e) {
+      logger.error("Server Connection error: {}", e.getMessage());
+    }
+  }
+
+  // Hands out accepted connections to the event loops in round robin
+  private void acceptLoop(ServerSocketChannel serverChannel, Selector acceptSelector)
+      throws IOException {
+    int next = 0;
+    while (true) {
+      acceptSelector.select();
+      acceptSelector.selectedKeys().clear();
+      SocketChannel channel;
+      while ((channel = serverChannel.accept()) != null) {
+        stats.connectionAccepted();
+        if (stats.getActive() >= maxConnections) {
+          stats.connectionRejected();
+          logger.warn("Connection rejected, {} connections already open", maxConnections);
+          reject(channel);
+          continue;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        stats.connectionOpened();
+        eventLoops[next].register(channel);
+        next = (next + 1) % eventLoops.length;
+      }
+    }
+  }
+
+  private void reject(SocketChannel channel) {
+    try (channel) {
+      HttpResponse busy = HttpResponse.error(503, "Service Unavailable", "too many connections");
+      channel.write(ByteBuffer.wrap(busy.toBytes("HTTP/1.1", false, 0)));
+    } catch (IOException e) {
+      logger.debug("Could not answer rejected connection: {}", e.getMessage());
+    }
+  }
+
+
+  private class EventLoop extends Thread {
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    // work handed in by other threads, run by the loop itself so only it touches the selector
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    EventLoop(int index) throws IOException {
+      super("event-loop-" + index);
+      setDaemon(true);
+      selector = Selector.open();
+    }
+
+    void register(SocketChannel channel) {
+      execute(() -> {
+        try {
+          SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+          key.attach(new Connection(this, channel, key));
+        } catch (ClosedChannelException e) {
+          stats.connectionClosed();
+        }
+      });
+    }
+
+    void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      long lastIdleCheck = System.currentTimeMillis();
+      while (true) {
+        try {
+          selector.select(IDLE_CHECK_MILLIS);
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Connection connection = (Connection) key.attachment();
+            if (connection == null || !key.isValid()) {
+              continue;
+            }
+            if (key.isReadable()) {
+              connection.onReadable(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.flush();
+            }
+          }
+          long now = System.currentTimeMillis();
+          if (now - lastIdleCheck >= IDLE_CHECK_MILLIS) {
+            closeIdleConnections(now);
+            lastIdleCheck = now;
+          }
+        } catch (Exception e) {
+          logger.error("Exception in {}: ", getName(), e);
+        }
+      }
+    }
+
+    private void closeIdleConnections(long now) {
+      for (SelectionKey key : selector.keys()) {
+        Connection connection = (Connection) key.attachment();
+        if (connection != null && connection.stream == null && !connection.dispatching
+            && now - connection.lastActivity > idleTimeoutMillis) {
+          stats.idleTimeout();
+          connection.close();
+        }
+      }
+    }
+  }
+
+
+  private class Connection {
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final HttpRequestParser parser = new HttpRequestParser();
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private long lastActivity = System.currentTimeMillis();
+    private int served = 0;
+    private boolean closeAfterWrite = false;
+    private volatile boolean closed = false;
+    private ChannelOutputStream stream; // while answering with a streaming body
+    // while a request is dispatched on another thread, and the bytes read after it
+    private boolean dispatching = false;
+    private ByteBuffer held = null;
+
+    Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+      this.loop = loop;
+      this.channel = channel;
+      this.key = key;
+    }
+
+    void onReadable(ByteBuffer readBuffer) {
+      lastActivity = System.currentTimeMillis();
+      try {
+        readBuffer.clear();
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+          close();
+          return;
+        }
+        readBuffer.flip();
+        parseRequests(readBuffer);
+      } catch (IOException e) {
+        logger.debug("Closing connection after error: {}", e.getMessage());
+        close();
+      }
+    }
+
+    // Answers the requests in the bytes, until one is dispatched on another thread: the
+    // rest is then kept for when it has been answered, as readBuffer is of the whole loop
+    private void parseRequests(ByteBuffer bytes) {
+      try {
+        while (bytes.hasRemaining() && !closeAfterWrite && !dispatching) {
+          if (parser.parse(bytes)) {
+            HttpRequest request = parser.getRequest();
+            parser.reset();
+            handle(request);
+          }
+        }
+        if (dispatching && bytes.hasRemaining()) {
+          held = ByteBuffer.allocate(bytes.remaining());
+          held.put(bytes).flip();
+        }
+      } catch (MalformedRequestException e) {
+        logger.debug("Malformed request, answering {} and closing: {}", e.toResponse().getStatus(),
+            e.getMessage());
+        closeAfterWrite = true;
+        send(ByteBuffer.wrap(e.toResponse().toBytes("HTTP/1.1", false, 0)));
+      } catch (IOException e) {
+        logger.debug("Closing connection after error: {}", e.getMessage());
+        close();
+      }
+    }
+
+    private void handle(HttpRequest request) {
+      served++;
+      boolean keepAlive = request.isKeepAlive() && served < maxRequestsPerConnection;
+      if (RequestDispatcher.mayBlock(request)) {
+        dispatching = true;
+        key.interestOps(0); // see flush()
+        blockingDispatchers.execute(() -> {
+          HttpResponse response;
+          boolean keep = keepAlive;
+          try {
+            // off the loop it may wait for a slot, as with WebServer
+            response = RequestDispatcher.dispatch(request, true);
+          } catch (Exception e) {
+            response = internalError(e);
+            keep = false;
+          }
+          HttpResponse answer = response;
+          boolean keepAnswer = keep;
+          loop.execute(() -> answerDispatched(answer, keepAnswer));
+        });
+        return;
+      }
+      HttpResponse response;
+      try {
+        // never queued for a slot: waiting here would stall every connection of the loop
+        response = RequestDispatcher.dispatch(request, false);
+      } catch (Exception e) {
+        answer(internalError(e), false);
+        return;
+      }
+      answer(response, keepAlive);
+    }
+
+    private HttpResponse internalError(Exception e) {
+      logger.error("Exception : ", e);
+      return HttpResponse.error(500, "Internal Server Error", e.toString());
+    }
+
+    // On the loop, when the thread dispatching a request that may block is done with it
+    private void answerDispatched(HttpResponse response, boolean keepAlive) {
+      dispatching = false;
+      if (closed) {
+        if (response.isStreaming()) {
+          response.getStreamingBody().discard();
+        }
+        return;
+      }
+      lastActivity = System.currentTimeMillis();
+      answer(response, keepAlive); // reading again once it is sent, see flush()
+      ByteBuffer rest = held;
+      held = null;
+      if (rest != null && !closed) {
+        parseRequests(rest);
+      }
+    }
+
+    private void answer(HttpResponse response, boolean keepAlive) {
+      stats.requestServed();
+      if (response.isStreaming()) {
+        startStreaming(response);
+        return;
+      }
+      closeAfterWrite = !keepAlive;
+      long writeStart = System.nanoTime();
+      send(ByteBuffer.wrap(response.toBytes("HTTP/1.1", keepAlive, idleTimeoutMillis / 1000)));
+      // what did not fit in the socket buffer is written when it is writable, not counted
+      RequestTrace.written(response, writeStart);
+    }
+
+    // The body is produced on a virtual thread, which only blocks itself when the client
+    // reads slower than the body is written. The event loop just moves the bytes.
+    private void startStreaming(HttpResponse response) {
+      stream = new ChannelOutputStream();
+      closeAfterWrite = true; // nothing else is read from this connection
+      streamWriters.execute(() -> {
+        long writeStart = System.nanoTime();
+        StreamingBody body = response.getStreamingBody();
+        boolean started = false;
+        try (ChannelOutputStream out = stream) {
+          out.write(response.headBytes("HTTP/1.1", false, 0));
+          started = true;
+          body.writeTo(out);
+          RequestTrace.written(response, writeStart);
+        } catch (IOException e) {
+          logger.debug("Streaming client went away: {}", e.getMessage());
+        } finally {
+          if (!started) {
+            body.discard();
+          }
+        }
+      });
+    }
+
+    // Must be called from the event loop thread of this connection
+    void send(ByteBuffer bytes) {
+      pendingWrites.add(bytes);
+      flush();
+    }
+
+    void flush() {
+      try {
+        while (!pendingWrites.isEmpty()) {
+          ByteBuffer head = pendingWrites.peek();
+          channel.write(head);
+          if (head.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE); // socket buffer full, wait for room
+            return;
+          }
+          pendingWrites.poll();
+          if (stream != null) {
+            stream.written(head.limit());
+          }
+        }
+        if (stream != null) {
+          if (stream.finished) {
+            close();
+          } else {
+            // all sent, wait for the writer to queue more (send() asks for OP_WRITE again if
+            // it does not fit), and for reads, to notice a client that goes away
+            key.interestOps(SelectionKey.OP_READ);
+          }
+        } else if (closeAfterWrite) {
+          close();
+        } else {
+          // not read while a request is dispatched elsewhere, its answer goes first
+          key.interestOps(dispatching ? 0 : SelectionKey.OP_READ);
+        }
+      } catch (IOException e) {
+        logger.debug("Closing connection after write error: {}", e.getMessage());
+        close();
+      }
+    }
+
+    void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (stream != null) {
+        stream.written(Long.MAX_VALUE / 2); // wake up a writer waiting for room
+      }
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.debug("Error closing channel: {}", e.getMessage());
+      }
+      stats.connectionClosed();
+    }
+
+
+    // Hands the bytes written by the streaming thread to the event loop, making the
+    // streaming thread wait while more than MAX_PENDING_BYTES are not yet sent.
+    private class ChannelOutputStream extends OutputStream {
+      private final ReentrantLock lock = new ReentrantLock();
+      private final Condition drained = lock.newCondition();
+      private long pendingBytes = 0;
+      private volatile boolean finished = false;
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+          throw new IOException("Connection closed");
+        }
+        ByteBuffer copy = ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + length));
+        lock.lock();
+        try {
+          while (pendingBytes > MAX_PENDING_BYTES && !closed) {
+            drained.await();
+          }
+          pendingBytes += length;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while streaming");
+        } finally {
+          lock.unlock();
+        }
+        loop.execute(() -> {
+          if (!closed) {
+            send(copy);
+          }
+        });
+      }
+
+      // called by the event loop once bytes have gone to the socket
+      void written(long bytes) {
+        lock.lock();
+        try {
+          pendingBytes -= bytes;
+          drained.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+
+      @Override
+      public void close() {
+        loop.execute(() -> {
+          finished = true;
+          Connection.this.flush();
+        });
+      }
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package baseNoStates;
+
+import baseNoStates.requests.RequestRefresh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The answer to /refresh, encoded once per door version instead of once per request.
+ * Every door change increments the version of DirectoryDoors; the snapshot remembers
+ * which version it was made from and is rebuilt (plain and gzipped) by the first request
+ * that finds a newer one. The ETag is that version, so a poll with If-None-Match and
+ * nothing changed is answered with a 304 by comparing two numbers, without looking
+ * at any door.
+ */
+public final class RefreshSnapshot {
+  // ETags of a previous run of the server must not match, versions start again from
+  // the snapshot or the journal. Also the epoch of the ids of /events, see DoorEventStream
+  static final String BOOT_ID = Long.toString(System.currentTimeMillis(), 36);
+
+  private volatile Snapshot current = null;
+
+  RefreshSnapshot() {}
+
+  public static RefreshSnapshot getInstance() {
+    return BuildingContext.current().getRefreshSnapshot();
+  }
+
+  public static String etagOf(long version) {
+    return "\"" + BOOT_ID + "-" + version + "\"";
+  }
+
+  public String getCurrentEtag() {
+    return etagOf(DirectoryDoors.getInstance().getVersion());
+  }
+
+  /** The answer for the current door version, built now only if doors changed. */
+  public Snapshot get() {
+    long version = DirectoryDoors.getInstance().getVersion();
+    Snapshot snapshot = current;
+    if (snapshot != null && snapshot.version == version) {
+      return snapshot;
+    }
+    synchronized (this) {
+      snapshot = current;
+      if (snapshot == null || snapshot.version != version) {
+        // version read before looking at the doors: if they change meanwhile the
+        // snapshot is just rebuilt once more by the next request
+        snapshot = build(version);
+        current = snapshot;
+      }
+      return snapshot;
+    }
+  }
+
+  private static Snapshot build(long version) {
+    RequestRefresh refresh = new RequestRefresh();
+    refresh.process();
+    byte[] json = refresh.answerToJson().toString().getBytes(StandardCharsets.UTF_8);
+    return new Snapshot(version, etagOf(version), json, gzip(json));
+  }
+
+  private static byte[] gzip(byte[] bytes) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 32);
+    try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+      gz.write(bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // can't happen writing to memory
+    }
+    return out.toByteArray();
+  }
+
+  /** An encoded /refresh answer and the door version it corresponds to. */
+  public static final class Snapshot {
+    private final long version;
+    private final String etag;
+    private final byte[] json;
+    private final byte[] gzippedJson;
+
+    private Snapshot(long version, String etag, byte[] json, byte[] gzippedJson) {
+      this.version = version;
+      this.etag = etag;
+      this.json = json;
+      this.gzippedJson = gzippedJson;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public String getEtag() {
+      return etag;
+    }
+
+    public byte[] getJson() {
+      return json;
+    }
+
+    public byte[] getGzippedJson() {
+      return gzippedJson;
+    }
+  }
+}
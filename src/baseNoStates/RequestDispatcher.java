@@ -0,0 +1,390 @@
+package baseNoStates;
+
+import baseNoStates.RequestParams.Param;
+import baseNoStates.requests.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns an HTTP request into one of the Request objects of baseNoStates.requests,
+ * processes it and makes the HTTP answer.
+ * It is shared by all the connection handling modes of the web server, so every
+ * mode answers exactly the same way. Requests that can't be routed get a 400, and
+ * requests that AdmissionController does not let in get a 429 or a 503.
+ * Each request is processed with its building bound to the thread (see BuildingContext),
+ * a request for a building that does not exist gets a 404.
+ * Every request is recorded in MetricsRegistry, given at /metrics, and traced with a
+ * RequestTrace, whose id the answer has in X-Request-Id. Door requests answered are
+ * recorded in the AuditStore, queried at /audit.
+ */
+public final class RequestDispatcher {
+  private static final Logger logger = LoggerFactory.getLogger(RequestDispatcher.class);
+  // one holder per connection thread (virtual thread or event loop), reused for every request
+  private static final ThreadLocal<RequestParams> params =
+      ThreadLocal.withInitial(RequestParams::new);
+
+  private RequestDispatcher() {}
+
+  public static HttpResponse dispatch(HttpRequest httpRequest) {
+    return dispatch(httpRequest, true);
+  }
+
+  /**
+   * As dispatch(httpRequest), but if mayWait is false the request is never queued for a
+   * processing slot: it gets a 503 at once when all are busy. For threads that serve
+   * other connections meanwhile, like the event loops of NioWebServer.
+   */
+  public static HttpResponse dispatch(HttpRequest httpRequest, boolean mayWait) {
+    long start = System.nanoTime();
+    RequestTrace trace = RequestTrace.begin(httpRequest);
+    RequestParams requestParams = params.get();
+    requestParams.clear(); // no endpoint of the last request if this one is not routed
+    HttpResponse response = dispatch(httpRequest, requestParams, mayWait);
+    // for a streaming response, the time to start it, the body is written afterwards
+    MetricsRegistry.getInstance().recordRequest(requestParams.getEndpoint(),
+        response.getStatus(), System.nanoTime() - start);
+    trace.answered(response);
+    return response;
+  }
+
+  /**
+   * Whether answering the request may block the thread for longer than the work itself:
+   * area requests fan out over a pool and in transaction mode wait for doors reserved by
+   * other transactions, batches go through many doors, and in ACTOR mode every door
+   * request waits for the owner of its door. Threads that must never block, like the
+   * event loops of NioWebServer, hand these to another thread. A reader request in DIRECT
+   * mode only waits while an AreaTransaction, running elsewhere, has its door reserved.
+   */
+  public static boolean mayBlock(HttpRequest httpRequest) {
+    RequestParams requestParams = params.get();
+    requestParams.clear();
+    byte[] target = httpRequest.getTargetBytes();
+    if (!RequestRouter.route(target, 0, target.length, requestParams)) {
+      return false; // answered with a 400 at once
+    }
+    switch (requestParams.getEndpoint()) {
+      case AREA:
+      case READER_BATCH:
+        return true;
+      case READER:
+        BuildingContext building = requestParams.getBuilding() == null
+            ? BuildingContext.getDefault() : BuildingContext.get(requestParams.getBuilding());
+        return building != null
+            && building.getDoorExecutor().getMode() == DoorExecutor.Mode.ACTOR;
+      default:
+        return false;
+    }
+  }
+
+  private static HttpResponse dispatch(HttpRequest httpRequest, RequestParams requestParams,
+                                       boolean mayWait) {
+    String method = httpRequest.getMethod();
+    if (!method.equals("GET") && !method.equals("POST")) {
+      logger.warn("501 Not Implemented: {} method.", method);
+      return HttpResponse.error(501, "Not Implemented", "method " + method);
+    }
+    byte[] target = httpRequest.getTargetBytes();
+    long routeStart = System.nanoTime();
+    boolean routed = RequestRouter.route(target, 0, target.length, requestParams);
+    RequestTrace.add(RequestTrace.current(), RequestTrace.Phase.ROUTE, routeStart);
+    if (!routed) {
+      logger.warn("400 Bad Request: {} ({})", httpRequest.getTarget(), requestParams.getError());
+      return HttpResponse.error(400, "Bad Request", requestParams.getError());
+    }
+    if (!method.equals(requestParams.getEndpoint().getMethod())) {
+      return HttpResponse.error(405, "Method Not Allowed",
+          requestParams.getEndpoint().getPath() + " expects " + requestParams.getEndpoint().getMethod());
+    }
+    BuildingContext building = requestParams.getBuilding() == null
+        ? BuildingContext.getDefault() : BuildingContext.get(requestParams.getBuilding());
+    if (building == null) {
+      return HttpResponse.error(404, "Not Found", "unknown building " + requestParams.getBuilding());
+    }
+
+    BuildingContext previous = building.enter();
+    try {
+      return dispatchIn(httpRequest, requestParams, mayWait);
+    } finally {
+      BuildingContext.exit(previous);
+    }
+  }
+
+  // the rest of dispatch(), with the building of the request bound
+  private static HttpResponse dispatchIn(HttpRequest httpRequest, RequestParams requestParams,
+                                         boolean mayWait) {
+    Endpoint endpoint = requestParams.getEndpoint();
+    if (endpoint == Endpoint.EVENTS) {
+      return makeEventStream(httpRequest, requestParams);
+    }
+    if (endpoint == Endpoint.METRICS) {
+      return new HttpResponse(200, "OK", "text/plain; version=0.0.4",
+          MetricsRegistry.getInstance().toPrometheus().getBytes(StandardCharsets.UTF_8));
+    }
+    if (endpoint == Endpoint.CONNECTIONS || endpoint == Endpoint.ADMISSION) {
+      // cheap, and most needed precisely when the server is overloaded
+      return process(httpRequest, requestParams);
+    }
+
+    AdmissionController admission = AdmissionController.getInstance();
+    if (endpoint == Endpoint.READER || endpoint == Endpoint.AREA) {
+      HttpResponse limited = admission.checkRate(requestParams.get(Param.CREDENTIAL),
+          requestParams.get(Param.DOOR_ID));
+      if (limited != null) {
+        logger.debug("429 Too Many Requests: {}", httpRequest.getTarget());
+        return limited;
+      }
+    }
+    if (!(mayWait ? admission.enter() : admission.tryEnter())) {
+      logger.debug("503 Service Unavailable, shed {}", httpRequest.getTarget());
+      return AdmissionController.overloaded();
+    }
+    boolean streaming = false;
+    try {
+      HttpResponse response = process(httpRequest, requestParams);
+      if (response.isStreaming()) {
+        // the work of a streamed answer (doors of an area, records of /audit) is done while
+        // its body is written, the slot is kept until then
+        streaming = true;
+        return response.withStreamingBody(releasing(response.getStreamingBody(), admission));
+      }
+      return response;
+    } finally {
+      if (!streaming) {
+        admission.release();
+      }
+    }
+  }
+
+  // The body, releasing the admission slot when it is written, or discarded
+  private static StreamingBody releasing(StreamingBody body, AdmissionController admission) {
+    AtomicBoolean released = new AtomicBoolean();
+    Runnable release = () -> {
+      if (released.compareAndSet(false, true)) {
+        admission.release();
+      }
+    };
+    return new StreamingBody() {
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        try {
+          body.writeTo(out);
+        } finally {
+          release.run();
+        }
+      }
+
+      @Override
+      public void discard() {
+        try {
+          body.discard();
+        } finally {
+          release.run();
+        }
+      }
+    };
+  }
+
+  private static HttpResponse process(HttpRequest httpRequest, RequestParams requestParams) {
+    Endpoint endpoint = requestParams.getEndpoint();
+    if (endpoint == Endpoint.REFRESH) {
+      return refresh(httpRequest);
+    }
+    if (endpoint == Endpoint.READER_BATCH) {
+      return processBatch(httpRequest);
+    }
+    if (endpoint == Endpoint.AUDIT) {
+      return makeAuditQuery(requestParams);
+    }
+
+    // Here is where we send the request and get the answer inside it
+    Request request = makeRequest(requestParams);
+    if (endpoint == Endpoint.AREA && !((RequestArea) request).isTransactional()
+        && acceptsNdjson(httpRequest)) {
+      // door results sent as they are done, the doors are processed while writing
+      logger.debug("Streaming request type: {}", endpoint);
+      return new HttpResponse("application/x-ndjson", ((RequestArea) request).streamed());
+    }
+    logger.debug("Processing request type: {}", endpoint);
+    request.process();
+    logger.debug("processed request {} {}", endpoint, request);
+    // Make the answer as a JSON string, to be sent to the Javascript client
+    long serializeStart = System.nanoTime();
+    HttpResponse response = HttpResponse.json(request.answerToJson());
+    RequestTrace.add(RequestTrace.current(), RequestTrace.Phase.SERIALIZE, serializeStart);
+    return response;
+  }
+
+  // The cached answer of the current door version. A client that already has it, says so
+  // with If-None-Match and gets a 304 without the snapshot being even looked at.
+  private static HttpResponse refresh(HttpRequest httpRequest) {
+    RefreshSnapshot refreshSnapshot = RefreshSnapshot.getInstance();
+    String ifNoneMatch = httpRequest.getHeader("if-none-match");
+    if (ifNoneMatch != null) {
+      String etag = refreshSnapshot.getCurrentEtag();
+      if (etagMatches(ifNoneMatch, etag)) {
+        return HttpResponse.notModified(etag);
+      }
+    }
+    RefreshSnapshot.Snapshot snapshot = refreshSnapshot.get();
+    HttpResponse response;
+    String acceptEncoding = httpRequest.getHeader("accept-encoding");
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      response = new HttpResponse(200, "OK", "application/json", snapshot.getGzippedJson())
+          .setHeader("Content-Encoding", "gzip");
+    } else {
+      response = new HttpResponse(200, "OK", "application/json", snapshot.getJson());
+    }
+    return response.setHeader("ETag", snapshot.getEtag())
+        .setHeader("Cache-Control", "no-cache")
+        .setHeader("Vary", "Accept-Encoding");
+  }
+
+  private static boolean acceptsNdjson(HttpRequest httpRequest) {
+    String accept = httpRequest.getHeader("accept");
+    return accept != null && accept.contains("application/x-ndjson");
+  }
+
+  // If-None-Match may list several tags separated by commas, or be *
+  private static boolean etagMatches(String ifNoneMatch, String etag) {
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals(etag) || tag.equals("*")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Door changes pushed as Server-Sent Events, resuming after Last-Event-ID or ?since=
+  // if given, else starting from now
+  private static HttpResponse makeEventStream(HttpRequest httpRequest, RequestParams p) {
+    DoorEventStream stream = DoorEventStream.getInstance();
+    String resumeFrom = httpRequest.getHeader("last-event-id");
+    if (resumeFrom == null) {
+      resumeFrom = p.get(Param.SINCE);
+    }
+    long since;
+    try {
+      since = resumeFrom == null
+          ? stream.getLastSequence() : DoorEventStream.sequenceOf(resumeFrom.trim());
+    } catch (NumberFormatException e) {
+      return HttpResponse.error(400, "Bad Request", "malformed event id " + resumeFrom);
+    }
+    logger.info("Events subscriber after {}", since);
+    return new HttpResponse("text/event-stream", stream.subscribe(since));
+  }
+
+  // Door requests recorded by the AuditStore, of a door (doorId), of the doors of an area
+  // (areaId) and of a credential, any of them, from and to a datetime or epoch millis,
+  // authorized or not, at most limit; sent as they are found, one JSON object per line
+  private static HttpResponse makeAuditQuery(RequestParams p) {
+    long from;
+    long to;
+    long limit;
+    try {
+      from = p.get(Param.FROM) == null ? 0 : parseAuditTime(p.get(Param.FROM));
+      to = p.get(Param.TO) == null ? Long.MAX_VALUE : parseAuditTime(p.get(Param.TO));
+      limit = p.get(Param.LIMIT) == null ? Long.MAX_VALUE : Long.parseLong(p.get(Param.LIMIT));
+    } catch (DateTimeParseException | NumberFormatException e) {
+      return HttpResponse.error(400, "Bad Request",
+          "from and to are yyyy-MM-ddTHH:mm[:ss] or epoch millis, limit a number");
+    }
+    List<String> doorIds = null;
+    if (p.get(Param.DOOR_ID) != null) {
+      doorIds = List.of(p.get(Param.DOOR_ID));
+    } else if (p.get(Param.AREA_ID) != null) {
+      Area area = DirectoryAreas.getInstance().findAreaById(p.get(Param.AREA_ID));
+      if (area == null) {
+        return HttpResponse.error(404, "Not Found", "unknown area " + p.get(Param.AREA_ID));
+      }
+      doorIds = new ArrayList<>();
+      for (Space space : area.getSpaces()) {
+        for (Door door : space.getDoorsGivingAccess()) {
+          doorIds.add(door.getId());
+        }
+      }
+    }
+    String authorized = p.get(Param.AUTHORIZED);
+    return new HttpResponse("application/x-ndjson", AuditStore.getInstance().query(from, to,
+        doorIds, p.get(Param.CREDENTIAL), authorized == null ? null : Boolean.valueOf(authorized),
+        limit));
+  }
+
+  // a local datetime of this server, or epoch millis
+  private static long parseAuditTime(String value) {
+    if (!value.isEmpty() && value.chars().allMatch(Character::isDigit)) {
+      return Long.parseLong(value);
+    }
+    return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+  }
+
+  private static HttpResponse processBatch(HttpRequest httpRequest) {
+    RequestReaderBatch batch;
+    try {
+      batch = RequestReaderBatch.parse(httpRequest.getBody());
+    } catch (IllegalArgumentException e) {
+      return HttpResponse.error(400, "Bad Request", e.getMessage());
+    }
+    if (batch.size() > RequestReaderBatch.getMaxEvents()) {
+      return HttpResponse.error(413, "Payload Too Large",
+          "at most " + RequestReaderBatch.getMaxEvents() + " swipes per batch");
+    }
+    batch.process();
+    logger.debug("processed request {} {}", Endpoint.READER_BATCH, batch);
+    long serializeStart = System.nanoTime();
+    HttpResponse response = HttpResponse.json(batch.answerToJson());
+    RequestTrace.add(RequestTrace.current(), RequestTrace.Phase.SERIALIZE, serializeStart);
+    return response;
+  }
+
+  private static Request makeRequest(RequestParams p) {
+    switch (p.getEndpoint()) {
+      case READER:
+        return new RequestReader(p.get(Param.CREDENTIAL), p.get(Param.ACTION),
+            p.getEpochMinute(), p.get(Param.DOOR_ID));
+      case AREA:
+        RequestArea area = new RequestArea(p.get(Param.CREDENTIAL), p.get(Param.ACTION),
+            p.getEpochMinute(), p.get(Param.AREA_ID));
+        // mode=transaction: every door or none, see AreaTransaction
+        area.setTransactional("transaction".equals(p.get(Param.MODE)));
+        return area;
+      case GET_CHILDREN:
+        // to navigate the hierarchy of partitions, spaces and doors from the Flutter app
+        return new RequestChildren(p.get(Param.AREA_ID));
+      case CONNECTIONS:
+        // accepted, open right now and rejected at the connection limit
+        return new RequestStats("connections", ConnectionStats.getInstance()::toJson);
+      case ADMISSION:
+        // slots in use, queue depth, requests shed and why, credentials and doors limited
+        return new RequestStats("admission", AdmissionController.getInstance()::toJson);
+      case USERS:
+        // users and groups, and the memory of the index by credential
+        return new RequestStats("users", DirectoryUserGroups.getInstance()::credentialIndexToJson);
+      case AUTH_CACHE:
+        // hits, misses, evictions and invalidations of authorization decisions
+        return new RequestStats("auth_cache", AuthorizationCache.getInstance()::toJson);
+      case TIMERS:
+        // pending, scheduled, cancelled and fired timers, and how late they fired
+        return new RequestStats("timers", TimingWheel.getInstance()::toJson);
+      case TRACES:
+        // the slowest requests of the last minutes, with the time of each phase
+        return new RequestStats("traces", RequestTrace::slowestToJson);
+      default:
+        throw new IllegalStateException("no request for endpoint " + p.getEndpoint());
+    }
+  }
+}
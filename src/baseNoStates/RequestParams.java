@@ -0,0 +1,120 @@
+package baseNoStates;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reusable holder of the parameters of one request, filled in by RequestRouter.
+ * Each connection thread keeps one and clears it before every request, so decoding
+ * the query string does not create a new object per request.
+ */
+public final class RequestParams {
+
+  /** Query string parameters the router knows about. Other names are ignored. */
+  public enum Param {
+    CREDENTIAL("credential"),
+    ACTION("action"),
+    DATETIME("datetime"),
+    DOOR_ID("doorId"),
+    AREA_ID("areaId"),
+    MODE("mode"),
+    SINCE("since"),
+    FROM("from"),
+    TO("to"),
+    LIMIT("limit"),
+    AUTHORIZED("authorized");
+
+    static final Param[] ALL = values();
+
+    private final String name;
+    final byte[] nameBytes;
+
+    Param(String name) {
+      this.name = name;
+      this.nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  private Endpoint endpoint;
+  // id of the building in /buildings/{id}/..., null for the default building
+  private String building;
+  private final String[] values = new String[Param.ALL.length];
+  // path segment after the endpoint, or a bare query like /get_children?building
+  private String pathArgument;
+  private String error;
+  // where RequestRouter percent-decodes values before interning them
+  final byte[] scratch = new byte[256];
+
+  // datetime, decoded by RequestRouter into its fields
+  private long epochMinute;
+
+  public void clear() {
+    endpoint = null;
+    building = null;
+    Arrays.fill(values, null);
+    pathArgument = null;
+    error = null;
+    epochMinute = EpochMinutes.NONE;
+  }
+
+  public Endpoint getEndpoint() {
+    return endpoint;
+  }
+
+  void setEndpoint(Endpoint endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  public String getBuilding() {
+    return building;
+  }
+
+  void setBuilding(String building) {
+    this.building = building;
+  }
+
+  public String get(Param param) {
+    return values[param.ordinal()];
+  }
+
+  void set(Param param, String value) {
+    values[param.ordinal()] = value;
+  }
+
+  public String getPathArgument() {
+    return pathArgument;
+  }
+
+  void setPathArgument(String pathArgument) {
+    this.pathArgument = pathArgument;
+  }
+
+  /** Why the request could not be routed, null if it could. */
+  public String getError() {
+    return error;
+  }
+
+  void setError(String error) {
+    this.error = error;
+  }
+
+  void setDateTime(long epochMinute) {
+    this.epochMinute = epochMinute;
+  }
+
+  public boolean hasDateTime() {
+    return epochMinute != EpochMinutes.NONE;
+  }
+
+  /**
+   * Minutes since 1970-01-01T00:00 of the datetime parameter, EpochMinutes.NONE if
+   * there is none. The requests take it as it is, not as a LocalDateTime.
+   */
+  public long getEpochMinute() {
+    return epochMinute;
+  }
+}
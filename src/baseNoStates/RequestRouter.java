@@ -0,0 +1,200 @@
+package baseNoStates;
+
+import baseNoStates.RequestParams.Param;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the target of a request, like
+ * /reader?credential=11343&amp;action=open&amp;datetime=2025-10-06T09:30&amp;doorId=D1,
+ * straight from the bytes received into a reusable RequestParams. The target may start
+ * with /buildings/{id} to address a building other than the default one.
+ * The endpoints and parameter names are matched byte by byte against tables built once
+ * (Endpoint and Param), parameter values are interned and the datetime is parsed by hand,
+ * so routing a request normally allocates nothing. This replaces splitting the target
+ * with a StringTokenizer into an array of Strings and LocalDateTime.parse().
+ */
+public final class RequestRouter {
+  private static final AsciiInterner interner =
+      new AsciiInterner(Config.getInt("internedStrings", 1 << 16));
+  private static final byte[] BUILDINGS = "buildings".getBytes(StandardCharsets.US_ASCII);
+
+  private RequestRouter() {}
+
+  /**
+   * Fills params from target[offset, offset + length). Returns false, with the reason
+   * in params.getError(), if the endpoint is unknown or a parameter is missing or malformed.
+   */
+  public static boolean route(byte[] target, int offset, int length, RequestParams params) {
+    params.clear();
+    int end = offset + length;
+    int i = offset;
+    while (i < end && target[i] == '/') {
+      i++;
+    }
+    int segmentEnd = indexOf(target, i, end, '/', '?');
+    if (equals(BUILDINGS, target, i, segmentEnd) && segmentEnd < end && target[segmentEnd] == '/') {
+      int idEnd = indexOf(target, segmentEnd + 1, end, '/', '?');
+      if (idEnd == segmentEnd + 1 || idEnd == end || target[idEnd] != '/') {
+        params.setError("expected /buildings/{id}/{request}");
+        return false;
+      }
+      params.setBuilding(decode(target, segmentEnd + 1, idEnd, params));
+      i = idEnd + 1;
+      segmentEnd = indexOf(target, i, end, '/', '?');
+    }
+    Endpoint endpoint = matchEndpoint(target, i, segmentEnd);
+    if (endpoint == null) {
+      params.setError("unknown request " + new String(target, i, segmentEnd - i,
+          StandardCharsets.ISO_8859_1));
+      return false;
+    }
+    params.setEndpoint(endpoint);
+    i = segmentEnd;
+
+    if (i < end && target[i] == '/') {
+      int argEnd = indexOf(target, i + 1, end, '?', '?');
+      if (argEnd > i + 1) {
+        params.setPathArgument(decode(target, i + 1, argEnd, params));
+      }
+      i = argEnd;
+    }
+    if (i < end && target[i] == '?') {
+      if (!parseQuery(target, i + 1, end, params)) {
+        return false;
+      }
+    }
+
+    if (params.get(Param.AREA_ID) == null && params.getPathArgument() != null) {
+      params.set(Param.AREA_ID, params.getPathArgument()); // /get_children?building
+    }
+    for (Param param : endpoint.required) {
+      if (params.get(param) == null && !(param == Param.DATETIME && params.hasDateTime())) {
+        params.setError("missing parameter " + param.getName());
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean parseQuery(byte[] target, int start, int end, RequestParams params) {
+    int i = start;
+    while (i < end) {
+      int pairEnd = indexOf(target, i, end, '&', '&');
+      int eq = indexOf(target, i, pairEnd, '=', '=');
+      if (eq == pairEnd) {
+        if (pairEnd > i && params.getPathArgument() == null) {
+          params.setPathArgument(decode(target, i, pairEnd, params));
+        }
+      } else {
+        Param param = matchParam(target, i, eq);
+        if (param == Param.DATETIME) {
+          int n = percentDecode(target, eq + 1, pairEnd, params.scratch);
+          if (!parseDateTime(params.scratch, n, params)) {
+            params.setError("malformed datetime, expected yyyy-MM-ddTHH:mm");
+            return false;
+          }
+        } else if (param != null) {
+          params.set(param, decode(target, eq + 1, pairEnd, params));
+        }
+      }
+      i = pairEnd + 1;
+    }
+    return true;
+  }
+
+  private static Endpoint matchEndpoint(byte[] target, int start, int end) {
+    for (Endpoint endpoint : Endpoint.ALL) {
+      if (equals(endpoint.pathBytes, target, start, end)) {
+        return endpoint;
+      }
+    }
+    return null;
+  }
+
+  private static Param matchParam(byte[] target, int start, int end) {
+    for (Param param : Param.ALL) {
+      if (equals(param.nameBytes, target, start, end)) {
+        return param;
+      }
+    }
+    return null;
+  }
+
+  private static boolean equals(byte[] name, byte[] target, int start, int end) {
+    if (end - start != name.length) {
+      return false;
+    }
+    for (int k = 0; k < name.length; k++) {
+      if (name[k] != target[start + k]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] target, int start, int end, char c1, char c2) {
+    for (int k = start; k < end; k++) {
+      if (target[k] == c1 || target[k] == c2) {
+        return k;
+      }
+    }
+    return end;
+  }
+
+  private static String decode(byte[] target, int start, int end, RequestParams params) {
+    int n = percentDecode(target, start, end, params.scratch);
+    return interner.intern(params.scratch, 0, n);
+  }
+
+  // %xx escapes, like the %20 browsers put for blanks. Values longer than the scratch
+  // buffer are truncated, which is harmless as they can't match any id.
+  private static int percentDecode(byte[] target, int start, int end, byte[] out) {
+    int n = 0;
+    for (int k = start; k < end && n < out.length; k++) {
+      byte b = target[k];
+      if (b == '%' && k + 2 < end) {
+        int hi = Character.digit(target[k + 1], 16);
+        int lo = Character.digit(target[k + 2], 16);
+        if (hi >= 0 && lo >= 0) {
+          out[n++] = (byte) (hi * 16 + lo);
+          k += 2;
+          continue;
+        }
+      }
+      out[n++] = b;
+    }
+    return n;
+  }
+
+  // yyyy-MM-ddTHH:mm
+  static boolean parseDateTime(byte[] s, int length, RequestParams params) {
+    if (length != 16 || s[4] != '-' || s[7] != '-' || s[10] != 'T' || s[13] != ':') {
+      return false;
+    }
+    int year = digits(s, 0, 4);
+    int month = digits(s, 5, 2);
+    int day = digits(s, 8, 2);
+    int hour = digits(s, 11, 2);
+    int minute = digits(s, 14, 2);
+    if (year < 0 || month < 1 || month > 12 || day < 1
+        || day > EpochMinutes.lengthOfMonth(year, month)
+        || hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+      return false;
+    }
+    params.setDateTime(EpochMinutes.of(year, month, day, hour, minute));
+    return true;
+  }
+
+  // the number written with count decimal digits from position start, -1 if not digits
+  private static int digits(byte[] s, int start, int count) {
+    int value = 0;
+    for (int k = start; k < start + count; k++) {
+      int d = s[k] - '0';
+      if (d < 0 || d > 9) {
+        return -1;
+      }
+      value = value * 10 + d;
+    }
+    return value;
+  }
+}
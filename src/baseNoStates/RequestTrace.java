@@ -0,0 +1,236 @@
+package baseNoStates;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Where the time of a request goes: an id and the nanoseconds spent in each phase, from
+ * the first byte read to the answer written. RequestDispatcher begins it and makes it
+ * current on the request thread; RequestReader, RequestArea and Door.processRequest add
+ * the phases they do, also from the threads of the fork-join pool or of the door owners,
+ * so adding is a lock free addition to an array slot. Phases done for several doors at
+ * the same time, as in a large area, add up to more than the time elapsed.
+ * Every answer has the id in X-Request-Id, and if the client sent X-Trace (or with
+ * --trace.serverTiming=true), the phases in a Server-Timing header. When the web server
+ * has written the answer, the trace is offered to the slowest ones of the last
+ * --trace.windowMillis (60000), --trace.slowest (64) kept, given at /traces. Only the
+ * traces slower than the fastest kept take the lock of the buffer.
+ */
+public final class RequestTrace {
+
+  /** What the time of a request is spent on. */
+  public enum Phase {
+    READ,       // from the first byte of the request to having it all
+    ROUTE,      // tokenizing the target into endpoint and parameters
+    LOOKUP,     // finding the user, door or area
+    AUTHORIZE,  // deciding if the user may do the action
+    DOOR,       // waiting for and running on the thread owning the door
+    TRANSITION, // the change of state of the door
+    SERIALIZE,  // making the JSON answer
+    WRITE;      // sending the answer
+
+    final String label = name().toLowerCase();
+  }
+
+  private static final ThreadLocal<RequestTrace> current = new ThreadLocal<>();
+  // ids are unique in this run and unlikely to repeat in the next ones
+  private static final String ID_PREFIX =
+      Integer.toHexString(ThreadLocalRandom.current().nextInt() | 0x10000000) + "-";
+  private static final AtomicLong nextId = new AtomicLong();
+  private static final boolean serverTimingAlways = Config.getBoolean("trace.serverTiming", false);
+  private static final Slowest slowest = new Slowest(Config.getInt("trace.slowest", 64),
+      Config.getLong("trace.windowMillis", 60000));
+
+  private final long id;
+  private final long startMillis;
+  private final long startNanos;
+  private final String method;
+  private final byte[] target; // not the whole request, that may have a large body
+  private final String traceHeader;
+  private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+  private volatile int status;
+  private volatile long totalNanos;
+
+  private RequestTrace(HttpRequest request) {
+    this.id = nextId.incrementAndGet();
+    this.method = request.getMethod();
+    this.target = request.getTargetBytes();
+    this.traceHeader = request.getHeader("x-trace");
+    this.startMillis = System.currentTimeMillis();
+    long now = System.nanoTime();
+    long received = request.getReceivedNanos();
+    this.startNanos = received == 0 ? now : received;
+    phaseNanos.set(Phase.READ.ordinal(), now - startNanos);
+  }
+
+  /** Starts the trace of a request just read and makes it current on this thread. */
+  public static RequestTrace begin(HttpRequest request) {
+    RequestTrace trace = new RequestTrace(request);
+    current.set(trace);
+    return trace;
+  }
+
+  /** The trace of the request this thread is doing, null if none. */
+  public static RequestTrace current() {
+    return current.get();
+  }
+
+  /** Adds the time since startNanos to the phase. Does nothing on a null trace. */
+  public static void add(RequestTrace trace, Phase phase, long startNanos) {
+    if (trace != null) {
+      trace.phaseNanos.getAndAdd(phase.ordinal(), System.nanoTime() - startNanos);
+    }
+  }
+
+  public String getId() {
+    return ID_PREFIX + Long.toHexString(id);
+  }
+
+  /**
+   * Called by RequestDispatcher with the answer made: the trace stops being current and
+   * the answer gets the id and, if asked, the timings.
+   */
+  public void answered(HttpResponse response) {
+    current.remove();
+    status = response.getStatus();
+    totalNanos = System.nanoTime() - startNanos;
+    response.setTrace(this);
+    response.setHeader("X-Request-Id", getId());
+    if (serverTimingAlways || traceHeader != null) {
+      response.setHeader("Server-Timing", serverTiming());
+    }
+  }
+
+  /**
+   * Called by the web server once the answer, that began to be written at writeStartNanos,
+   * has been sent: the whole time is known and the trace may be kept as one of the slowest.
+   */
+  public static void written(HttpResponse response, long writeStartNanos) {
+    RequestTrace trace = response.getTrace();
+    if (trace != null) {
+      add(trace, Phase.WRITE, writeStartNanos);
+      trace.totalNanos = System.nanoTime() - trace.startNanos;
+      slowest.offer(trace);
+    }
+  }
+
+  // phase;dur=milliseconds, of the phases with some time, and the total
+  private String serverTiming() {
+    StringBuilder header = new StringBuilder(128);
+    for (Phase phase : Phase.values()) {
+      long nanos = phaseNanos.get(phase.ordinal());
+      if (nanos > 0) {
+        header.append(phase.label).append(";dur=").append(millis(nanos)).append(", ");
+      }
+    }
+    return header.append("total;dur=").append(millis(totalNanos)).toString();
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.3f", nanos / 1e6);
+  }
+
+  public JSONObject toJson() {
+    JSONObject json = new JSONObject();
+    json.put("id", getId());
+    json.put("request", method + " " + new String(target, StandardCharsets.ISO_8859_1));
+    json.put("status", status);
+    json.put("startMillis", startMillis);
+    json.put("totalMicros", totalNanos / 1000);
+    JSONObject phases = new JSONObject();
+    for (Phase phase : Phase.values()) {
+      phases.put(phase.label, phaseNanos.get(phase.ordinal()) / 1000);
+    }
+    json.put("phasesMicros", phases);
+    return json;
+  }
+
+  /** The slowest requests of this window and the one before, slowest first. */
+  public static JSONObject slowestToJson() {
+    return slowest.toJson();
+  }
+
+  // The n slowest traces of the current window; when it ends they become the previous
+  // window and the current one starts empty, so old slow requests don't stay forever
+  private static final class Slowest {
+    private final int capacity;
+    private final long windowMillis;
+    private final List<RequestTrace> currentWindow = new ArrayList<>();
+    private List<RequestTrace> previousWindow = new ArrayList<>();
+    private volatile long windowStart = System.currentTimeMillis();
+    // total nanos a trace must exceed to get in, while the buffer is full
+    private volatile long threshold = 0;
+
+    Slowest(int capacity, long windowMillis) {
+      this.capacity = Math.max(1, capacity);
+      this.windowMillis = windowMillis;
+    }
+
+    void offer(RequestTrace trace) {
+      if (trace.totalNanos <= threshold
+          && trace.startMillis - windowStart < windowMillis) {
+        return; // the common case, without the lock
+      }
+      synchronized (this) {
+        rollIfEnded(System.currentTimeMillis());
+        if (currentWindow.size() < capacity) {
+          currentWindow.add(trace);
+        } else {
+          int fastest = indexOfFastest();
+          if (trace.totalNanos <= currentWindow.get(fastest).totalNanos) {
+            return;
+          }
+          currentWindow.set(fastest, trace);
+        }
+        if (currentWindow.size() == capacity) {
+          threshold = currentWindow.get(indexOfFastest()).totalNanos;
+        }
+      }
+    }
+
+    private void rollIfEnded(long now) {
+      if (now - windowStart >= windowMillis) {
+        previousWindow = new ArrayList<>(currentWindow);
+        currentWindow.clear();
+        windowStart = now;
+        threshold = 0;
+      }
+    }
+
+    private int indexOfFastest() {
+      int fastest = 0;
+      for (int i = 1; i < currentWindow.size(); i++) {
+        if (currentWindow.get(i).totalNanos < currentWindow.get(fastest).totalNanos) {
+          fastest = i;
+        }
+      }
+      return fastest;
+    }
+
+    synchronized JSONObject toJson() {
+      rollIfEnded(System.currentTimeMillis());
+      JSONObject json = new JSONObject();
+      json.put("windowMillis", windowMillis);
+      json.put("current", sortedJson(currentWindow));
+      json.put("previous", sortedJson(previousWindow));
+      return json;
+    }
+
+    private static JSONArray sortedJson(List<RequestTrace> traces) {
+      List<RequestTrace> sorted = new ArrayList<>(traces);
+      sorted.sort(Comparator.comparingLong((RequestTrace t) -> t.totalNanos).reversed());
+      JSONArray json = new JSONArray();
+      for (RequestTrace trace : sorted) {
+        json.put(trace.toJson());
+      }
+      return json;
+    }
+  }
+}
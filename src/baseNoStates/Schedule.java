@@ -5,49 +5,231 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
 
 /**
  * Represents a work schedule for a user group.  A schedule defines a date
- * interval, a set of permitted days of the week and a daily start and end
- * time.  Requests are allowed only when the request timestamp falls
- * within the interval, on one of the permitted weekdays, and between the
- * start and end times (exclusive).
+ * interval, one or more daily windows, each on its own set of weekdays, and
+ * optionally holidays on which no window applies.  Requests are allowed only
+ * when the request timestamp falls within the interval, is not a holiday,
+ * and is inside one of the windows of that weekday.
+ *
+ * The schedule is compiled when made: the interval into epoch days, each window
+ * into a weekday bitmask and a range of minutes of the day, and the holidays into
+ * one bitmap per year indexed by day of the year.  Checking an epoch minute is
+ * then a few integer comparisons and bit tests, without creating any object,
+ * however many windows and holidays there are.
  */
 public class Schedule {
-    private final LocalDate startDate;
-    private final LocalDate endDate;
-    private final ArrayList<DayOfWeek> workDays;
-    private final LocalTime startTime;
-    private final LocalTime endTime;
+    // 1970-01-01, epoch day 0, was a Thursday
+    private static final int EPOCH_DAY_OF_WEEK = DayOfWeek.THURSDAY.ordinal();
 
+    private final long startDay; // epoch days, both included
+    private final long endDay;
+    private final List<Window> windows;
+    // windows flattened, on the path of every request
+    private final int[] windowDays;
+    private final int[] windowFrom;
+    private final int[] windowTo;
+    // holidays: bit (day of year - 1) of holidayBits[i] for the year starting at holidayYearStart[i]
+    private final long[] holidayYearStart;
+    private final int[] holidayYearLength;
+    private final long[][] holidayBits;
+
+    /**
+     * A daily window: from one minute of the day, included, to another, excluded,
+     * on the given weekdays.
+     */
+    public static final class Window {
+        private final int dayMask;
+        private final int fromMinute;
+        private final int toMinute;
+
+        /** The end is rounded up to a whole minute, so LocalTime.MAX is the end of the day. */
+        public Window(Collection<DayOfWeek> days, LocalTime from, LocalTime to) {
+            this(maskOf(days), from.getHour() * 60 + from.getMinute(), minuteRoundedUp(to));
+        }
+
+        Window(int dayMask, int fromMinute, int toMinute) {
+            if (fromMinute < 0 || toMinute > EpochMinutes.MINUTES_PER_DAY || fromMinute > toMinute) {
+                throw new IllegalArgumentException("bad window " + fromMinute + "-" + toMinute);
+            }
+            this.dayMask = dayMask;
+            this.fromMinute = fromMinute;
+            this.toMinute = toMinute;
+        }
+
+        /** Bit DayOfWeek.ordinal() set for each weekday of the window. */
+        public int getDayMask() {
+            return dayMask;
+        }
+
+        public int getFromMinute() {
+            return fromMinute;
+        }
+
+        public int getToMinute() {
+            return toMinute;
+        }
+
+        public List<DayOfWeek> getDays() {
+            ArrayList<DayOfWeek> days = new ArrayList<>();
+            for (DayOfWeek day : DayOfWeek.values()) {
+                if ((dayMask & (1 << day.ordinal())) != 0) {
+                    days.add(day);
+                }
+            }
+            return days;
+        }
+
+        private static int maskOf(Collection<DayOfWeek> days) {
+            int mask = 0;
+            for (DayOfWeek day : days) {
+                mask |= 1 << day.ordinal();
+            }
+            return mask;
+        }
+    }
+
+    /**
+     * The original single window schedule: on the work days, strictly between start
+     * and end time, as it has always been checked.
+     */
     public Schedule(LocalDate startDate,
                     LocalDate endDate,
                     ArrayList<DayOfWeek> workDays,
                     LocalTime startTime,
                     LocalTime endTime) {
-        this.startDate = startDate;
-        this.endDate = endDate;
-        this.workDays = workDays;
-        this.startTime = startTime;
-        this.endTime = endTime;
+        this(startDate, endDate,
+                Collections.singletonList(exclusiveWindow(workDays, startTime, endTime)),
+                Collections.emptyList());
+    }
+
+    public Schedule(LocalDate startDate,
+                    LocalDate endDate,
+                    List<Window> windows,
+                    Collection<LocalDate> holidays) {
+        this(startDate.toEpochDay(), endDate.toEpochDay(), windows, epochDays(holidays));
+    }
+
+    Schedule(long startDay, long endDay, List<Window> windows, long[] holidayDays) {
+        this.startDay = startDay;
+        this.endDay = endDay;
+        this.windows = List.copyOf(windows);
+        int n = windows.size();
+        windowDays = new int[n];
+        windowFrom = new int[n];
+        windowTo = new int[n];
+        for (int i = 0; i < n; i++) {
+            Window window = windows.get(i);
+            windowDays[i] = window.dayMask;
+            windowFrom[i] = window.fromMinute;
+            windowTo[i] = window.toMinute;
+        }
+
+        TreeMap<Integer, long[]> bitsByYear = new TreeMap<>();
+        for (long day : holidayDays) {
+            LocalDate date = LocalDate.ofEpochDay(day);
+            long[] bits = bitsByYear.computeIfAbsent(date.getYear(), y -> new long[6]); // 366 bits
+            int dayOfYear = date.getDayOfYear() - 1;
+            bits[dayOfYear >> 6] |= 1L << dayOfYear;
+        }
+        holidayYearStart = new long[bitsByYear.size()];
+        holidayYearLength = new int[bitsByYear.size()];
+        holidayBits = new long[bitsByYear.size()][];
+        int i = 0;
+        for (var entry : bitsByYear.entrySet()) {
+            holidayYearStart[i] = EpochMinutes.daysFromCivil(entry.getKey(), 1, 1);
+            holidayYearLength[i] = EpochMinutes.isLeapYear(entry.getKey()) ? 366 : 365;
+            holidayBits[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    // time.isAfter(start) && time.isBefore(end) at minute resolution, as a half open range
+    private static Window exclusiveWindow(Collection<DayOfWeek> days, LocalTime start, LocalTime end) {
+        int from = start.getHour() * 60 + start.getMinute() + 1;
+        int to = minuteRoundedUp(end);
+        from = Math.min(from, EpochMinutes.MINUTES_PER_DAY);
+        return new Window(Window.maskOf(days), from, Math.max(from, to));
+    }
+
+    private static int minuteRoundedUp(LocalTime time) {
+        return time.getHour() * 60 + time.getMinute()
+                + (time.getSecond() > 0 || time.getNano() > 0 ? 1 : 0);
+    }
+
+    private static long[] epochDays(Collection<LocalDate> dates) {
+        long[] days = new long[dates.size()];
+        int i = 0;
+        for (LocalDate date : dates) {
+            days[i++] = date.toEpochDay();
+        }
+        return days;
+    }
+
+    public LocalDate getStartDate() {
+        return LocalDate.ofEpochDay(startDay);
+    }
+
+    public LocalDate getEndDate() {
+        return LocalDate.ofEpochDay(endDay);
+    }
+
+    public List<Window> getWindows() {
+        return windows;
+    }
+
+    public List<LocalDate> getHolidays() {
+        ArrayList<LocalDate> holidays = new ArrayList<>();
+        for (int i = 0; i < holidayYearStart.length; i++) {
+            for (int d = 0; d < holidayYearLength[i]; d++) {
+                if ((holidayBits[i][d >> 6] & (1L << d)) != 0) {
+                    holidays.add(LocalDate.ofEpochDay(holidayYearStart[i] + d));
+                }
+            }
+        }
+        return holidays;
     }
 
     /**
      * Returns true if the given timestamp is within this schedule.
-     * The date component must fall within [startDate, endDate], the day of week
-     * must be one of the work days, and the time must be strictly between the
-     * start and end time.
      */
     public boolean isWithinSchedule(LocalDateTime requestDateTime) {
-        LocalDate date = requestDateTime.toLocalDate();
-        LocalTime time = requestDateTime.toLocalTime();
-        DayOfWeek day = date.getDayOfWeek();
-        if (date.isBefore(startDate) || date.isAfter(endDate)) {
+        return isWithinSchedule(EpochMinutes.of(requestDateTime));
+    }
+
+    /**
+     * Returns true if the given minute, counted since 1970-01-01T00:00, is within
+     * this schedule: the date in the interval and not a holiday, and the minute of
+     * the day in one of the windows of its weekday.
+     */
+    public boolean isWithinSchedule(long epochMinute) {
+        long day = Math.floorDiv(epochMinute, EpochMinutes.MINUTES_PER_DAY);
+        if (day < startDay || day > endDay || isHoliday(day)) {
             return false;
         }
-        if (!workDays.contains(day)) {
-            return false;
+        int minuteOfDay = (int) (epochMinute - day * EpochMinutes.MINUTES_PER_DAY);
+        int dayBit = 1 << (int) Math.floorMod(day + EPOCH_DAY_OF_WEEK, 7L);
+        for (int i = 0; i < windowDays.length; i++) {
+            if ((windowDays[i] & dayBit) != 0
+                    && minuteOfDay >= windowFrom[i] && minuteOfDay < windowTo[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isHoliday(long day) {
+        for (int i = 0; i < holidayYearStart.length; i++) {
+            long dayOfYear = day - holidayYearStart[i];
+            if (dayOfYear >= 0 && dayOfYear < holidayYearLength[i]) {
+                return (holidayBits[i][(int) (dayOfYear >> 6)] & (1L << dayOfYear)) != 0;
+            }
         }
-        return time.isAfter(startTime) && time.isBefore(endTime);
+        return false;
     }
 }
@@ -9,6 +9,8 @@ import java.util.ArrayList;
  */
 public class Space extends Area {
     private final ArrayList<Door> doorsGivingAccess = new ArrayList<>();
+    // position among all the spaces of the building, given by DirectoryAreas
+    private int index = -1;
 
     public JSONObject toJson(int depth) { // depth not used here
         JSONObject json = new JSONObject();
@@ -26,6 +28,11 @@ public class Space extends Area {
         super(id, description, parent);
     }
 
+    /** Dense number of this space, from 0 to the number of spaces - 1, or -1 if not indexed yet. */
+    public int getIndex() { return index; }
+
+    void setIndex(int index) { this.index = index; }
+
     public void addDoorGivingAccess(Door d) {
         if (!doorsGivingAccess.contains(d)) doorsGivingAccess.add(d);
     }
@@ -0,0 +1,30 @@
+package baseNoStates;
+
+import java.util.BitSet;
+
+// Visitor that sets the bit of every space under the visited areas.
+// Spaces must have been numbered before by IndexAreasVisitor.
+
+public class SpaceBitsVisitor implements AreaVisitor {
+  private final BitSet bits;
+
+  public SpaceBitsVisitor(int numSpaces) {
+    bits = new BitSet(numSpaces);
+  }
+
+  @Override
+  public void visit(Space space) {
+    if (space.getIndex() >= 0) { // spaces outside the directory have no bit
+      bits.set(space.getIndex());
+    }
+  }
+
+  @Override
+  public void visit(Partition partition) {
+    // Nothing to set, the traversal goes on to its children.
+  }
+
+  public BitSet getBits() {
+    return bits;
+  }
+}
@@ -0,0 +1,43 @@
+package baseNoStates;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads requests from a blocking stream with the same incremental parser the NIO
+ * front end uses, so both kinds of connections see the request as the bytes received.
+ * Bytes after the end of a request (pipelining) are kept for the next one.
+ */
+class StreamRequestReader {
+  private final InputStream in;
+  private final byte[] bytes = new byte[8192];
+  private final ByteBuffer buffer = ByteBuffer.wrap(bytes).limit(0);
+  private final HttpRequestParser parser = new HttpRequestParser();
+
+  StreamRequestReader(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Returns the next request, or null if the client closed the connection between requests.
+   */
+  HttpRequest read() throws IOException {
+    while (true) {
+      if (buffer.hasRemaining() && parser.parse(buffer)) {
+        HttpRequest request = parser.getRequest();
+        parser.reset();
+        return request;
+      }
+      int n = in.read(bytes);
+      if (n < 0) {
+        if (parser.isInsideRequest()) {
+          throw new EOFException("Connection closed in the middle of a request");
+        }
+        return null;
+      }
+      buffer.position(0).limit(n);
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package baseNoStates;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Body of a response that is written little by little instead of being encoded up front,
+ * like a stream of events. The connection is closed when writeTo returns, which is how
+ * the client knows the body has ended.
+ * A front end calls either writeTo or, if the client has gone before the body could
+ * start, discard(), so a body holding something until it is written can let it go.
+ */
+public interface StreamingBody {
+  void writeTo(OutputStream out) throws IOException;
+
+  default void discard() {
+  }
+}
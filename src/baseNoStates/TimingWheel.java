@@ -0,0 +1,246 @@
+package baseNoStates;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks after a delay, like the end of the short unlock of a door, each one once
+ * at its own deadline. Nobody is called on every tick: a timer is put in the slot of
+ * its deadline and only the timers of the slot that comes due are looked at, so
+ * scheduling and cancelling are O(1) however many timers are pending.
+ *
+ * The wheel has LEVELS levels of SLOTS slots. A slot of level 0 lasts one tick
+ * (--timer.tickMillis, 10 by default), a slot of level l lasts SLOTS^l ticks. A timer
+ * goes to the lowest level that reaches its deadline and, when the slots below have
+ * gone round, it is moved down (cascaded) to its slot there, until it is in level 0
+ * and runs. A timer never runs early, and runs at most about one tick late.
+ *
+ * Tasks run in the thread of the wheel, so they must be short: hand anything else
+ * over to another thread, as doors do with their DoorExecutor.
+ */
+public final class TimingWheel {
+  private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int LEVELS = 4;
+  // farther deadlines wait in the last level and are put back when cascaded
+  private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+  private final long tickNanos;
+  private final long startNanos = System.nanoTime();
+  private final Slot[][] wheel = new Slot[LEVELS][SLOTS];
+  private long currentTick = 0; // all the ticks up to this one have been run
+  private int pending = 0;
+  // reused by the wheel thread to run the due timers out of the lock
+  private final ArrayList<Timeout> due = new ArrayList<>();
+
+  private final LongAdder scheduled = new LongAdder();
+  private final LongAdder cancelled = new LongAdder();
+  private final LongAdder fired = new LongAdder();
+  private final LongAdder totalLatenessMicros = new LongAdder();
+  private final AtomicLong maxLatenessMicros = new AtomicLong();
+
+  /** A scheduled task, that can be cancelled until it runs. */
+  public static final class Timeout {
+    private final Runnable task;
+    private final long deadlineNanos;
+    private final long deadlineTick;
+    private Slot slot; // null when not in the wheel, guarded by the wheel
+    private Timeout prev;
+    private Timeout next;
+    private final TimingWheel wheel;
+
+    private Timeout(TimingWheel wheel, Runnable task, long deadlineNanos, long deadlineTick) {
+      this.wheel = wheel;
+      this.task = task;
+      this.deadlineNanos = deadlineNanos;
+      this.deadlineTick = deadlineTick;
+    }
+
+    /** Returns true if the task will not run, false if it had already run or been cancelled. */
+    public boolean cancel() {
+      return wheel.cancel(this);
+    }
+  }
+
+  // doubly linked list of the timers of a slot
+  private static final class Slot {
+    private Timeout head;
+
+    void add(Timeout timeout) {
+      timeout.slot = this;
+      timeout.prev = null;
+      timeout.next = head;
+      if (head != null) {
+        head.prev = timeout;
+      }
+      head = timeout;
+    }
+
+    void remove(Timeout timeout) {
+      if (timeout.prev != null) {
+        timeout.prev.next = timeout.next;
+      } else {
+        head = timeout.next;
+      }
+      if (timeout.next != null) {
+        timeout.next.prev = timeout.prev;
+      }
+      timeout.slot = null;
+      timeout.prev = null;
+      timeout.next = null;
+    }
+  }
+
+  TimingWheel() {
+    tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Config.getLong("timer.tickMillis", 10)));
+    for (Slot[] level : wheel) {
+      for (int i = 0; i < SLOTS; i++) {
+        level[i] = new Slot();
+      }
+    }
+    Thread thread = BuildingContext.current().newThread(this::run, "timing-wheel");
+    thread.setDaemon(true);
+    thread.start();
+    logger.info("Timing wheel started, tick {} ms", TimeUnit.NANOSECONDS.toMillis(tickNanos));
+  }
+
+  public static TimingWheel getInstance() {
+    return BuildingContext.current().getTimingWheel();
+  }
+
+  /** Runs the task once, not before delayMillis from now. */
+  public Timeout schedule(long delayMillis, Runnable task) {
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+    // the tick at whose end the deadline has passed
+    long deadlineTick = Math.floorDiv(deadlineNanos - startNanos + tickNanos - 1, tickNanos);
+    Timeout timeout = new Timeout(this, task, deadlineNanos, deadlineTick);
+    synchronized (this) {
+      insert(timeout, currentTick + 1);
+      pending++;
+    }
+    scheduled.increment();
+    return timeout;
+  }
+
+  private synchronized boolean cancel(Timeout timeout) {
+    if (timeout.slot == null) {
+      return false;
+    }
+    timeout.slot.remove(timeout);
+    pending--;
+    cancelled.increment();
+    return true;
+  }
+
+  // Puts the timer in the lowest level whose slots reach its deadline, or the first
+  // tick still to be taken if that has passed
+  private void insert(Timeout timeout, long firstTick) {
+    long tick = Math.max(timeout.deadlineTick, firstTick);
+    long ticks = Math.min(tick - currentTick, MAX_TICKS);
+    int level = 0;
+    while (ticks >= 1L << (SLOT_BITS * (level + 1))) {
+      level++;
+    }
+    if (ticks == MAX_TICKS) {
+      tick = currentTick + MAX_TICKS;
+    }
+    int index = (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+    wheel[level][index].add(timeout);
+  }
+
+  private void run() {
+    while (true) {
+      long nextTickNanos = startNanos + (currentTickSnapshot() + 1) * tickNanos;
+      long wait = nextTickNanos - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(this, wait);
+        continue;
+      }
+      long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+      synchronized (this) {
+        while (currentTick < nowTick) {
+          advance();
+        }
+      }
+      for (Timeout timeout : due) {
+        fire(timeout);
+      }
+      due.clear();
+    }
+  }
+
+  private synchronized long currentTickSnapshot() {
+    return currentTick;
+  }
+
+  // One tick forward: cascades the levels whose slots below have gone round, then
+  // takes the timers of the level 0 slot of the new tick
+  private void advance() {
+    currentTick++;
+    for (int level = 1; level < LEVELS; level++) {
+      if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+        break;
+      }
+      Slot slot = wheel[level][(int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1))];
+      Timeout timeout = slot.head;
+      slot.head = null;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        timeout.slot = null;
+        insert(timeout, currentTick); // the level 0 slot of this tick is taken below
+        timeout = next;
+      }
+    }
+    Slot slot = wheel[0][(int) (currentTick & (SLOTS - 1))];
+    Timeout timeout = slot.head;
+    slot.head = null;
+    while (timeout != null) {
+      Timeout next = timeout.next;
+      timeout.slot = null;
+      timeout.prev = null;
+      timeout.next = null;
+      due.add(timeout);
+      pending--;
+      timeout = next;
+    }
+  }
+
+  private void fire(Timeout timeout) {
+    long latenessMicros = Math.max(0, (System.nanoTime() - timeout.deadlineNanos) / 1000);
+    fired.increment();
+    totalLatenessMicros.add(latenessMicros);
+    maxLatenessMicros.accumulateAndGet(latenessMicros, Math::max);
+    try {
+      timeout.task.run();
+    } catch (RuntimeException e) {
+      logger.error("Exception in timer task: ", e);
+    }
+  }
+
+  public synchronized int getPending() {
+    return pending;
+  }
+
+  public JSONObject toJson() {
+    long numFired = fired.sum();
+    JSONObject lateness = new JSONObject();
+    lateness.put("meanMicros", numFired == 0 ? 0 : totalLatenessMicros.sum() / numFired);
+    lateness.put("maxMicros", maxLatenessMicros.get());
+
+    JSONObject json = new JSONObject();
+    json.put("tickMillis", TimeUnit.NANOSECONDS.toMillis(tickNanos));
+    json.put("pending", getPending());
+    json.put("scheduled", scheduled.sum());
+    json.put("cancelled", cancelled.sum());
+    json.put("fired", numFired);
+    json.put("lateness", lateness);
+    return json;
+  }
+}
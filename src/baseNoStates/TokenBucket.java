@@ -0,0 +1,43 @@
+package baseNoStates;
+
+/**
+ * Rate limiter of one key (a credential, a door): holds up to burst tokens, refilled at
+ * ratePerSecond, and each admitted request takes one. Tokens are kept in nanoseconds of
+ * refill time so that no floating point is involved.
+ */
+final class TokenBucket {
+  private final long nanosPerToken;
+  private final long capacityNanos;
+  // the instant at which the bucket is full again; all the state there is
+  private long fullAt;
+
+  TokenBucket(double ratePerSecond, int burst, long now) {
+    this.nanosPerToken = (long) (1_000_000_000L / ratePerSecond);
+    this.capacityNanos = nanosPerToken * burst;
+    this.fullAt = now;
+  }
+
+  /**
+   * Takes a token if there is one. Returns 0 if taken, otherwise the nanoseconds until
+   * the next token, so the answer can tell the client when to retry.
+   */
+  synchronized long tryTake(long now) {
+    long start = Math.max(fullAt, now);
+    long available = capacityNanos - (start - now);
+    if (available < nanosPerToken) {
+      return nanosPerToken - available;
+    }
+    fullAt = start + nanosPerToken;
+    return 0;
+  }
+
+  /** A full bucket is the same as a new one, so it can be dropped to save memory. */
+  synchronized boolean isFull(long now) {
+    return fullAt <= now;
+  }
+
+  synchronized int getTokens(long now) {
+    long used = Math.max(0, fullAt - now);
+    return (int) ((capacityNanos - used) / nanosPerToken);
+  }
+}
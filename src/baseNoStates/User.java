@@ -9,7 +9,8 @@ import java.time.LocalDateTime;
 public class User {
     private final String name;
     private final String credential;
-    private final UserGroup userGroup;
+    // changes when the user is moved to another group by DirectoryUserGroups
+    private volatile UserGroup userGroup;
 
     public User(String name, String credential, UserGroup userGroup) {
         this.name = name;
@@ -17,14 +18,30 @@ public class User {
         this.userGroup = userGroup;
     }
 
+    public String getName() {
+        return name;
+    }
+
     public String getCredential() {
         return credential;
     }
 
+    public UserGroup getUserGroup() {
+        return userGroup;
+    }
+
+    void setUserGroup(UserGroup userGroup) {
+        this.userGroup = userGroup;
+    }
+
     public boolean canDoAction(String action, Space space, LocalDateTime requestDateTime) {
         return userGroup.isActionAuthorized(action, space, requestDateTime);
     }
 
+    public boolean canDoAction(String action, Space space, long epochMinute) {
+        return userGroup.isActionAuthorized(action, space, epochMinute);
+    }
+
     public boolean canBeInSpace(Space space) {
         return userGroup.canBeInSpace(space);
     }
@@ -33,6 +50,10 @@ public class User {
         return userGroup.isInWorkSchedule(requestDateTime);
     }
 
+    public boolean canSendRequest(long epochMinute) {
+        return userGroup.isInWorkSchedule(epochMinute);
+    }
+
     @Override
     public String toString() {
         return "User{name=" + name + ", credential=" + credential + "}";
@@ -2,7 +2,10 @@ package baseNoStates;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Represents a group of users that share the same permissions and
@@ -14,9 +17,29 @@ import java.util.List;
 public class UserGroup {
     private final String name;
     private final ArrayList<String> actions;
-    private final ArrayList<Area> areas;
+    // replaced as a whole by setAreas, never changed in place
+    private volatile ArrayList<Area> areas;
     private final Schedule schedule;
-    private final ArrayList<User> users;
+    // copy on write: users are added or moved rarely, and read from many threads
+    private final CopyOnWriteArrayList<User> users;
+    // bit i set if the group can be in the space with index i, made from the areas
+    // when first needed and again after the areas or the topology change
+    private volatile SpaceBits spaceBits = null;
+    // how long unlock_shortly lasts for the users of the group, 0 for as long as the door says
+    private volatile long unlockShortlyMillis = 0;
+
+    // the bits, and the areas and topology they were made from
+    private static final class SpaceBits {
+        final ArrayList<Area> areas;
+        final long topologyVersion;
+        final BitSet bits;
+
+        SpaceBits(ArrayList<Area> areas, long topologyVersion, BitSet bits) {
+            this.areas = areas;
+            this.topologyVersion = topologyVersion;
+            this.bits = bits;
+        }
+    }
 
     public UserGroup(String name,
                      ArrayList<String> actions,
@@ -26,7 +49,7 @@ public class UserGroup {
         this.actions = actions;
         this.areas = areas;
         this.schedule = schedule;
-        this.users = new ArrayList<>();
+        this.users = new CopyOnWriteArrayList<>();
     }
 
     /** Registers a user to this group. */
@@ -34,15 +57,54 @@ public class UserGroup {
         users.add(user);
     }
 
+    /** Removes a user from this group, if it is in it. */
+    public void removeUser(User user) {
+        users.remove(user);
+    }
+
     /** Returns an unmodifiable view of the users in this group. */
     public List<User> getUsers() {
-        return users;
+        return Collections.unmodifiableList(users);
     }
 
     public String getName() {
         return name;
     }
 
+    public List<String> getActions() {
+        return actions;
+    }
+
+    /** Areas as given, partitions are not expanded into their spaces. */
+    public List<Area> getAreas() {
+        return Collections.unmodifiableList(areas);
+    }
+
+    /** Changes the areas the group can be in. */
+    public void setAreas(ArrayList<Area> areas) {
+        this.areas = areas; // the bits of the old ones are rebuilt when next needed
+        DirectoryUserGroups.getInstance().notifyUserGroupChanged(this);
+    }
+
+    public Schedule getSchedule() {
+        return schedule;
+    }
+
+    /** How long unlock_shortly lasts for the users of the group, 0 if it is up to the door. */
+    public long getUnlockShortlyMillis() {
+        return unlockShortlyMillis;
+    }
+
+    public void setUnlockShortlyMillis(long millis) {
+        unlockShortlyMillis = millis;
+        DirectoryUserGroups.getInstance().notifyUserGroupChanged(this);
+    }
+
+    // from a DirectorySnapshot, restoring is not a change
+    void restoreUnlockShortlyMillis(long millis) {
+        unlockShortlyMillis = millis;
+    }
+
     /** Returns true if this group has permission to perform the given action. */
     public boolean hasPermission(String action) {
         return actions.contains(action);
@@ -50,19 +112,32 @@ public class UserGroup {
 
     /**
      * Returns true if this group can be in the given space.  The group
-     * stores areas (which may be partitions or spaces) and delegates to
-     * Area.getSpaces() to obtain the leaf spaces under each area.
+     * stores areas (which may be partitions or spaces); the spaces under
+     * them are precomputed as a bitset over Space.getIndex(), so this is
+     * a single bit test.
      */
     public boolean canBeInSpace(Space space) {
-        String spaceId = space.getId();
-        for (Area area : areas) {
-            for (Space s : area.getSpaces()) {
-                if (s.getId().equals(spaceId)) {
-                    return true;
-                }
+        int index = space.getIndex();
+        return index >= 0 && getSpaceBits().get(index);
+    }
+
+    private BitSet getSpaceBits() {
+        long topologyVersion = DirectoryAreas.getInstance().getTopologyVersion();
+        ArrayList<Area> currentAreas = areas;
+        SpaceBits current = spaceBits;
+        if (current == null || current.areas != currentAreas
+                || current.topologyVersion != topologyVersion) {
+            SpaceBitsVisitor visitor =
+                    new SpaceBitsVisitor(DirectoryAreas.getInstance().getNumSpaces());
+            for (Area area : currentAreas) {
+                area.accept(visitor);
             }
+            current = new SpaceBits(currentAreas, topologyVersion, visitor.getBits());
+            // a rebuild from areas replaced meanwhile may be stored last, but it says which
+            // areas it was made from, so the next call rebuilds it
+            spaceBits = current;
         }
-        return false;
+        return current.bits;
     }
 
     /** Returns true if the given timestamp is within this group's schedule. */
@@ -70,6 +145,11 @@ public class UserGroup {
         return schedule.isWithinSchedule(dateTime);
     }
 
+    /** Same, with the minutes since 1970-01-01T00:00 (see EpochMinutes). */
+    public boolean isInWorkSchedule(long epochMinute) {
+        return schedule.isWithinSchedule(epochMinute);
+    }
+
     /**
      * Returns true if this group is authorised to perform the given action
      * in the specified space at the specified time.
@@ -77,9 +157,16 @@ public class UserGroup {
     public boolean isActionAuthorized(String action,
                                       Space space,
                                       LocalDateTime dateTime) {
+        return isActionAuthorized(action, space, EpochMinutes.of(dateTime));
+    }
+
+    /** Same, with the minutes since 1970-01-01T00:00 (see EpochMinutes). */
+    public boolean isActionAuthorized(String action,
+                                      Space space,
+                                      long epochMinute) {
         return hasPermission(action) &&
                 canBeInSpace(space) &&
-                isInWorkSchedule(dateTime);
+                isInWorkSchedule(epochMinute);
     }
 
     /** Returns all the leaf spaces contained in this group's areas. */
@@ -1,16 +1,14 @@
 package baseNoStates;
 
-import baseNoStates.requests.*;
-
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.StringTokenizer;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,24 +19,163 @@ import org.slf4j.LoggerFactory;
 // http://www.jcgonzalez.com/java-socket-mini-server-http-example
 public class WebServer {
   private static final Logger logger = LoggerFactory.getLogger(WebServer.class);
-  private static final int PORT = 8080; // port to listen connection
-  private static final DateTimeFormatter formatter =
-      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm");
+  private static final int PORT = Config.getInt("port", 8080); // port to listen connection
+
+  /**
+   * How client connections are handled.
+   * CLASSIC: one platform thread per connection, one HTTP/1.0 answer and close,
+   * up to a maximum number of connections at the same time.
+   * VIRTUAL: connections run on virtual threads, up to a maximum number at the same
+   * time, and are kept alive for several HTTP/1.1 requests.
+   */
+  public enum Mode { CLASSIC, VIRTUAL }
+
+  private final Mode mode;
+  private final int maxConnections = Config.getInt("maxConnections", 10000);
+  private final int idleTimeoutMillis = Config.getInt("idleTimeoutMillis", 15000);
+  private final int maxRequestsPerConnection = Config.getInt("maxRequestsPerConnection", 1000);
+  private final ConnectionStats stats = ConnectionStats.getInstance();
 
   public WebServer() {
+    this(Mode.valueOf(Config.getString("server", "classic").toUpperCase()));
+  }
+
+  public WebServer(Mode mode) {
+    this.mode = mode;
     try {
       ServerSocket serverConnect = new ServerSocket(PORT);
-      logger.info("Server started. Listening for connections on port: {}", PORT);
-      // we listen until user halts server execution
-      while (true) {
-        // each client connection will be managed in a dedicated Thread
-        new SocketThread(serverConnect.accept());
-        // create dedicated thread to manage the client connection
+      logger.info("Server started in {} mode. Listening for connections on port: {}", mode, PORT);
+      if (mode == Mode.VIRTUAL) {
+        acceptOnVirtualThreads(serverConnect);
+      } else {
+        // we listen until user halts server execution
+        while (true) {
+          // each client connection will be managed in a dedicated Thread
+          Socket socket = serverConnect.accept();
+          stats.connectionAccepted();
+          if (stats.getActive() >= maxConnections) {
+            stats.connectionRejected();
+            logger.warn("Connection rejected, {} connections already open", maxConnections);
+            reject(socket);
+            continue;
+          }
+          new SocketThread(socket);
+          // create dedicated thread to manage the client connection
+        }
       }
     } catch (IOException e) {
       logger.error("Server Connection error: {}", e.getMessage());    }
   }
 
+  // Connections beyond maxConnections are answered with a 503 and closed straight away,
+  // so a burst of readers can't make the server run out of memory.
+  private void acceptOnVirtualThreads(ServerSocket serverConnect) throws IOException {
+    Semaphore permits = new Semaphore(maxConnections);
+    ExecutorService executor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("connection-", 0).factory());
+    logger.info("At most {} connections, idle timeout {} ms", maxConnections, idleTimeoutMillis);
+    while (true) {
+      Socket socket = serverConnect.accept();
+      stats.connectionAccepted();
+      if (!permits.tryAcquire()) {
+        stats.connectionRejected();
+        logger.warn("Connection rejected, {} connections already open", maxConnections);
+        reject(socket);
+        continue;
+      }
+      executor.execute(() -> {
+        try {
+          serveKeepAlive(socket);
+        } finally {
+          permits.release();
+        }
+      });
+    }
+  }
+
+  private void reject(Socket socket) {
+    try (socket) {
+      HttpResponse busy = HttpResponse.error(503, "Service Unavailable", "too many connections");
+      socket.getOutputStream().write(busy.toBytes("HTTP/1.1", false, 0));
+    } catch (IOException e) {
+      logger.debug("Could not answer rejected connection: {}", e.getMessage());
+    }
+  }
+
+  // Answers requests on the same connection until the client closes it, asks to close it,
+  // stays idle longer than the timeout or reaches the maximum number of requests.
+  private void serveKeepAlive(Socket socket) {
+    stats.connectionOpened();
+    try (socket) {
+      socket.setSoTimeout(idleTimeoutMillis);
+      socket.setTcpNoDelay(true);
+      StreamRequestReader in = new StreamRequestReader(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      int served = 0;
+      boolean keepAlive = true;
+      while (keepAlive) {
+        HttpRequest request = in.read();
+        if (request == null) {
+          break; // client closed the connection
+        }
+        served++;
+        keepAlive = request.isKeepAlive() && served < maxRequestsPerConnection;
+        HttpResponse response = RequestDispatcher.dispatch(request);
+        stats.requestServed();
+        if (response.isStreaming()) {
+          writeStreaming(response, "HTTP/1.1", out);
+          break;
+        }
+        long writeStart = System.nanoTime();
+        out.write(response.toBytes("HTTP/1.1", keepAlive, idleTimeoutMillis / 1000));
+        out.flush();
+        RequestTrace.written(response, writeStart);
+      }
+    } catch (MalformedRequestException e) {
+      answerMalformed(socket, e, "HTTP/1.1");
+    } catch (SocketTimeoutException e) {
+      stats.idleTimeout();
+      logger.debug("Connection idle for more than {} ms, closing it", idleTimeoutMillis);
+    } catch (Exception e) {
+      logger.error("Exception : ", e);
+    } finally {
+      stats.connectionClosed();
+    }
+  }
+
+  // The error of a request that could not be parsed, before the connection is closed
+  private void answerMalformed(Socket socket, MalformedRequestException e, String version) {
+    logger.debug("Malformed request, answering and closing: {}", e.getMessage());
+    try {
+      OutputStream out = socket.getOutputStream();
+      out.write(e.toResponse().toBytes(version, false, 0));
+      out.flush();
+    } catch (IOException writeError) {
+      logger.debug("Could not answer malformed request: {}", writeError.getMessage());
+    }
+  }
+
+  // Head first, then the body as it is produced; ends when done or the client goes away
+  private void writeStreaming(HttpResponse response, String version, OutputStream out) {
+    long writeStart = System.nanoTime();
+    StreamingBody body = response.getStreamingBody();
+    try {
+      out.write(response.headBytes(version, false, 0));
+      out.flush();
+    } catch (IOException e) {
+      logger.debug("Streaming client went away: {}", e.getMessage());
+      body.discard();
+      return;
+    }
+    try {
+      body.writeTo(out);
+      out.flush();
+      RequestTrace.written(response, writeStart); // the body was made while writing it
+    } catch (IOException e) {
+      logger.debug("Streaming client went away: {}", e.getMessage());
+    }
+  }
+
 
   private class SocketThread extends Thread {
     // as an inner class, SocketThread sees WebServer attributes
@@ -52,140 +189,46 @@ public class WebServer {
     @Override
     public void run() {
       // we manage our particular client connection
-      BufferedReader in;
-      PrintWriter out;
-      String resource;
-
+      stats.connectionOpened();
       try {
-        // we read characters from the client via input stream on the socket
-        in = new BufferedReader(new InputStreamReader(insocked.getInputStream()));
-        // we get character output stream to client
-        out = new PrintWriter(insocked.getOutputStream());
-        // get first line of the request from the client
-        String input = in.readLine();
-        // we parse the request with a string tokenizer
-
-        logger.debug("sockedthread : {}", input);
-
-        StringTokenizer parse = new StringTokenizer(input);
-        String method = parse.nextToken().toUpperCase(); // we get the HTTP method of the client
-        if (!method.equals("GET")) {
-          logger.warn("501 Not Implemented: {} method.", method);
-        } else {
-          // what comes after "localhost:8080"
-          resource = parse.nextToken();
-          logger.debug("input {}", input);
-          logger.debug("method {}", method);
-          logger.debug("resource {}", resource);
-
-          parse = new StringTokenizer(resource, "/[?]=&");
-          int i = 0;
-          String[] tokens = new String[20]; // more than the actual number of parameters
-          while (parse.hasMoreTokens()) {
-            tokens[i] = parse.nextToken();
-            logger.debug("{} {}", i, tokens[i]);
-            i++;
-          }
-
-          // Here is where we send the request and get the answer inside it
-          Request request = makeRequest(tokens);
-          if (request != null) {
-            String typeRequest = tokens[0];
-            logger.info("Processing request type: {}", tokens[0]);
-            request.process();
-            logger.info("processed request {} {}", typeRequest, request);
-            // Make the answer as a JSON string, to be sent to the Javascript client
-            String answer = makeJsonAnswer(request);
-            logger.debug("answer\n{}", answer);
-            // Here we send the response to the client
-            out.println(answer);
-            out.flush(); // flush character output stream buffer
+        // we read the request from the client via input stream on the socket
+        InputStream in = insocked.getInputStream();
+        // we get the output stream to client
+        OutputStream out = insocked.getOutputStream();
+        HttpRequest request = new StreamRequestReader(in).read();
+        logger.debug("sockedthread : {}", request);
+
+        if (request != null) {
+          // Here we send the request and get the answer inside it
+          HttpResponse response = RequestDispatcher.dispatch(request);
+          stats.requestServed();
+          // Here we send the response to the client
+          if (response.isStreaming()) {
+            writeStreaming(response, "HTTP/1.0", out);
+          } else {
+            long writeStart = System.nanoTime();
+            out.write(response.toBytes("HTTP/1.0", false, 0));
+            out.flush();
+            RequestTrace.written(response, writeStart);
           }
         }
 
         in.close();
         out.close();
         insocked.close(); // we close socket connection
+      } catch (MalformedRequestException e) {
+        answerMalformed(insocked, e, "HTTP/1.0");
+        try {
+          insocked.close();
+        } catch (IOException closeError) {
+          logger.debug("Error closing socket: {}", closeError.getMessage());
+        }
       } catch (Exception e) {
         logger.error("Exception : ", e);
+      } finally {
+        stats.connectionClosed();
       }
     }
-
-    private Request makeRequest(String[] tokens) {
-      // always return request because it contains the answer for the Javascript client
-      System.out.print("tokens : ");
-      for (String token : tokens) {
-        System.out.print(token + ", ");
-      }
-      System.out.println();
-
-      Request request;
-      // assertions below evaluated to false won't stop the webserver, just print an
-      // assertion error, maybe because the webserver runs in a socked thread
-      switch (tokens[0]) {
-        case "refresh":
-          request = new RequestRefresh();
-          break;
-        case "reader":
-          request = makeRequestReader(tokens);
-          break;
-        case "area":
-          request = makeRequestArea(tokens);
-          break;
-        case "get_children":
-          //TODO: this is to be implemented when programming the mobile app in Flutter
-          // in order to navigate the hierarchy of partitions, spaces and doors
-          request = makeRequestChildren(tokens);
-          break;
-        default:
-          // just in case we change the user interface or the simulator
-          assert false : "unknown request " + tokens[0];
-          request = null;
-          System.exit(-1);
-      }
-      return request;
-    }
-
-    private RequestChildren makeRequestChildren(String[] tokens) {
-
-      String areaId = tokens[1];
-      return new RequestChildren(areaId);
-    }
-
-    private RequestReader makeRequestReader(String[] tokens) {
-      String credential = tokens[2];
-      String action = tokens[4];
-      LocalDateTime dateTime = LocalDateTime.parse(tokens[6], formatter);
-      String doorId = tokens[8];
-      return new RequestReader(credential, action, dateTime, doorId);
-    }
-
-    private RequestArea makeRequestArea(String[] tokens) {
-      String credential = tokens[2];
-      String action = tokens[4];
-      LocalDateTime dateTime = LocalDateTime.parse(tokens[6], formatter);
-      String areaId = tokens[8];
-      return new RequestArea(credential, action, dateTime, areaId);
-    }
-
-    private String makeHeaderAnswer() {
-      String answer = "";
-      answer += "HTTP/1.0 200 OK\r\n";
-      answer += "Content-type: application/json\r\n";
-      answer += "Access-Control-Allow-Origin: *\r\n";
-      // SUPERIMPORTANT to avoid the CORS problem :
-      // "Cross-Origin Request Blocked: The Same Origin Policy disallows reading
-      // the remote resource..."
-      answer += "\r\n"; // blank line between headers and content, very important !
-      return answer;
-    }
-
-    private String makeJsonAnswer(Request request) {
-      String answer = makeHeaderAnswer();
-      answer += request.answerToJson().toString();
-      return answer;
-    }
-
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,91 @@
+package baseNoStates.bench;
+
+import baseNoStates.AccessLog;
+import baseNoStates.Config;
+import baseNoStates.EpochMinutes;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures what AccessLog.log costs a request, from a growing number of threads logging
+ * as fast as they can into a temporary file, far faster than a disk takes lines, so
+ * the ring is full most of the time. Prints nanoseconds of core time per event and the
+ * events logged and dropped. Pass --accessLog.whenFull=block to see the requests waiting
+ * for the writer instead.
+ * Run it with: java baseNoStates.bench.AccessLogBenchmark [millisPerRun] [--accessLog.x=y...]
+ */
+public final class AccessLogBenchmark {
+
+  private AccessLogBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    long millis = args.length > 0 && !args[0].startsWith("--") ? Long.parseLong(args[0]) : 1000;
+    Config.loadArgs(args);
+    Path file = Files.createTempFile("access", ".jsonl");
+    AccessLog.getInstance().start(file);
+
+    int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+    run(1, millis); // warm up
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      run(threads, millis);
+    }
+    System.out.println(AccessLog.getInstance().toJson());
+    System.out.println(file + " " + Files.size(file) + " bytes, deleted on exit");
+    file.toFile().deleteOnExit();
+  }
+
+  private static void run(int numThreads, long millis) throws InterruptedException {
+    AccessLog accessLog = AccessLog.getInstance();
+    long droppedBefore = accessLog.getDropped();
+    long loggedBefore = accessLog.getLogged();
+    long[] events = new long[numThreads];
+    long[] busyNanos = new long[numThreads];
+    AtomicBoolean stop = new AtomicBoolean(false);
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[numThreads];
+    long epochMinute = EpochMinutes.of(2026, 10, 18, 10, 30);
+    List<String> noReasons = List.of();
+    List<String> reasons = List.of("User not authorized at this time");
+    for (int t = 0; t < numThreads; t++) {
+      int index = t;
+      threads[t] = new Thread(() -> {
+        long n = 0;
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        long begin = System.nanoTime();
+        while (!stop.get()) {
+          boolean authorized = (n & 3) != 0;
+          accessLog.log(null, "11343", "D" + (n % 9 + 1), "unlock", epochMinute, authorized,
+              "unlocked", true, authorized ? noReasons : reasons);
+          n++;
+        }
+        busyNanos[index] = System.nanoTime() - begin;
+        events[index] = n;
+      });
+      threads[t].start();
+    }
+    start.countDown();
+    Thread.sleep(millis);
+    stop.set(true);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long total = 0;
+    long busy = 0;
+    for (int t = 0; t < numThreads; t++) {
+      total += events[t];
+      busy = Math.max(busy, busyNanos[t]);
+    }
+    int cores = Math.min(numThreads, Runtime.getRuntime().availableProcessors());
+    System.out.printf("%3d threads %,12d events %8.1f ns per event %,12d logged %,12d dropped%n",
+        numThreads, total, (double) busy * cores / total,
+        accessLog.getLogged() - loggedBefore, accessLog.getDropped() - droppedBefore);
+  }
+}
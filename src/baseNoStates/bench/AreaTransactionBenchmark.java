@@ -0,0 +1,106 @@
+package baseNoStates.bench;
+
+import baseNoStates.Actions;
+import baseNoStates.AreaTransaction;
+import baseNoStates.DirectoryDoors;
+import baseNoStates.Door;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures area commands on overlapping areas from a growing number of threads: each
+ * thread locks and unlocks, over and over, a window of consecutive doors at a random
+ * place among all of them, so windows of different threads overlap often. It is run as
+ * AreaTransaction, all or none, and door by door with Door.doAction as RequestArea did
+ * before, and prints area commands and doors per second. One door in a hundred is left
+ * open, so lock transactions including it abort.
+ * Run it with: java baseNoStates.bench.AreaTransactionBenchmark [doors] [window] [millisPerRun]
+ */
+public final class AreaTransactionBenchmark {
+
+  private AreaTransactionBenchmark() {}
+
+  public static void main(String[] args) throws InterruptedException {
+    int numDoors = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+    int window = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+    long millis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+
+    List<Door> doors = new ArrayList<>();
+    for (int i = 0; i < numDoors; i++) {
+      doors.add(new Door("bench" + i));
+    }
+    DirectoryDoors.getInstance().installDoors(doors); // gives the handles
+    for (int i = 0; i < numDoors; i += 100) {
+      doors.get(i).doAction(Actions.OPEN);
+    }
+
+    int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+    run(doors, window, 1, true, millis); // warm up
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      run(doors, window, threads, true, millis);
+      run(doors, window, threads, false, millis);
+    }
+    System.out.println(AreaTransaction.statsToJson());
+  }
+
+  private static void run(List<Door> doors, int window, int numThreads, boolean transactional,
+                          long millis) throws InterruptedException {
+    long[] commands = new long[numThreads];
+    long[] aborts = new long[numThreads];
+    AtomicBoolean stop = new AtomicBoolean(false);
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      int index = t;
+      threads[t] = new Thread(() -> {
+        Random random = new Random(index);
+        Door[] area = new Door[window];
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        while (!stop.get()) {
+          int first = random.nextInt(doors.size() - window + 1);
+          for (int i = 0; i < window; i++) {
+            area[i] = doors.get(first + i);
+          }
+          String action = random.nextBoolean() ? Actions.LOCK : Actions.UNLOCK;
+          if (transactional) {
+            if (!new AreaTransaction(area, action).execute()) {
+              aborts[index]++;
+            }
+          } else {
+            for (Door door : area) {
+              door.doAction(action);
+            }
+          }
+          commands[index]++;
+        }
+      });
+      threads[t].start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    Thread.sleep(millis);
+    stop.set(true);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    long totalCommands = 0;
+    long totalAborts = 0;
+    for (int t = 0; t < numThreads; t++) {
+      totalCommands += commands[t];
+      totalAborts += aborts[t];
+    }
+    System.out.printf("%-13s %3d threads %,12.0f areas/s %,14.0f doors/s %5.1f%% aborted%n",
+        transactional ? "transaction" : "door by door", numThreads, totalCommands / seconds,
+        totalCommands * window / seconds, 100.0 * totalAborts / Math.max(1, totalCommands));
+  }
+}
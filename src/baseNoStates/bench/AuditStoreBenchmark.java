@@ -0,0 +1,173 @@
+package baseNoStates.bench;
+
+import baseNoStates.AuditStore;
+import baseNoStates.BuildingContext;
+import baseNoStates.Config;
+import baseNoStates.DirectoryAreas;
+import baseNoStates.DirectoryDoors;
+import baseNoStates.DirectoryUserGroups;
+import baseNoStates.Door;
+import baseNoStates.EpochMinutes;
+import baseNoStates.StreamingBody;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fills an AuditStore in a temporary directory with millions of door requests, of
+ * --doors (200) doors and --credentials (5000) credentials, and prints how many it
+ * records per second. Then times queries over them: of a door, of an area of 20 doors
+ * and of a credential, each in a window of 1% of the time recorded, and all the
+ * requests of a door, streamed to nowhere. Pass --audit.segmentRecords to change how
+ * many segments there are, and --audit.dir to query a store kept from a previous run.
+ * The doors and credentials are made in the building of the store, as the store records
+ * those it does not know as "unknown".
+ * Run it with: java baseNoStates.bench.AuditStoreBenchmark [records] [--audit.x=y...]
+ */
+public final class AuditStoreBenchmark {
+  private static final int QUERIES = 200;
+
+  private AuditStoreBenchmark() {}
+
+  // Counts what a query writes, instead of sending it
+  private static final class CountingStream extends OutputStream {
+    long bytes = 0;
+    long lines = 0;
+
+    @Override
+    public void write(int b) {
+      bytes++;
+      lines += b == '\n' ? 1 : 0;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      bytes += len;
+      for (int i = off; i < off + len; i++) {
+        lines += b[i] == '\n' ? 1 : 0;
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    long records = args.length > 0 && !args[0].startsWith("--") ? Long.parseLong(args[0]) : 10_000_000;
+    Config.loadArgs(args);
+    int numDoors = Config.getInt("doors", 200);
+    int numCredentials = Config.getInt("credentials", 5000);
+    String keptDir = Config.getString("audit.dir", null);
+    Path dir = keptDir != null ? Path.of(keptDir) : Files.createTempDirectory("audit");
+
+    String[] doors = new String[numDoors];
+    for (int i = 0; i < numDoors; i++) {
+      doors[i] = "D" + i;
+    }
+    String[] credentials = new String[numCredentials];
+    for (int i = 0; i < numCredentials; i++) {
+      credentials[i] = Integer.toString(100000 + i);
+    }
+
+    BuildingContext building = BuildingContext.create("bench");
+    AuditStore store = building.call(AuditStore::getInstance);
+    building.run(() -> {
+      List<Door> doorList = new ArrayList<>();
+      for (String id : doors) {
+        doorList.add(new Door(id));
+      }
+      DirectoryDoors.getInstance().installDoors(doorList);
+      DirectoryAreas.getInstance().makeAreas();
+      DirectoryUserGroups userGroups = DirectoryUserGroups.getInstance();
+      userGroups.makeUserGroups();
+      for (String credential : credentials) {
+        userGroups.addUser("bench" + credential, credential, userGroups.getUserGroups().get(0));
+      }
+      try {
+        store.open(dir);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    List<String> denied = List.of("Not within work schedule");
+    long epochMinute = EpochMinutes.of(2026, 10, 18, 10, 30);
+    Random random = new Random(42);
+    long start = System.currentTimeMillis();
+    long startNanos = System.nanoTime();
+    for (long n = 0; n < records; n++) {
+      boolean authorized = random.nextInt(10) != 0;
+      store.record(credentials[random.nextInt(numCredentials)], doors[random.nextInt(numDoors)],
+          authorized ? "open" : "unlock", epochMinute, authorized, "locked", true,
+          authorized ? List.of() : denied);
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    long end = System.currentTimeMillis() + 1;
+    System.out.printf("recorded %,d in %.1f s, %,.0f records/s%n", records, seconds,
+        records / seconds);
+    Thread.sleep(2000); // for the sealer, so most queries read index files
+    System.out.println(store.toJson());
+
+    long window = Math.max(1, (end - start) / 100);
+    time("door, 1% of the time", QUERIES, () -> {
+      long from = from(random, start, end, window);
+      return store.query(from, from + window, List.of(doors[random.nextInt(numDoors)]), null,
+          null, Long.MAX_VALUE);
+    });
+    time("area of 20 doors, 1%", QUERIES, () -> {
+      long from = from(random, start, end, window);
+      int first = random.nextInt(numDoors - 20);
+      return store.query(from, from + window, Arrays.asList(doors).subList(first, first + 20),
+          null, null, Long.MAX_VALUE);
+    });
+    time("credential, 1%", QUERIES, () -> {
+      long from = from(random, start, end, window);
+      return store.query(from, from + window, null, credentials[random.nextInt(numCredentials)],
+          null, Long.MAX_VALUE);
+    });
+    time("credential at a door, all", QUERIES, () -> store.query(0, Long.MAX_VALUE,
+        List.of(doors[random.nextInt(numDoors)]), credentials[random.nextInt(numCredentials)],
+        null, Long.MAX_VALUE));
+    time("door, all, streamed", 5, () -> store.query(0, Long.MAX_VALUE,
+        List.of(doors[random.nextInt(numDoors)]), null, null, Long.MAX_VALUE));
+
+    if (keptDir == null) {
+      for (File file : dir.toFile().listFiles()) {
+        file.delete();
+      }
+      dir.toFile().delete();
+    }
+  }
+
+  private static long from(Random random, long start, long end, long window) {
+    return start + (long) (random.nextDouble() * Math.max(1, end - start - window));
+  }
+
+  private interface QueryMaker {
+    StreamingBody make();
+  }
+
+  private static void time(String name, int queries, QueryMaker maker) throws Exception {
+    List<Long> micros = new ArrayList<>();
+    long results = 0;
+    long bytes = 0;
+    long totalNanos = 0;
+    for (int i = 0; i < queries; i++) {
+      StreamingBody query = maker.make();
+      CountingStream out = new CountingStream();
+      long startNanos = System.nanoTime();
+      query.writeTo(out);
+      long nanos = System.nanoTime() - startNanos;
+      totalNanos += nanos;
+      micros.add(nanos / 1000);
+      results += out.lines - 1; // the last line is the summary
+      bytes += out.bytes;
+    }
+    micros.sort(null);
+    System.out.printf("%-28s %,8d results/query  p50 %,8d us  p99 %,8d us  %,6.1f MB/s%n", name,
+        results / queries, micros.get(queries / 2), micros.get(queries * 99 / 100),
+        bytes / (totalNanos / 1e9) / 1e6);
+  }
+}
@@ -0,0 +1,88 @@
+package baseNoStates.bench;
+
+import baseNoStates.DirectoryUserGroups;
+import baseNoStates.Schedule;
+import baseNoStates.User;
+import baseNoStates.UserGroup;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures DirectoryUserGroups.findUserByCredential, a lookup in the credential index,
+ * next to the old nested scan of all the groups and users, for growing numbers of users
+ * spread over a number of groups, and prints the index memory per entry.
+ * Run it with: java baseNoStates.bench.CredentialLookupBenchmark [groups] [lookups]
+ */
+public final class CredentialLookupBenchmark {
+  private static final int[] USERS = {1_000, 10_000, 200_000};
+
+  private CredentialLookupBenchmark() {}
+
+  public static void main(String[] args) {
+    int numGroups = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+    DirectoryUserGroups directory = DirectoryUserGroups.getInstance();
+    Schedule schedule = new Schedule(LocalDate.now(), LocalDate.now(), new ArrayList<>(),
+        LocalTime.MIDNIGHT, LocalTime.MIDNIGHT);
+    Random random = new Random(42);
+    long sink = 0;
+
+    for (int numUsers : USERS) {
+      List<UserGroup> groups = new ArrayList<>();
+      for (int g = 0; g < numGroups; g++) {
+        groups.add(new UserGroup("group" + g, new ArrayList<>(), new ArrayList<>(), schedule));
+      }
+      String[] credentials = new String[numUsers];
+      for (int u = 0; u < numUsers; u++) {
+        credentials[u] = String.format("%08d", u);
+        UserGroup group = groups.get(u % numGroups);
+        group.addUser(new User("user" + u, credentials[u], group));
+      }
+      directory.installUserGroups(groups);
+      // new strings, as the router makes them, so equals() has to look at the characters
+      String[] probes = new String[1024];
+      for (int i = 0; i < probes.length; i++) {
+        probes[i] = new String(credentials[random.nextInt(numUsers)]);
+      }
+
+      for (int round = 0; round < 2; round++) { // first round is the warm up
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups * 1000; i++) {
+          sink += directory.findUserByCredential(probes[i & (probes.length - 1)]) != null ? 1 : 0;
+        }
+        if (round == 1) {
+          report("index", numUsers, lookups * 1000, System.nanoTime() - start);
+        }
+      }
+      for (int round = 0; round < 2; round++) {
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+          sink += oldFindUserByCredential(groups, probes[i & (probes.length - 1)]) != null ? 1 : 0;
+        }
+        if (round == 1) {
+          report("scan", numUsers, lookups, System.nanoTime() - start);
+        }
+      }
+      System.out.println("  " + directory.credentialIndexToJson());
+    }
+    System.out.println("(ignore " + sink + ")");
+  }
+
+  // what DirectoryUserGroups.findUserByCredential used to do
+  private static User oldFindUserByCredential(List<UserGroup> groups, String credential) {
+    for (UserGroup group : groups) {
+      for (User user : group.getUsers()) {
+        if (user.getCredential().equals(credential)) return user;
+      }
+    }
+    return null;
+  }
+
+  private static void report(String name, int users, int lookups, long nanos) {
+    System.out.printf("%-6s %7d users %12.1f ns/lookup%n", name, users, (double) nanos / lookups);
+  }
+}
@@ -0,0 +1,141 @@
+package baseNoStates.bench;
+
+import baseNoStates.Actions;
+import baseNoStates.BuildingContext;
+import baseNoStates.Config;
+import baseNoStates.DirectoryDoors;
+import baseNoStates.Door;
+import baseNoStates.DoorJournal;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the sustained rate of door changes with the DoorJournal open, from a growing
+ * number of threads each opening and closing its own doors as fast as it can, so every
+ * action is a transition and a record. Prints transitions and megabytes per second and
+ * how many records each force to disk committed. Then replays the journal into another
+ * building with the same doors and checks they end up as the first ones.
+ * Pass --journal.syncCommits=true to wait for each record to be on disk, and
+ * --journal.segmentBytes to see segments being rotated.
+ * Run it with: java baseNoStates.bench.DoorJournalBenchmark [millisPerRun] [--journal.x=y...]
+ */
+public final class DoorJournalBenchmark {
+  private static final int DOORS_PER_THREAD = 16;
+
+  private DoorJournalBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    long millis = args.length > 0 && !args[0].startsWith("--") ? Long.parseLong(args[0]) : 1000;
+    Config.loadArgs(args);
+    int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+    Path dir = Files.createTempDirectory("journal");
+
+    BuildingContext building = BuildingContext.create("bench");
+    List<Door> doors = building.call(() -> {
+      List<Door> made = new ArrayList<>();
+      for (int i = 0; i < maxThreads * DOORS_PER_THREAD; i++) {
+        made.add(new Door("bench" + i));
+      }
+      DirectoryDoors.getInstance().installDoors(made);
+      try {
+        DoorJournal.getInstance().open(dir);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+      return made;
+    });
+
+    run(building, doors, 1, millis); // warm up
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      run(building, doors, threads, millis);
+    }
+    System.out.println(building.call(() -> DoorJournal.getInstance().toJson()));
+    checkReplay(dir, doors);
+    for (File file : dir.toFile().listFiles()) {
+      file.delete();
+    }
+    dir.toFile().delete();
+  }
+
+  private static void run(BuildingContext building, List<Door> doors, int numThreads,
+                          long millis) throws InterruptedException {
+    long[] transitions = new long[numThreads];
+    AtomicBoolean stop = new AtomicBoolean(false);
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[numThreads];
+    long forcesBefore = building.call(() -> DoorJournal.getInstance().toJson()).optLong("forces", 0);
+    long bytesBefore =
+        building.call(() -> DoorJournal.getInstance().toJson()).optLong("bytesAppended", 0);
+    for (int t = 0; t < numThreads; t++) {
+      int first = t * DOORS_PER_THREAD;
+      int index = t;
+      threads[t] = building.newThread(() -> {
+        long n = 0;
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        while (!stop.get()) {
+          Door door = doors.get(first + (int) (n % DOORS_PER_THREAD));
+          door.doAction(door.isClosed() ? Actions.OPEN : Actions.CLOSE);
+          n++;
+        }
+        transitions[index] = n;
+      }, "bench-" + t);
+      threads[t].start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    Thread.sleep(millis);
+    stop.set(true);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    long total = 0;
+    for (long n : transitions) {
+      total += n;
+    }
+    long forces =
+        building.call(() -> DoorJournal.getInstance().toJson()).optLong("forces", 0) - forcesBefore;
+    long bytes = building.call(() -> DoorJournal.getInstance().toJson()).optLong("bytesAppended", 0)
+        - bytesBefore;
+    System.out.printf("%3d threads %,12.0f transitions/s %8.1f MB/s %,10.1f records per force%n",
+        numThreads, total / seconds, bytes / seconds / 1e6, (double) total / Math.max(1, forces));
+  }
+
+  private static void checkReplay(Path dir, List<Door> written) throws Exception {
+    BuildingContext replay = BuildingContext.create("replay");
+    long start = System.nanoTime();
+    int differ = replay.call(() -> {
+      List<Door> doors = new ArrayList<>();
+      for (Door door : written) {
+        doors.add(new Door(door.getId()));
+      }
+      DirectoryDoors.getInstance().installDoors(doors);
+      try {
+        DoorJournal.getInstance().open(dir);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+      int n = 0;
+      for (int i = 0; i < doors.size(); i++) {
+        if (doors.get(i).isClosed() != written.get(i).isClosed()
+            || !doors.get(i).getStateName().equals(written.get(i).getStateName())) {
+          n++;
+        }
+      }
+      return n;
+    });
+    System.out.printf("replayed %,d records in %,d ms, %d doors differ%n",
+        replay.call(() -> DoorJournal.getInstance().toJson()).optLong("replayed", 0),
+        (System.nanoTime() - start) / 1_000_000, differ);
+  }
+}
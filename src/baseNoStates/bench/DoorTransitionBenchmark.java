@@ -0,0 +1,126 @@
+package baseNoStates.bench;
+
+import baseNoStates.Actions;
+import baseNoStates.BuildingContext;
+import baseNoStates.Config;
+import baseNoStates.DirectoryDoors;
+import baseNoStates.Door;
+import baseNoStates.DoorEventStream;
+import baseNoStates.DoorJournal;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures Door.doAction from a growing number of threads that open and close doors as
+ * fast as they can: all of them on one door, the worst contention, and each one on its
+ * own door. The doors are installed in DirectoryDoors of a building with its /events
+ * stream listening, so each transition pays what it pays in the server after the
+ * compare-and-set: bookkeeping, notification and the event. With --journal=true they are
+ * also journaled, to a temporary directory. Prints the actions per second and the
+ * transitions per second, the versions the doors went through; on one door the actions
+ * that find it already open, or closed, change nothing.
+ * Run it with:
+ * java baseNoStates.bench.DoorTransitionBenchmark [millisPerRun] [maxThreads] [--journal=true]
+ */
+public final class DoorTransitionBenchmark {
+
+  private DoorTransitionBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    long millis = args.length > 0 && !args[0].startsWith("--") ? Long.parseLong(args[0]) : 1000;
+    int maxThreads = args.length > 1 && !args[1].startsWith("--") ? Integer.parseInt(args[1])
+        : 2 * Runtime.getRuntime().availableProcessors();
+    Config.loadArgs(args);
+
+    BuildingContext building = BuildingContext.create("bench");
+    List<Door> doors = new ArrayList<>();
+    for (int i = 0; i < maxThreads; i++) {
+      doors.add(new Door("bench" + i));
+    }
+    Path journalDir = Config.getBoolean("journal", false)
+        ? Files.createTempDirectory("journal") : null;
+    building.run(() -> {
+      DirectoryDoors.getInstance().installDoors(doors);
+      DoorEventStream.getInstance(); // listens to every change, as in the server
+      if (journalDir != null) {
+        try {
+          DoorJournal.getInstance().open(journalDir);
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    });
+
+    run(building, doors, 1, false, millis); // warm up
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      run(building, doors, threads, true, millis);
+      run(building, doors, threads, false, millis);
+    }
+
+    if (journalDir != null) {
+      for (File file : journalDir.toFile().listFiles()) {
+        file.delete();
+      }
+      journalDir.toFile().delete();
+    }
+  }
+
+  private static void run(BuildingContext building, List<Door> installed, int numThreads,
+      boolean sharedDoor, long millis) throws InterruptedException {
+    Door[] doors = new Door[numThreads];
+    long[] versionsBefore = new long[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      doors[i] = installed.get(sharedDoor ? 0 : i);
+      versionsBefore[i] = doors[i].getVersion();
+    }
+    long[] actions = new long[numThreads];
+    AtomicBoolean stop = new AtomicBoolean(false);
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      int t = i;
+      threads[i] = building.newThread(() -> {
+        Door door = doors[t];
+        long n = 0;
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        while (!stop.get()) {
+          door.doAction(Actions.OPEN);
+          door.doAction(Actions.CLOSE);
+          n += 2;
+        }
+        actions[t] = n;
+      }, "worker-" + i);
+      threads[i].start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    Thread.sleep(millis);
+    stop.set(true);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    long totalActions = 0;
+    long transitions = 0;
+    for (int i = 0; i < numThreads; i++) {
+      totalActions += actions[i];
+      if (!sharedDoor || i == 0) {
+        transitions += doors[i].getVersion() - versionsBefore[i];
+      }
+    }
+    System.out.printf("%-8s %3d threads %,14.0f actions/s %,14.0f transitions/s%n",
+        sharedDoor ? "one door" : "own door", numThreads,
+        totalActions / seconds, transitions / seconds);
+  }
+}
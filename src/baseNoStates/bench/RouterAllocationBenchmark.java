@@ -0,0 +1,119 @@
+package baseNoStates.bench;
+
+import baseNoStates.Endpoint;
+import baseNoStates.RequestParams;
+import baseNoStates.RequestParams.Param;
+import baseNoStates.RequestRouter;
+import baseNoStates.requests.RequestReader;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.StringTokenizer;
+
+/**
+ * Measures the bytes allocated per request by RequestRouter, then by routing and making
+ * the RequestReader of each /reader and /area target, as RequestDispatcher does, with
+ * the datetime carried as epoch minutes. The old way of routing (StringTokenizer into a
+ * String[20] and LocalDateTime.parse) is measured for reference.
+ * Run it with: java baseNoStates.bench.RouterAllocationBenchmark [iterations]
+ */
+public final class RouterAllocationBenchmark {
+  private static final String[] TARGETS = {
+      "/reader?credential=11343&action=open&datetime=2025-10-06T09:30&doorId=D1",
+      "/reader?credential=95783&action=unlock_shortly&datetime=2025-10-06T18:05&doorId=D7",
+      "/area?credential=11343&action=lock&datetime=2025-10-06T21:00&areaId=ground_floor",
+      "/get_children?building",
+      "/refresh",
+  };
+  private static final DateTimeFormatter formatter =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm");
+
+  private RouterAllocationBenchmark() {}
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    byte[][] targets = new byte[TARGETS.length][];
+    for (int i = 0; i < TARGETS.length; i++) {
+      targets[i] = TARGETS[i].getBytes(StandardCharsets.US_ASCII);
+    }
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().threadId();
+    RequestParams params = new RequestParams();
+
+    long sink = 0;
+    for (int round = 0; round < 2; round++) { // first round is the warm up
+      long bytesBefore = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        byte[] target = targets[i % targets.length];
+        if (RequestRouter.route(target, 0, target.length, params)) {
+          sink += params.getEndpoint().ordinal();
+        }
+      }
+      long nanos = System.nanoTime() - start;
+      long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+      if (round == 1) {
+        report("RequestRouter", iterations, nanos, bytes);
+      }
+    }
+
+    for (int round = 0; round < 2; round++) {
+      long bytesBefore = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        byte[] target = targets[i % targets.length];
+        if (RequestRouter.route(target, 0, target.length, params)) {
+          Endpoint endpoint = params.getEndpoint();
+          if (endpoint == Endpoint.READER || endpoint == Endpoint.AREA) {
+            // the reader and its list of reasons, the datetime is a long
+            RequestReader request = new RequestReader(params.get(Param.CREDENTIAL),
+                params.get(Param.ACTION), params.getEpochMinute(), params.get(Param.DOOR_ID));
+            sink += request.getAction().length();
+          }
+        }
+      }
+      long nanos = System.nanoTime() - start;
+      long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+      if (round == 1) {
+        report("+ RequestReader", iterations, nanos, bytes);
+      }
+    }
+
+    for (int round = 0; round < 2; round++) {
+      long bytesBefore = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        sink += tokenize(TARGETS[i % TARGETS.length]);
+      }
+      long nanos = System.nanoTime() - start;
+      long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+      if (round == 1) {
+        report("StringTokenizer", iterations, nanos, bytes);
+      }
+    }
+    System.out.println("(ignore " + sink + ")");
+  }
+
+  // what WebServer used to do with each target
+  private static int tokenize(String resource) {
+    StringTokenizer parse = new StringTokenizer(resource, "/[?]=&");
+    int i = 0;
+    String[] tokens = new String[20];
+    while (parse.hasMoreTokens()) {
+      tokens[i] = parse.nextToken();
+      i++;
+    }
+    if (tokens[0].equals("reader") || tokens[0].equals("area")) {
+      return LocalDateTime.parse(tokens[6], formatter).getMinute();
+    }
+    return i;
+  }
+
+  private static void report(String name, int iterations, long nanos, long bytes) {
+    System.out.printf("%-16s %8.1f ns/request %8.1f bytes allocated/request%n",
+        name, (double) nanos / iterations, (double) bytes / iterations);
+  }
+}
@@ -0,0 +1,108 @@
+package baseNoStates.bench;
+
+import baseNoStates.Area;
+import baseNoStates.DirectoryAreas;
+import baseNoStates.Partition;
+import baseNoStates.Schedule;
+import baseNoStates.Space;
+import baseNoStates.UserGroup;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Measures UserGroup.canBeInSpace, a bit test over the precomputed spaces of the group,
+ * next to the old way (Area.getSpaces() of every area of the group and comparing ids),
+ * on a building of floors x spacesPerFloor spaces, 10000 by default. The group can be
+ * in half of the floors, given as partitions, and in one space of each other floor.
+ * Run it with: java baseNoStates.bench.SpaceAuthorizationBenchmark [floors] [spacesPerFloor] [checks]
+ */
+public final class SpaceAuthorizationBenchmark {
+
+  private SpaceAuthorizationBenchmark() {}
+
+  public static void main(String[] args) {
+    int floors = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int spacesPerFloor = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int checks = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+
+    Partition building = new Partition("building", "Building", null);
+    ArrayList<Area> groupAreas = new ArrayList<>();
+    ArrayList<Space> allSpaces = new ArrayList<>();
+    for (int f = 0; f < floors; f++) {
+      Partition floor = new Partition("floor" + f, "Floor " + f, building);
+      building.addChild(floor);
+      for (int s = 0; s < spacesPerFloor; s++) {
+        Space space = new Space("room" + f + "_" + s, "Room " + s, floor);
+        floor.addChild(space);
+        allSpaces.add(space);
+        if (f % 2 == 1 && s == 0) {
+          groupAreas.add(space);
+        }
+      }
+      if (f % 2 == 0) {
+        groupAreas.add(floor);
+      }
+    }
+    DirectoryAreas.getInstance().installAreas(building); // numbers the spaces
+    Schedule schedule = new Schedule(LocalDate.now(), LocalDate.now(), new ArrayList<>(),
+        LocalTime.MIDNIGHT, LocalTime.MIDNIGHT);
+    UserGroup group = new UserGroup("bench", new ArrayList<>(), groupAreas, schedule);
+
+    Random random = new Random(42);
+    Space[] probes = new Space[1024];
+    for (int i = 0; i < probes.length; i++) {
+      probes[i] = allSpaces.get(random.nextInt(allSpaces.size()));
+    }
+    for (Space probe : probes) {
+      if (group.canBeInSpace(probe) != oldCanBeInSpace(groupAreas, probe)) {
+        throw new AssertionError("different answers for " + probe.getId());
+      }
+    }
+    System.out.println(allSpaces.size() + " spaces, group with " + groupAreas.size() + " areas");
+
+    long sink = 0;
+    for (int round = 0; round < 2; round++) { // first round is the warm up
+      long start = System.nanoTime();
+      for (int i = 0; i < checks * 100; i++) {
+        if (group.canBeInSpace(probes[i & (probes.length - 1)])) {
+          sink++;
+        }
+      }
+      if (round == 1) {
+        report("bitset", checks * 100, System.nanoTime() - start);
+      }
+    }
+    for (int round = 0; round < 2; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < checks; i++) {
+        if (oldCanBeInSpace(groupAreas, probes[i & (probes.length - 1)])) {
+          sink++;
+        }
+      }
+      if (round == 1) {
+        report("getSpaces", checks, System.nanoTime() - start);
+      }
+    }
+    System.out.println("(ignore " + sink + ")");
+  }
+
+  // what UserGroup.canBeInSpace used to do
+  private static boolean oldCanBeInSpace(ArrayList<Area> areas, Space space) {
+    String spaceId = space.getId();
+    for (Area area : areas) {
+      for (Space s : area.getSpaces()) {
+        if (s.getId().equals(spaceId)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static void report(String name, int checks, long nanos) {
+    System.out.printf("%-10s %12.1f ns/check%n", name, (double) nanos / checks);
+  }
+}
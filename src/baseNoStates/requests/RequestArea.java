@@ -3,23 +3,68 @@ package baseNoStates.requests;
 import baseNoStates.*;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.time.LocalDateTime;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+/**
+ * Locks or unlocks all the doors giving access to the spaces of an area. The user is
+ * looked up and checked once, and then the doors are split in halves, recursively, over
+ * a fork-join pool down to --area.forkThreshold doors (16) each, so the doors of a large
+ * partition are done concurrently by --area.parallelism threads (as many as cores).
+ * The answer has the result of every door in handle order. Asked for as
+ * application/x-ndjson instead, see streamed(), each door result is sent as soon as it
+ * is done, one JSON object per line, and the summary of the whole area last.
+ * In transactional mode (mode=transaction) the doors are instead changed all or none as
+ * an AreaTransaction, and the answer says whether it was committed.
+ */
 public class RequestArea implements Request {
+    private static final Logger logger = LoggerFactory.getLogger(RequestArea.class);
+    private static final int FORK_THRESHOLD = Math.max(1, Config.getInt("area.forkThreshold", 16));
+    private static final ForkJoinPool pool = new ForkJoinPool(
+            Config.getInt("area.parallelism", Runtime.getRuntime().availableProcessors()));
+
     private final String credential;
     private final String action;
     private final String areaId;
-    private final LocalDateTime requestDateTime;
+    private final long requestEpochMinute;
     private final ArrayList<RequestReader> requests = new ArrayList<>();
     private boolean authorized = true;
+    // what prepare() found: who, and the doors in handle order
+    private User user;
+    private Door[] doors = new Door[0];
+    private boolean transactional = false;
+    // in transactional mode, once processed
+    private boolean committed = false;
+    private String refusedBy = null;
+    // made on the request thread, the doors may be done on others
+    private final RequestTrace trace = RequestTrace.current();
 
-    public RequestArea(String credential, String action, LocalDateTime dateTime, String areaId) {
+    public RequestArea(String credential, String action, long epochMinute, String areaId) {
         this.credential = credential;
         this.action = action;
         this.areaId = areaId;
-        this.requestDateTime = dateTime;
+        this.requestEpochMinute = epochMinute;
+    }
+
+    public void setTransactional(boolean transactional) {
+        this.transactional = transactional;
+    }
+
+    public boolean isTransactional() {
+        return transactional;
     }
 
     public String getAction() {
@@ -27,11 +72,7 @@ public class RequestArea implements Request {
     }
 
     public JSONObject answerToJson() {
-        JSONObject json = new JSONObject();
-        json.put("authorized", authorized);
-        json.put("action", action);
-        json.put("areaId", areaId);
-
+        JSONObject json = summaryToJson();
         JSONArray requestJson = new JSONArray();
         for (RequestReader rr : requests) {
             requestJson.put(rr.answerToJson());
@@ -40,55 +81,246 @@ public class RequestArea implements Request {
         return json;
     }
 
+    private JSONObject summaryToJson() {
+        JSONObject json = new JSONObject();
+        json.put("authorized", authorized);
+        json.put("action", action);
+        json.put("areaId", areaId);
+        if (transactional) {
+            JSONObject transaction = new JSONObject();
+            transaction.put("committed", committed);
+            if (refusedBy != null) {
+                transaction.put("refusedBy", refusedBy);
+            }
+            json.put("transaction", transaction);
+        }
+        return json;
+    }
+
     @Override
     public String toString() {
         return "Request{" +
                 "credential=" + credential +
                 ", action=" + action +
-                ", now=" + requestDateTime +
+                ", now=" + EpochMinutes.toString(requestEpochMinute) +
                 ", areaId=" + areaId +
                 ", requests=" + requests +
                 "}";
     }
 
     public void process() {
-        User user = DirectoryUserGroups.getInstance().findUserByCredential(credential);
+        if (!prepare()) {
+            return;
+        }
+        if (transactional) {
+            processTransaction();
+        } else {
+            fanOut();
+        }
+    }
+
+    // Every door is authorized first, without acting; only if all of them are, the
+    // action is done on all of them as one AreaTransaction
+    private void processTransaction() {
+        for (Door door : doors) {
+            RequestReader req = new RequestReader(credential, action, requestEpochMinute, door.getId());
+            req.check(user, door);
+            if (!req.isAuthorized()) {
+                authorized = false;
+                refusedBy = refusedBy == null ? door.getId() : refusedBy;
+            }
+            requests.add(req);
+        }
+        if (authorized) {
+            AreaTransaction transaction = new AreaTransaction(doors, action);
+            committed = transaction.execute();
+            if (!committed) {
+                refusedBy = transaction.getRefusedBy().getId();
+            }
+        }
+        for (int i = 0; i < doors.length; i++) {
+            RequestReader req = requests.get(i);
+            req.recordDoorState(doors[i]);
+            if (!committed) {
+                req.addReason("Area transaction not done, refused by door " + refusedBy);
+            }
+            req.logAccess();
+        }
+    }
+
+    /**
+     * The answer as a stream of newline delimited JSON: the result of each door as it
+     * is done, in no particular order, and then the summary with "done": true.
+     * The doors are processed while the body is written, in the building of the request.
+     * If the task of the doors ends without the result of some of them, the summary says
+     * how many are missing instead of waiting for them.
+     */
+    public StreamingBody streamed() {
+        BuildingContext building = BuildingContext.current();
+        return out -> {
+            int missing = 0;
+            if (building.call(this::prepare) && doors.length > 0) {
+                LinkedBlockingQueue<RequestReader> done = new LinkedBlockingQueue<>();
+                ForkJoinTask<Void> task = pool.submit(new DoorsTask(building,
+                        new RequestReader[doors.length], done::add, 0, doors.length));
+                try {
+                    int received = 0;
+                    while (received < doors.length) {
+                        RequestReader req = done.poll(100, TimeUnit.MILLISECONDS);
+                        if (req == null) {
+                            // the results are added before the task is done
+                            if (task.isDone() && done.isEmpty()) {
+                                break;
+                            }
+                            continue;
+                        }
+                        received++;
+                        if (!req.isAuthorized()) {
+                            authorized = false;
+                        }
+                        requests.add(req);
+                        writeLine(out, req.answerToJson());
+                    }
+                    missing = doors.length - received;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted streaming area " + areaId);
+                }
+            }
+            if (missing > 0) {
+                authorized = false;
+            }
+            JSONObject summary = summaryToJson();
+            summary.put("doors", doors.length);
+            if (missing > 0) {
+                summary.put("missing", missing);
+            }
+            summary.put("done", true);
+            writeLine(out, summary);
+        };
+    }
+
+    private static void writeLine(OutputStream out, JSONObject json) throws IOException {
+        out.write((json.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    // Checks the user, action and area once for all the doors, and finds the doors.
+    // Returns false if the request is not authorized at all.
+    private boolean prepare() {
+        long lookupStart = System.nanoTime();
+        try {
+            return lookUp();
+        } finally {
+            RequestTrace.add(trace, RequestTrace.Phase.LOOKUP, lookupStart);
+        }
+    }
+
+    private boolean lookUp() {
+        user = DirectoryUserGroups.getInstance().findUserByCredential(credential);
 
         // invalid action: only lock/unlock allowed for area requests
         String canonical = Actions.canonicalize(action);
         if (user == null || canonical == null ||
                 !(Actions.LOCK.equals(canonical) || Actions.UNLOCK.equals(canonical))) {
             authorized = false;
-            return;
+            return false;
         }
-        if (!user.canSendRequest(requestDateTime)) {
+        if (!user.canSendRequest(requestEpochMinute)) {
             authorized = false;
-            return;
+            return false;
         }
 
         Area area = DirectoryAreas.getInstance().findAreaById(areaId);
         if (area == null) {
             authorized = false;
-            return;
+            return false;
         }
 
-        // Gather all doors whose to-space is in this area
-        ArrayList<Door> doorsInArea = new ArrayList<>();
+        // Gather the handles of all doors whose to-space is in this area, then go
+        // through them in handle order, along the array of doors
+        List<Door> allDoors = DirectoryDoors.getInstance().getAllDoors();
+        BitSet doorsInArea = new BitSet(allDoors.size());
         for (Space space : area.getSpaces()) {
-            doorsInArea.addAll(space.getDoorsGivingAccess());
+            for (Door door : space.getDoorsGivingAccess()) {
+                if (door.getHandle() >= 0) {
+                    doorsInArea.set(door.getHandle());
+                }
+            }
         }
-
-        if (doorsInArea.isEmpty()) {
-            return; // nothing to do; remains authorized
+        ArrayList<Door> found = new ArrayList<>(doorsInArea.cardinality());
+        for (int handle = doorsInArea.nextSetBit(0); handle >= 0 && handle < allDoors.size();
+             handle = doorsInArea.nextSetBit(handle + 1)) {
+            found.add(allDoors.get(handle));
         }
+        doors = found.toArray(new Door[0]);
+        return true; // with no doors there is nothing to do; remains authorized
+    }
 
-        for (Door door : doorsInArea) {
-            RequestReader req = new RequestReader(credential, action, requestDateTime, door.getId());
-            req.process();
+    // Processes every door, in parallel if there are many. Then the results are kept in
+    // handle order.
+    private void fanOut() {
+        RequestReader[] results = new RequestReader[doors.length];
+        DoorsTask task = new DoorsTask(BuildingContext.current(), results, null, 0, doors.length);
+        if (doors.length <= FORK_THRESHOLD) {
+            task.compute();
+        } else {
+            pool.invoke(task);
+        }
+        for (RequestReader req : results) {
             if (!req.isAuthorized()) {
                 authorized = false;
             }
             requests.add(req);
         }
     }
+
+    // The doors [from, to), split in halves until small enough to do in a row
+    private final class DoorsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        // a task is never serialized, it lives only for its request
+        private final transient BuildingContext building;
+        private final transient RequestReader[] results;
+        private final transient Consumer<RequestReader> onDone;
+        private final int from;
+        private final int to;
+
+        DoorsTask(BuildingContext building, RequestReader[] results,
+                  Consumer<RequestReader> onDone, int from, int to) {
+            this.building = building;
+            this.results = results;
+            this.onDone = onDone;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > FORK_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new DoorsTask(building, results, onDone, from, middle),
+                        new DoorsTask(building, results, onDone, middle, to));
+                return;
+            }
+            // pool threads serve all buildings, so the one of the request is bound here
+            building.run(() -> {
+                for (int i = from; i < to; i++) {
+                    Door door = doors[i];
+                    RequestReader req = new RequestReader(credential, action, requestEpochMinute, door.getId());
+                    req.setTrace(trace);
+                    try {
+                        req.process(user, door);
+                    } catch (RuntimeException e) {
+                        // the other doors are still done, and every door has a result
+                        logger.error("Area {}: request to door {} failed", areaId, door.getId(), e);
+                        req.fail("Door request failed: " + e.getMessage());
+                    }
+                    results[i] = req;
+                    if (onDone != null) {
+                        onDone.accept(req);
+                    }
+                }
+            });
+        }
+    }
 }
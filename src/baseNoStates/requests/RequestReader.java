@@ -4,26 +4,37 @@ import baseNoStates.*;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.time.LocalDateTime;
 import java.util.ArrayList;
 
 public class RequestReader implements Request {
     private final String credential; // who
     private final String action;     // what
-    private final LocalDateTime now; // when
+    private final long nowEpochMinute; // when, see EpochMinutes
     private final String doorId;     // where
     private String userName;
     private boolean authorized;
     private final ArrayList<String> reasons; // why not authorized
     private String doorStateName;
     private boolean doorClosed;
+    private long unlockShortlyMillis; // of the group of the user, 0 if up to the door
+    private RequestTrace trace; // of the HTTP request this is part of, null if none
 
-    public RequestReader(String credential, String action, LocalDateTime now, String doorId) {
+    public RequestReader(String credential, String action, long nowEpochMinute, String doorId) {
         this.credential = credential;
         this.action = action;
         this.doorId = doorId;
         this.reasons = new ArrayList<>();
-        this.now = now;
+        this.nowEpochMinute = nowEpochMinute;
+        this.trace = RequestTrace.current();
+    }
+
+    public RequestTrace getTrace() {
+        return trace;
+    }
+
+    /** For readers made on other threads than the one of the request, like those of an area. */
+    public void setTrace(RequestTrace trace) {
+        this.trace = trace;
     }
 
     public void setDoorStateName(String name) {
@@ -46,7 +57,7 @@ public class RequestReader implements Request {
     public String toString() {
         if (userName == null) userName = "unknown";
         return "Request{credential=" + credential + ", userName=" + userName
-                + ", action=" + action + ", now=" + now + ", doorID=" + doorId
+                + ", action=" + action + ", now=" + EpochMinutes.toString(nowEpochMinute) + ", doorID=" + doorId
                 + ", closed=" + doorClosed + ", authorized=" + authorized
                 + ", reasons=" + reasons + "}";
     }
@@ -64,43 +75,125 @@ public class RequestReader implements Request {
     }
 
     public void process() {
+        long lookupStart = System.nanoTime();
         User user = DirectoryUserGroups.getInstance().findUserByCredential(credential);
         Door door = DirectoryDoors.getInstance().findDoorById(doorId);
-        assert door != null : "door " + doorId + " not found";
+        RequestTrace.add(trace, RequestTrace.Phase.LOOKUP, lookupStart);
+        process(user, door);
+    }
 
+    /**
+     * Same as process() but with the user and the door already looked up,
+     * so that a batch of requests looks each of them up only once.
+     */
+    public void process(User user, Door door) {
+        if (door == null) {
+            authorized = false;
+            addReason("Door does not exist");
+            MetricsRegistry.getInstance().recordSwipe(false);
+            logAccess();
+            return;
+        }
+        long authorizeStart = System.nanoTime();
         authorize(user, door);      // sets authorized + reasons
-        door.processRequest(this);  // executes action if authorized, sets stateName
+        RequestTrace.add(trace, RequestTrace.Phase.AUTHORIZE, authorizeStart);
+        MetricsRegistry.getInstance().recordSwipe(authorized);
+        unlockShortlyMillis = user == null ? 0 : user.getUserGroup().getUnlockShortlyMillis();
+        // by the owner of the door in actor mode, so the answer has the state it left
+        long doorStart = System.nanoTime();
+        DoorExecutor.getInstance().run(door, () -> {
+            door.processRequest(this);  // executes action if authorized, sets stateName
+            doorClosed = door.isClosed();
+        });
+        RequestTrace.add(trace, RequestTrace.Phase.DOOR, doorStart);
+        logAccess();
+    }
+
+    /**
+     * Only checks whether the request would be authorized, without doing the action,
+     * and records the door as it is now.
+     */
+    public void check(User user, Door door) {
+        if (door == null) {
+            authorized = false;
+            addReason("Door does not exist");
+            return;
+        }
+        long authorizeStart = System.nanoTime();
+        authorize(user, door);
+        RequestTrace.add(trace, RequestTrace.Phase.AUTHORIZE, authorizeStart);
+        recordDoorState(door);
+    }
+
+    /** Marks the request as not authorized because processing it failed. */
+    public void fail(String reason) {
+        authorized = false;
+        addReason(reason);
+    }
+
+    /** The state and closed flag the answer reports, as the door has them now. */
+    public void recordDoorState(Door door) {
+        doorStateName = door.getStateName();
         doorClosed = door.isClosed();
     }
 
-    // Determine if the user is allowed to do the action in this space and time
+    /** Adds the request, as answered, to the AccessLog and the AuditStore. */
+    public void logAccess() {
+        AccessLog.getInstance().log(trace == null ? null : trace.getId(), credential, doorId,
+                action, nowEpochMinute, authorized, doorStateName, doorClosed, reasons);
+        AuditStore.getInstance().record(credential, doorId, action, nowEpochMinute, authorized,
+                doorStateName, doorClosed, reasons);
+    }
+
+    public long getUnlockShortlyMillis() {
+        return unlockShortlyMillis;
+    }
+
+    public String getCredential() {
+        return credential;
+    }
+
+    public String getDoorId() {
+        return doorId;
+    }
+
+    // Determine if the user is allowed to do the action in this space and time,
+    // reusing the decision of a previous request of this minute if there is one
     private void authorize(User user, Door door) {
+        userName = user == null ? "unknown" : user.getCredential();
+        AuthorizationCache cache = AuthorizationCache.getInstance();
+        AuthorizationCache.Decision cached = cache.get(credential, door.getId(), action, nowEpochMinute);
+        if (cached != null) {
+            authorized = cached.isAuthorized();
+            if (cached.getReason() != null) {
+                addReason(cached.getReason());
+            }
+            return;
+        }
+        long generation = cache.getGeneration();
+        decide(user, door);
+        cache.put(credential, door.getId(), action, nowEpochMinute, authorized,
+                reasons.isEmpty() ? null : reasons.get(0), generation);
+    }
+
+    private void decide(User user, Door door) {
         if (user == null) {
             authorized = false;
-            userName = "unknown";
             addReason("User does not exist");
             return;
         }
-        userName = user.getCredential();
-
-        // --- Door has String ids: resolve to Space objects via DirectoryAreas ---
-        String fromId = door.getFromSpace(); // String
-        String toId   = door.getToSpace();   // String
 
-        Area fromArea = DirectoryAreas.getInstance().findAreaById(fromId);
-        Area toArea   = DirectoryAreas.getInstance().findAreaById(toId);
-
-        if (!(fromArea instanceof Space) || !(toArea instanceof Space)) {
+        // resolved when the door was linked to its spaces
+        Space fromSpace = door.getFromSpace();
+        Space toSpace   = door.getToSpace();
+        if (fromSpace == null || toSpace == null) {
             authorized = false;
             addReason("Door spaces are not valid");
             return;
         }
 
-        Space fromSpace = (Space) fromArea;
-        Space toSpace   = (Space) toArea;
-
         // Within schedule?
-        if (!user.canSendRequest(now)) {
+        if (!user.canSendRequest(nowEpochMinute)) {
             authorized = false;
             addReason("Not within work schedule");
             return;
@@ -112,7 +205,7 @@ public class RequestReader implements Request {
             return;
         }
         // Allowed to do the action?
-        if (!user.canDoAction(action, fromSpace, now)) {
+        if (!user.canDoAction(action, fromSpace, nowEpochMinute)) {
             authorized = false;
             addReason("User isn't allowed to do the action");
             return;
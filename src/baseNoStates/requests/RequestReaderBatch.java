@@ -0,0 +1,197 @@
+package baseNoStates.requests;
+
+import baseNoStates.*;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Many card swipes sent together by a reader concentrator, in the body of one POST,
+ * either as a JSON array or as newline-delimited JSON objects, each with the same fields
+ * as a reader request: credential, action, datetime and doorId.
+ * The swipes are processed in one pass grouped by door, so each door and each user is
+ * looked up once, and the swipes of a door keep their order. The answer has one result
+ * per swipe, in the order they were sent, and the throughput of the batch.
+ * Each swipe takes its tokens from AdmissionController like a reader request, so a batch
+ * can't get round the rate limits: a swipe over them is not processed and its result is
+ * a 429 with the seconds to wait.
+ */
+public class RequestReaderBatch implements Request {
+    private static final int MAX_EVENTS = Config.getInt("batch.maxEvents", 1000);
+    private static final DateTimeFormatter formatter =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm");
+
+    // since the server started, to report the sustained throughput
+    private static final LongAdder totalBatches = new LongAdder();
+    private static final LongAdder totalEvents = new LongAdder();
+    private static final LongAdder totalNanos = new LongAdder();
+
+    // one entry per swipe, in order: the request, or null and the reason it is malformed
+    private final ArrayList<RequestReader> requests = new ArrayList<>();
+    private final ArrayList<String> errors = new ArrayList<>();
+    // the swipes over the rate of their credential or door, by position, and how many
+    private AdmissionController.RateLimited[] limited = new AdmissionController.RateLimited[0];
+    private int numLimited;
+    private int numDoors;
+    private long elapsedNanos;
+
+    public static int getMaxEvents() {
+        return MAX_EVENTS;
+    }
+
+    /**
+     * Reads the swipes of the body. A malformed swipe only makes its own result an error,
+     * a body that is not JSON at all throws IllegalArgumentException.
+     */
+    public static RequestReaderBatch parse(byte[] body) {
+        String text = new String(body, StandardCharsets.UTF_8).trim();
+        RequestReaderBatch batch = new RequestReaderBatch();
+        try {
+            if (text.startsWith("[")) {
+                JSONArray array = new JSONArray(text);
+                for (int i = 0; i < array.length(); i++) {
+                    batch.add(array.optJSONObject(i));
+                }
+            } else {
+                for (String line : text.split("\n")) {
+                    if (!line.isBlank()) {
+                        batch.add(new JSONObject(line));
+                    }
+                }
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("malformed batch: " + e.getMessage());
+        }
+        return batch;
+    }
+
+    private void add(JSONObject swipe) {
+        if (swipe == null) {
+            addError("swipe is not a JSON object");
+            return;
+        }
+        String credential = swipe.optString("credential", null);
+        String action = swipe.optString("action", null);
+        String datetime = swipe.optString("datetime", null);
+        String doorId = swipe.optString("doorId", null);
+        if (credential == null || action == null || datetime == null || doorId == null) {
+            addError("missing credential, action, datetime or doorId");
+            return;
+        }
+        try {
+            long epochMinute = EpochMinutes.of(LocalDateTime.parse(datetime, formatter));
+            requests.add(new RequestReader(credential, action, epochMinute, doorId));
+            errors.add(null);
+        } catch (DateTimeParseException e) {
+            addError("malformed datetime, expected yyyy-MM-ddTHH:mm");
+        }
+    }
+
+    private void addError(String error) {
+        requests.add(null);
+        errors.add(error);
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    @Override
+    public void process() {
+        long start = System.nanoTime();
+        AdmissionController admission = AdmissionController.getInstance();
+        limited = new AdmissionController.RateLimited[requests.size()];
+        Map<String, List<RequestReader>> requestsByDoor = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            RequestReader request = requests.get(i);
+            if (request == null) {
+                continue;
+            }
+            // in the order sent, as if they had come one by one
+            limited[i] = admission.takeTokens(request.getCredential(), request.getDoorId());
+            if (limited[i] != null) {
+                numLimited++;
+            } else {
+                requestsByDoor.computeIfAbsent(request.getDoorId(), id -> new ArrayList<>()).add(request);
+            }
+        }
+
+        Map<String, User> users = new HashMap<>();
+        for (Map.Entry<String, List<RequestReader>> entry : requestsByDoor.entrySet()) {
+            Door door = DirectoryDoors.getInstance().findDoorById(entry.getKey());
+            for (RequestReader request : entry.getValue()) {
+                String credential = request.getCredential();
+                if (!users.containsKey(credential)) {
+                    users.put(credential, DirectoryUserGroups.getInstance().findUserByCredential(credential));
+                }
+                request.process(users.get(credential), door);
+            }
+        }
+        numDoors = requestsByDoor.size();
+        elapsedNanos = System.nanoTime() - start;
+
+        totalBatches.increment();
+        totalEvents.add(requests.size());
+        totalNanos.add(elapsedNanos);
+    }
+
+    @Override
+    public JSONObject answerToJson() {
+        JSONArray results = new JSONArray();
+        int rejected = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            RequestReader request = requests.get(i);
+            if (request == null) {
+                JSONObject error = new JSONObject();
+                error.put("error", errors.get(i));
+                results.put(error);
+                rejected++;
+            } else if (limited[i] != null) {
+                JSONObject error = new JSONObject();
+                error.put("error", limited[i].getMessage());
+                error.put("status", 429);
+                error.put("retryAfterSeconds", limited[i].getRetryAfterSeconds());
+                results.put(error);
+            } else {
+                results.put(request.answerToJson());
+            }
+        }
+        JSONObject json = new JSONObject();
+        json.put("events", requests.size());
+        json.put("processed", requests.size() - rejected - numLimited);
+        json.put("malformed", rejected);
+        json.put("limited", numLimited);
+        json.put("doors", numDoors);
+        json.put("elapsedMicros", elapsedNanos / 1000);
+        json.put("eventsPerSecond", eventsPerSecond(requests.size(), elapsedNanos));
+        json.put("results", results);
+
+        JSONObject totals = new JSONObject();
+        totals.put("batches", totalBatches.sum());
+        totals.put("events", totalEvents.sum());
+        totals.put("eventsPerSecond", eventsPerSecond(totalEvents.sum(), totalNanos.sum()));
+        json.put("totals", totals);
+        return json;
+    }
+
+    private static long eventsPerSecond(long events, long nanos) {
+        return nanos == 0 ? 0 : events * 1_000_000_000L / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestReaderBatch{events=" + requests.size() + ", doors=" + numDoors
+                + ", elapsedMicros=" + elapsedNanos / 1000 + "}";
+    }
+}
@@ -0,0 +1,34 @@
+package baseNoStates.requests;
+
+import java.util.function.Supplier;
+import org.json.JSONObject;
+
+/**
+ * Reports the statistics of some part of the server, as the JSON its toJson() makes:
+ * connections, admission control, users, authorization cache, timers or the slowest
+ * requests. Which one is chosen by RequestDispatcher from the endpoint.
+ */
+public class RequestStats implements Request {
+  private final String name;
+  private final Supplier<JSONObject> stats;
+  private JSONObject jsonStats;
+
+  public RequestStats(String name, Supplier<JSONObject> stats) {
+    this.name = name;
+    this.stats = stats;
+  }
+
+  @Override
+  public JSONObject answerToJson() {
+    return jsonStats;
+  }
+
+  @Override
+  public String toString() {
+    return "RequestStats{" + name + ", " + jsonStats + "}";
+  }
+
+  public void process() {
+    jsonStats = stats.get();
+  }
+}
@@ -389,6 +389,25 @@ function processAnswerAreaRequest(responseText) {
 }
 
 
+// Door changes pushed by the server, instead of pressing Refresh over and over.
+// EventSource reconnects by itself and sends Last-Event-ID, so no change is missed;
+// a "reset" event means too many were missed and we repaint everything.
+function subscribeToDoorEvents() {
+    var events = new EventSource(baseUrl + "/events");
+    events.addEventListener("door", function(e) {
+        var change = JSON.parse(e.data);
+        var d = dirDoors.findById(change.id);
+        d.isClosed = change.closed;
+        d.draw();
+        d.setState(change.state);
+        d.paintReader();
+    });
+    events.addEventListener("reset", function(e) {
+        sendRefresh();
+    });
+}
+
+
 function processAnswerDoorRequest(responseText) {
     console.log("processAnswerDoorRequest " + responseText)
     answer.value = responseText;
@@ -455,5 +474,6 @@ window.onload = function() {
     sendRefresh();
     // this is to get the initial state of each door and if closed or open, according to the constructor
     // of Door in the server
+    subscribeToDoorEvents();
 
 }